@@ -26,18 +26,52 @@
 
 package de.unkrig.antology.filter;
 
+import java.io.File;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.ProjectComponent;
 import org.apache.tools.ant.filters.ChainableReader;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
 
+import de.unkrig.antology.task.ThroughputTask;
+import de.unkrig.antology.util.Logging;
+import de.unkrig.antology.util.Metrics;
+import de.unkrig.antology.util.Threads;
 import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.util.time.Duration;
+import de.unkrig.commons.util.time.PointOfTime;
 
 /**
  * Prints dots (".") to STDERR as data is read through it. This implements a kind of "progress monitoring" for slow
  * tasks that read some data.
+ * <p>
+ *   The filter can be used by several concurrent readers; then the dots reflect the total of the data read through
+ *   all of them.
+ * </p>
+ * <p>
+ *   Alternatively, iff an {@link #setInterval(Duration) interval} is configured, then, instead of printing dots, the
+ *   filter periodically logs the number of bytes read so far and the rate, and, iff the {@link #setTotalBytes(long)
+ *   total} is known, the percentage of completion and the estimated remaining time, like the {@code <throughput>}
+ *   task does:
+ * </p>
+ * <pre>
+ *  ... running for 0:00:10 (1,024,000 bytes @ 102,400 bytes/s; 1,024,000 of 4,096,000 bytes complete = 25.0%;
+ *  3,072,000 bytes remaining = approx. 0:00:30)
+ * </pre>
+ * <p>
+ *   Notice that, when the filter is used in a {@code <copy>} task, it counts the data of <em>all</em> copied files.
+ * </p>
  */
 @NotNullByDefault(false) public
 class ProgressFilter extends ProjectComponent implements ChainableReader {
@@ -47,34 +81,75 @@ class ProgressFilter extends ProjectComponent implements ChainableReader {
     @Override public Reader
     chain(Reader reader) {
 
+        this.readerOpened();
+
         return new FilterReader(reader) {
 
+            /**
+             * The number of bytes read through this reader, but not yet {@link ProgressFilter#reportBytes(long)
+             * reported}. Avoids the cost of an atomic operation per character; is always less than {@link
+             * ProgressFilter#bytesPerTick}, so the ticks are not delayed noticeably.
+             */
+            private long unreported;
+
+            /**
+             * Whether end-of-input was reached or the reader was closed. (Some tasks, e.g. {@code <loadresource>},
+             * never close the reader.)
+             */
+            private boolean ended;
+
             @Override public int
             read() throws IOException {
                 int c = this.in.read();
-                if (c != -1) ProgressFilter.this.reportBytes(1);
+                if (c == -1) {
+                    this.end();
+                } else
+                if (++this.unreported >= ProgressFilter.this.bytesPerTick) {
+                    this.flush();
+                }
                 return c;
             }
 
             @Override public int
             read(char[] cbuf, int off, int len) throws IOException {
                 int n = this.in.read(cbuf, off, len);
-                if (n != -1) ProgressFilter.this.reportBytes(n);
+                if (n == -1) {
+                    this.end();
+                } else
+                if ((this.unreported += n) >= ProgressFilter.this.bytesPerTick) {
+                    this.flush();
+                }
                 return n;
             }
 
             @Override public long
             skip(long n) throws IOException {
                 long skipped = this.in.skip(n);
-                ProgressFilter.this.reportBytes(skipped);
+                if ((this.unreported += skipped) >= ProgressFilter.this.bytesPerTick) this.flush();
                 return skipped;
             }
 
             @Override public void
             close() throws IOException {
-                ProgressFilter.this.reportEndOfProgress();
+                this.end();
                 this.in.close();
             }
+
+            private void
+            flush() {
+                ProgressFilter.this.reportBytes(this.unreported);
+                this.unreported = 0;
+            }
+
+            private void
+            end() {
+                if (this.ended) return;
+                this.ended = true;
+
+                this.flush();
+                ProgressFilter.this.reportEndOfProgress();
+                ProgressFilter.this.readerEnded();
+            }
         };
     }
 
@@ -94,32 +169,237 @@ class ProgressFilter extends ProjectComponent implements ChainableReader {
      *
      * @ant.defaultValue 1024
      */
-    public void setBytesPerTick(int n) { this.bytesPerTick = n; }
+    public void
+    setBytesPerTick(int n) {
+        if (n < 1) throw new BuildException("'bytesPerTick' must be 1 or greater");
+        this.bytesPerTick = n;
+    }
     private int bytesPerTick = 1024;
 
+    /**
+     * Iff configured, then, instead of printing dots, the progress is logged periodically, see above.
+     */
+    public void setInterval(Duration value) { this.interval = value; }
+    private Duration interval;
+
+    /**
+     * The total number of bytes that will be read through this filter; required for reporting the percentage of
+     * completion and the ETA.
+     *
+     * @ant.defaultValue The sum of the sizes of the {@link #add(ResourceCollection) resources}
+     */
+    public void setTotalBytes(long n) { this.totalBytes = n; }
+    private Long totalBytes;
+
+    /**
+     * Iff configured, and the {@link #setTotalBytes(long) totalBytes} attribute is not configured, then the total
+     * number of bytes is the sum of the sizes of these resources (typically those that the enclosing task will read).
+     */
+    public void add(ResourceCollection value) { this.resourceCollections.add(value); }
+    private final List<ResourceCollection> resourceCollections = new ArrayList<ResourceCollection>();
+
+    /**
+     * Whether to log the "estimated time of arrival".
+     */
+    public void setShowEta(boolean value) { this.showEta = value; }
+    private boolean showEta;
+
+    /**
+     * Identifies this filter in the metrics.
+     *
+     * @ant.defaultValue {@code "progress"}
+     * @see              ThroughputTask#setLabel(String)
+     */
+    public void setLabel(String text) { this.label = text; }
+    private String label = "progress";
+
+    /**
+     * Iff configured, and an {@link #setInterval(Duration) interval} is configured, then the bytes read, the rate,
+     * the percentage of completion and the ETA are also appended to the given file, with event {@code "progress"}
+     * and, when the total is reached, {@code "done"}.
+     *
+     * @see ThroughputTask#setMetricsFile(File)
+     */
+    public void setMetricsFile(File file) { this.metricsFile = file; }
+    private File metricsFile;
+
+    /**
+     * The format of the {@link #setMetricsFile(File) metrics file}.
+     *
+     * @ant.defaultValue {@value ThroughputTask#DEFAULT_METRICS_FORMAT}
+     */
+    public void setMetricsFormat(Metrics.Format value) { this.metricsFormat = value; }
+    private Metrics.Format metricsFormat = ThroughputTask.DEFAULT_METRICS_FORMAT;
+
     // ------------------- IMPLEMENTATION ----------------------
 
     /**
-     * @param n The (positive) number of bytes that were just processed
+     * Iff an {@link #setInterval(Duration) interval} is configured, starts the periodic reporting (iff not yet
+     * started).
      */
     private synchronized void
-    reportBytes(long n) {
+    readerOpened() {
 
-        this.totalBytes += n;
+        this.openReaders++;
 
-        // Convert the bytes total into ticks.
-        int ticks = (int) (this.totalBytes / this.bytesPerTick);
+        Duration interval = this.interval;
+        if (interval == null) return;
 
-        this.setProgress(ticks);
+        // No dots when reporting periodically.
+        this.nextTickBytes = Long.MAX_VALUE;
+
+        if (this.beginning == null) {
+            this.beginning = new PointOfTime();
+
+            if (this.totalBytes == null && !this.resourceCollections.isEmpty()) {
+                long total = 0;
+                for (ResourceCollection rc : this.resourceCollections) {
+                    for (Resource r : rc) {
+                        long size = r.getSize();
+                        if (size > 0) total += size;
+                    }
+                }
+                this.totalBytes = total;
+            }
+
+            this.sink = Metrics.sink(this.getProject(), this.metricsFile, this.metricsFormat, null);
+        }
+
+        if (this.reporter == null) {
+
+            // The log message prefix is thread-local.
+            final String messagePrefix = Logging.getLogMessagePrefix(this.getProject());
+
+            this.reporter = Executors.newSingleThreadScheduledExecutor(Threads.newThreadFactory("progress-", false));
+            this.reporter.scheduleAtFixedRate(new Runnable() {
+
+                @Override public void
+                run() {
+                    Logging.setLogMessagePrefix(ProgressFilter.this.getProject(), messagePrefix);
+                    ProgressFilter.this.reportPeriodically();
+                }
+            }, interval.milliseconds(), interval.milliseconds(), TimeUnit.MILLISECONDS);
+        }
     }
-    private long totalBytes;
+    private int                      openReaders;
+    private PointOfTime              beginning;
+    private ScheduledExecutorService reporter;
+    private Metrics.Sink             sink;
+
+    /**
+     * Iff the {@link #setTotalBytes(long) total} is known and reached, logs the final progress message and stops the
+     * periodic reporting.
+     */
+    private synchronized void
+    readerEnded() {
+
+        this.openReaders--;
+
+        if (this.reporter == null) return;
+
+        Long totalBytes = this.totalBytes;
+        if (totalBytes == null || this.bytesRead.get() < totalBytes) return;
+
+        this.stopReporter();
+
+        PointOfTime now      = new PointOfTime();
+        Duration    duration = now.subtract(this.beginning);
+        double      read     = this.bytesRead.get();
+        this.log(ThroughputTask.composeAfterMessage(
+            null,               // previousQuantity
+            null,               // previousDuration
+            read,               // currentQuantity
+            duration,           // currentDuration
+            null,               // remainingQuantity
+            now,                // remainingBeginning
+            false,              // showEta
+            "bytes"             // quantityUnit
+        ));
+        this.writeMetrics("done", read, duration, 0.0, now);
+    }
+
+    /**
+     * Logs a progress message; stops the periodic reporting while no reader is open.
+     */
+    private synchronized void
+    reportPeriodically() {
+
+        // E.g. "<copy>" chains a new reader for each file; between the files, no reader is open.
+        if (this.openReaders == 0) {
+            this.stopReporter();
+            return;
+        }
+
+        PointOfTime now        = new PointOfTime();
+        Duration    duration   = now.subtract(this.beginning);
+        double      read       = this.bytesRead.get();
+        Long        totalBytes = this.totalBytes;
+        Double      remaining  = totalBytes == null ? null : (Double) Math.max(0, totalBytes - read);
+        this.log(ThroughputTask.composeProgressMessage(
+            null,         // previousQuantity
+            null,         // previousDuration
+            read,         // currentQuantity
+            duration,     // currentDuration
+            remaining,    // remainingQuantity
+            now,          // remainingBeginning
+            this.showEta, // showEta
+            "bytes",      // quantityUnit
+            null          // secondsPerUnit
+        ));
+        this.writeMetrics("progress", read, duration, remaining, now);
+    }
+
+    private void
+    writeMetrics(String event, double read, Duration duration, Double remaining, PointOfTime now) {
+
+        Metrics.Sink sink = this.sink;
+        if (sink == null) return;
+
+        Map<String, Object> metrics = ThroughputTask.composeMetrics(
+            null,
+            null,
+            read,
+            duration,
+            remaining,
+            now,
+            "bytes",
+            null
+        );
+        metrics.put("label", Metrics.subLabel(Metrics.getLabel(this.getProject()), this.label));
+        metrics.put("event", event);
+        sink.write(metrics);
+    }
+
+    private void
+    stopReporter() {
+        this.reporter.shutdown();
+        this.reporter = null;
+    }
+
+    /**
+     * @param n The (non-negative) number of bytes that were just processed
+     */
+    private void
+    reportBytes(long n) {
+
+        long bytesRead = this.bytesRead.addAndGet(n);
+
+        // Only when a tick boundary is crossed, the (relatively expensive) tick computation is necessary.
+        if (bytesRead >= this.nextTickBytes) this.setProgress(bytesRead / this.bytesPerTick);
+    }
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * The bytes total at which the next dot is due; {@link Long#MAX_VALUE} iff no more dots will be printed.
+     */
+    private volatile long nextTickBytes;
 
     // -----------------------------
 
     /**
      * Prints a line break, so the next output will appear on a new line. Avoids printing multiple line breaks in a row.
      */
-    private void
+    private synchronized void
     reportEndOfProgress() {
         if (this.dotsPending) {
             this.dotsPending = false;
@@ -134,18 +414,28 @@ class ProgressFilter extends ProjectComponent implements ChainableReader {
      * 'exponential' attribute).
      */
     private synchronized void
-    setProgress(int ticks) {
+    setProgress(long ticks) {
 
         int logicalTicks1 = this.previousLogicalTicks;
-        int logicalTicks2 = (this.previousLogicalTicks = this.logicalizeTicks(ticks));
+        int logicalTicks2 = this.logicalizeTicks(ticks);
 
+        // Concurrent readers may report out of order.
         if (logicalTicks2 > logicalTicks1) {
 
+            this.previousLogicalTicks = logicalTicks2;
+
             for (int i = logicalTicks1; i < logicalTicks2; i++) System.err.print('.');
             System.err.flush();
 
             this.dotsPending = true;
         }
+
+        long nextTick = this.physicalTicks(this.previousLogicalTicks + 1);
+        this.nextTickBytes = (
+            nextTick > Long.MAX_VALUE / this.bytesPerTick
+            ? Long.MAX_VALUE
+            : nextTick * this.bytesPerTick
+        );
     }
     private int previousLogicalTicks;
 
@@ -156,11 +446,35 @@ class ProgressFilter extends ProjectComponent implements ChainableReader {
      * for larger {@code physicalTicks} a value no greated than {@value #ASYMPTOTE}.
      */
     private int
-    logicalizeTicks(int physicalTicks) {
+    logicalizeTicks(long physicalTicks) {
         return this.exponential ? (
             ProgressFilter.ASYMPTOTE
             - (int) (ProgressFilter.ASYMPTOTE * Math.exp(physicalTicks * (-1.0 / ProgressFilter.ASYMPTOTE)))
-        ) : physicalTicks;
+        ) : (int) Math.min(physicalTicks, Integer.MAX_VALUE);
     }
     private static final int ASYMPTOTE = 80;
+
+    /**
+     * The inverse of {@link #logicalizeTicks(long)}.
+     *
+     * @return The least number of physical ticks for which {@link #logicalizeTicks(long)} returns at least
+     *         <var>logicalTicks</var>, or {@link Long#MAX_VALUE} iff there is no such number
+     */
+    private long
+    physicalTicks(int logicalTicks) {
+
+        if (!this.exponential) return logicalTicks;
+
+        if (logicalTicks > ProgressFilter.ASYMPTOTE) return Long.MAX_VALUE;
+
+        // Solve "ASYMPTOTE * exp(-p / ASYMPTOTE) = ASYMPTOTE - logicalTicks + 1" for p, and then compensate for
+        // rounding.
+        long result = (long) (
+            ProgressFilter.ASYMPTOTE
+            * Math.log((double) ProgressFilter.ASYMPTOTE / (ProgressFilter.ASYMPTOTE - logicalTicks + 1))
+        );
+        while (result > 0 && this.logicalizeTicks(result - 1) >= logicalTicks) result--;
+        while (this.logicalizeTicks(result) < logicalTicks) result++;
+        return result;
+    }
 }
@@ -37,12 +37,13 @@ import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.ProjectComponent;
 import org.apache.tools.ant.filters.ChainableReader;
 
+import de.unkrig.antology.util.CompiledExpressionMatchReplacer;
+import de.unkrig.antology.util.MultiPatternReplacer;
 import de.unkrig.commons.lang.protocol.FunctionWhichThrows;
 import de.unkrig.commons.lang.protocol.Functions;
 import de.unkrig.commons.nullanalysis.NotNullByDefault;
 import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.text.parser.ParseException;
-import de.unkrig.commons.text.pattern.ExpressionMatchReplacer;
 import de.unkrig.commons.text.pattern.PatternUtil;
 
 /**
@@ -84,9 +85,18 @@ class ReplaceAllFilter extends ProjectComponent implements ChainableReader {
             if (this.pattern != null) {
                 throw new BuildException("\"pattern=...\" and \"<pattern>...</pattern>\" are mutually exclusive");
             }
-            this.pattern = Pattern.compile(pattern);
+            this.pattern = pattern;
         }
-        @Nullable private Pattern pattern;
+        @Nullable private String pattern;
+
+        /**
+         * Whether the pattern is a literal string rather than a regular expression.
+         */
+        public void
+        setLiteral(boolean value) { this.literal = value; }
+        private boolean literal;
+
+        @Nullable private Pattern compiledPattern;
 
         /**
          * The "replacement string" to use for the substitution of each match.
@@ -105,13 +115,16 @@ class ReplaceAllFilter extends ProjectComponent implements ChainableReader {
          * <p>
          *   {@code replacementExpression="m.group.toUpperCase()"}
          * </p>
+         * <p>
+         *   The expression is compiled only once, see {@link CompiledExpressionMatchReplacer}.
+         * </p>
          */
         public void
         setReplacementExpression(String replacementExpression) {
             if (this.matchReplacer != null) throw new BuildException("More than one replacement");
             try {
                 this.matchReplacer = Functions.asFunctionWhichThrows(
-                    ExpressionMatchReplacer.parse(replacementExpression)
+                    CompiledExpressionMatchReplacer.parse(replacementExpression)
                 );
             } catch (ParseException pe) {
                 throw new BuildException(pe);
@@ -133,49 +146,87 @@ class ReplaceAllFilter extends ProjectComponent implements ChainableReader {
     @Override public Reader
     chain(Reader reader) {
 
-        {
-            Pattern
-            pattern = this.pattern;
+        List<Pattern> patterns = this.prepare();
 
+        List<FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>>
+        matchReplacers = new ArrayList<
             FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>
-            matchReplacer = this.matchReplacer;
+        >();
+        if (this.pattern != null) matchReplacers.add(this.matchReplacer);
+        for (PatternElement pe : this.patterns) matchReplacers.add(pe.matchReplacer);
 
-            if (pattern != null || matchReplacer != null) {
-                reader = ReplaceAllFilter.replaceAll(reader, pattern, matchReplacer);
-            }
+        if (this.singlePass && patterns.size() > 1) {
+            return MultiPatternReplacer.replaceAllFilterReader(reader, patterns, matchReplacers);
         }
 
-        for (PatternElement pe : this.patterns) {
-            reader = ReplaceAllFilter.replaceAll(reader, pe.pattern, pe.matchReplacer);
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern pattern = patterns.get(i);
+
+            reader = (
+                MultiPatternReplacer.isLiteral(pattern)
+                ? MultiPatternReplacer.literalFilterReader(reader, pattern.pattern(), matchReplacers.get(i))
+                : PatternUtil.replaceAllFilterReader(reader, pattern, matchReplacers.get(i))
+            );
         }
 
         return reader;
     }
 
-    private static Reader
-    replaceAll(
-        Reader                                                                                            reader,
-        @Nullable Pattern                                                                                 pattern,
-        @Nullable FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException> matchReplacer
-    ) {
-
-        if (pattern       == null) throw new BuildException("Pattern missing");
-        if (matchReplacer == null) throw new BuildException("Replacement string and expression missing");
-
-        return PatternUtil.replaceAllFilterReader(
-            reader,
-            pattern,
-            matchReplacer
-        );
+    /**
+     * Compiles the patterns, unless that has already been done. Must be invoked before {@link #chain(Reader)} is
+     * invoked concurrently, because otherwise the threads would race to compile the patterns.
+     *
+     * @return The compiled patterns, in the order in which they are applied
+     */
+    public List<Pattern>
+    prepare() {
+
+        List<Pattern> result = new ArrayList<Pattern>();
+
+        String pattern = this.pattern;
+        if (pattern != null || this.matchReplacer != null) {
+            if (pattern            == null) throw new BuildException("Pattern missing");
+            if (this.matchReplacer == null) throw new BuildException("Replacement string and expression missing");
+            Pattern cp = this.compiledPattern;
+            if (cp == null) this.compiledPattern = (cp = ReplaceAllFilter.compile(pattern, this.literal));
+
+            result.add(cp);
+        }
+
+        for (PatternElement pe : this.patterns) {
+            Pattern cp = pe.compiledPattern;
+            if (cp == null) pe.compiledPattern = (cp = ReplaceAllFilter.compile(pe.pattern, pe.literal));
+
+            result.add(cp);
+        }
+
+        return result;
     }
 
+    private static Pattern
+    compile(String pattern, boolean literal) { return Pattern.compile(pattern, literal ? Pattern.LITERAL : 0); }
+
     // ---------------- ANT attribute setters. ----------------
 
     /**
      * The pattern to search for in the content.
+     * <p>
+     *   Patterns that contain none of the regex metacharacters <code>\[](){}.*+?^$|</code>, and patterns with
+     *   {@link #setLiteral(boolean) literal="true"}, are searched with a fast string search algorithm instead of the
+     *   regex engine.
+     * </p>
+     */
+    public void setPattern(String pattern) { this.pattern = pattern; }
+    @Nullable private String pattern;
+
+    /**
+     * Whether the pattern is a literal string rather than a regular expression.
      */
-    public void setPattern(String pattern) { this.pattern = Pattern.compile(pattern); }
-    @Nullable private Pattern pattern;
+    public void
+    setLiteral(boolean value) { this.literal = value; }
+    private boolean literal;
+
+    @Nullable private Pattern compiledPattern;
 
     /**
      * The "replacement string" to use for the substitution of each match.
@@ -195,12 +246,17 @@ class ReplaceAllFilter extends ProjectComponent implements ChainableReader {
      * <p>
      *   {@code replacementExpression="m.group.toUpperCase()"}
      * </p>
+     * <p>
+     *   The expression is compiled only once, see {@link CompiledExpressionMatchReplacer}.
+     * </p>
      */
     public void
     setReplacementExpression(String replacementExpression) {
         if (this.matchReplacer != null) throw new BuildException("More than one replacement");
         try {
-            this.matchReplacer = Functions.asFunctionWhichThrows(ExpressionMatchReplacer.parse(replacementExpression));
+            this.matchReplacer = Functions.asFunctionWhichThrows(
+                CompiledExpressionMatchReplacer.parse(replacementExpression)
+            );
         } catch (ParseException pe) {
             throw new BuildException(pe);
         }
@@ -218,4 +274,23 @@ class ReplaceAllFilter extends ProjectComponent implements ChainableReader {
         this.patterns.add(element);
     }
     private List<PatternElement> patterns = new ArrayList<PatternElement>();
+
+    /**
+     * Whether to search for all patterns in one pass, instead of one pass per pattern, which is much faster for many
+     * patterns.
+     * <p>
+     *   Notice that the semantics are slightly different: With one pass per pattern, each pattern is applied to the
+     *   result of the preceding pattern's replacements. With one pass, the patterns are effectively combined into
+     *   <code>(<var>pattern1</var>)|(<var>pattern2</var>)|...</code>, i.e. where matches overlap, the leftmost match
+     *   wins (and, at the same position, the first pattern), and the text that a replacement produces is never
+     *   matched by other patterns. The patterns must not use back references or named groups.
+     * </p>
+     * <p>
+     *   Iff all patterns are literals (see {@link #setPattern(String)}), then they are matched with a trie instead of
+     *   the regex engine.
+     * </p>
+     */
+    public void
+    setSinglePass(boolean value) { this.singlePass = value; }
+    private boolean singlePass;
 }
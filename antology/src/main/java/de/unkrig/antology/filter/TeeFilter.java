@@ -28,32 +28,42 @@ package de.unkrig.antology.filter;
 
 import java.io.FilterReader;
 import java.io.IOException;
-import java.io.PipedReader;
-import java.io.PipedWriter;
 import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.ProjectComponent;
 import org.apache.tools.ant.filters.ChainableReader;
 import org.apache.tools.ant.filters.util.ChainReaderHelper;
+import org.apache.tools.ant.property.LocalProperties;
+import org.apache.tools.ant.property.LocalPropertyStack;
 import org.apache.tools.ant.types.FilterChain;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.util.ReaderInputStream;
 
+import de.unkrig.antology.util.CharPipe;
+import de.unkrig.antology.util.CharPipe.Overflow;
 import de.unkrig.antology.util.Compat;
+import de.unkrig.antology.util.Logging;
+import de.unkrig.antology.util.SharedExecutor;
 import de.unkrig.commons.io.IoUtil;
 import de.unkrig.commons.io.Readers;
 import de.unkrig.commons.io.WyeReader;
-import de.unkrig.commons.nullanalysis.NotNull;
 import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
 
 /**
- * Passes data through unmodified, and re-uses it for some other purpose.
+ * Passes data through unmodified, and re-uses it for some other purposes.
  * <p>
- *   The following purposes are implemented:
+ *   The following purposes are implemented, and can be combined freely:
  * </p>
  * <ul>
  *   <li>Copying the data to STDOUT</li>
@@ -66,14 +76,10 @@ import de.unkrig.commons.nullanalysis.NotNullByDefault;
  *   The data may optionally be piped through another filter chain before it is processed.
  * </p>
  * <p>
- *   The following attributes and subelements are mutually exclusive:
+ *   The data is passed to the sinks through one bounded buffer, which all sinks share (see {@link
+ *   #setBufferSize(int)} and {@link #setOverflow(Overflow)}), and each sink consumes the data in a pooled background
+ *   thread (see {@link #setExecutor(String)}).
  * </p>
- * <ul>
- *   <li>{@link #setStdout(boolean)}</li>
- *   <li>{@link #addConfiguredProperties(PropertiesSink)}</li>
- *   <li>{@link #setTofile(Resource)}</li>
- *   <li>{@link #setProperty(String)}</li>
- * </ul>
  */
 @NotNullByDefault(false) public
 class TeeFilter extends ProjectComponent implements ChainableReader {
@@ -83,58 +89,121 @@ class TeeFilter extends ProjectComponent implements ChainableReader {
     @Override public Reader
     chain(final Reader reader) {
 
-        // Create a pipe.
-        final PipedWriter pipedWriter = new PipedWriter();
-        PipedReader       pipedReader;
-        try {
-            pipedReader = new PipedReader(pipedWriter);
-        } catch (IOException ioe) {
-            throw new BuildException(ioe);
-        }
+        List<Sink> sinks = this.sinks;
+        if (sinks.isEmpty()) return reader;
+
+        // Create a pipe with one read end per sink.
+        int            chunkSize  = Math.max(1, Math.min(TeeFilter.MAX_CHUNK_SIZE, this.bufferSize / 4));
+        int            chunkCount = Math.max(2, this.bufferSize / chunkSize);
+        final CharPipe pipe       = new CharPipe(chunkSize, chunkCount, sinks.size(), this.overflow);
 
         // Tee into the pipe.
-        final Reader wyeReader = new WyeReader(reader, pipedWriter);
-
-        // Wrap the read end of the pipe into the configured filter chains.
-        final Reader reader2;
-        {
-            ChainReaderHelper crh = new ChainReaderHelper();
-            crh.setPrimaryReader(pipedReader);
-            crh.setFilterChains(this.filterChains);
-            crh.setProject(this.getProject());
-            reader2 = Compat.getAssembledReader(crh);
-        }
+        final Reader wyeReader = new WyeReader(reader, pipe.writer());
+
+        // Notice: This also wraps the project's build listeners (iff not yet done), which must not happen
+        // concurrently in the background threads.
+        final Project project       = this.getProject();
+        final String  messagePrefix = Logging.getLogMessagePrefix(project);
+        Logging.setLogMessagePrefix(project, messagePrefix);
+
+        // The sinks (e.g. "property=...") must see the local properties of this thread, like a child thread would.
+        final LocalProperties    localProperties    = LocalProperties.get(project);
+        final LocalPropertyStack localPropertyStack = localProperties.get();
+
+        // Submit one background job per sink that reads the pipe (through the filter chains) into the sink.
+        final SharedExecutor executor = SharedExecutor.get(project, this.executor);
+        final Future<?>[]    jobs     = new Future<?>[sinks.size()];
+        for (int i = 0; i < jobs.length; i++) {
+            final Sink   sink       = sinks.get(i);
+            final Reader pipeReader = pipe.reader(i);
+
+            // Wrap the read end of the pipe into the configured filter chains.
+            final Reader reader2;
+            {
+                ChainReaderHelper crh = new ChainReaderHelper();
+                crh.setPrimaryReader(pipeReader);
+                crh.setFilterChains(this.filterChains);
+                crh.setProject(this.getProject());
+                reader2 = Compat.getAssembledReader(crh);
+            }
 
-        // Start a background thread that reads the the pipe (through the filter chains) into the sink.
-        final Thread thread = new Thread() {
+            jobs[i] = executor.submit(new Callable<Void>() {
 
-            @Override public void
-            run() {
-                try {
-                    TeeFilter.this.sink.readAll(reader2);
-                } catch (IOException ioe) {
-                    throw new BuildException(ioe);
+                @Override @Nullable public Void
+                call() throws IOException {
+
+                    // The pooled thread may have been used by a different task before.
+                    Logging.setLogMessagePrefix(project, messagePrefix);
+                    localProperties.set(localPropertyStack);
+
+                    try {
+                        sink.readAll(reader2);
+                    } finally {
+                        localProperties.remove();
+
+                        // Iff the sink did not consume all the data, then this causes the pipe to discard the rest
+                        // (instead of blocking the primary reader forever).
+                        try { pipeReader.close(); } catch (IOException ioe) {}
+                    }
+                    return null;
                 }
-            }
-        };
-        thread.start();
+            });
+        }
 
-        // Take care that the background thread is JOINed when the reader is closed.
+        // Take care that the background jobs are awaited on end-of-input or when the reader is closed. (Some tasks,
+        // e.g. <loadresource>, never close the reader.)
         return new FilterReader(wyeReader) {
 
+            private boolean ended;
+
+            @Override public int
+            read() throws IOException {
+                int c = super.read();
+                if (c == -1) this.end();
+                return c;
+            }
+
+            @Override public int
+            read(char[] cbuf, int off, int len) throws IOException {
+                int n = super.read(cbuf, off, len);
+                if (n == -1) this.end();
+                return n;
+            }
+
             @Override public void
             close() throws IOException {
                 super.close();
+                this.end();
+            }
+
+            private void
+            end() throws IOException {
+                if (this.ended) return;
+                this.ended = true;
 
                 // Close the write end of the pipe.
-                pipedWriter.close();
+                pipe.writer().close();
 
-                // The background thread should terminate quickly because the read end of the pipe will signal
+                // The background jobs should terminate quickly because the read ends of the pipe will signal
                 // 'end-of-input'.
                 try {
-                    thread.join();
+                    for (Future<?> job : jobs) job.get();
                 } catch (InterruptedException ie) {
                     throw new BuildException(ie);
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof BuildException) throw (BuildException) cause;
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new BuildException(cause);
+                }
+
+                TeeFilter.this.log(executor.toString(), Project.MSG_DEBUG);
+
+                if (pipe.isDropped()) {
+                    TeeFilter.this.log(
+                        "Buffer overflow; at least one sink received only part of the data",
+                        Project.MSG_WARN
+                    );
                 }
             }
         };
@@ -144,23 +213,26 @@ class TeeFilter extends ProjectComponent implements ChainableReader {
 
     /** If {@code true}, then the contents is copied to STDOUT. */
     public void
-    setStdout(boolean value) { if (value) this.setSink(TeeFilter.STDOUT_SINK); }
+    setStdout(boolean value) { if (value) this.addSink(TeeFilter.STDOUT_SINK); }
 
     /**
      * If configured, then the contents is read into a set of properties.
      * Extends the <a href="https://ant.apache.org/manual/Tasks/property.html">{@code <property>} task</a>.
      */
     public void
-    addConfiguredProperties(PropertiesSink propertiesSink) { this.setSink(propertiesSink); }
+    addConfiguredProperties(PropertiesSink propertiesSink) {
+        propertiesSink.delegate.setProject(this.getProject());
+        this.addSink(propertiesSink);
+    }
 
     /** If {@code true}, then the contents is copied into the given resource. */
     public void
-    setTofile(final Resource resource) { this.setSink(new ResourceSink(resource)); }
+    setTofile(final Resource resource) { this.addSink(new ResourceSink(resource)); }
 
     /** If {@code true}, then the contents is stored in the named property. */
     public void
     setProperty(final String propertyName) {
-        this.setSink(new Sink() {
+        this.addSink(new Sink() {
 
             @Override public void
             readAll(Reader in) throws IOException {
@@ -178,6 +250,54 @@ class TeeFilter extends ProjectComponent implements ChainableReader {
 
     private final Vector<FilterChain> filterChains = new Vector<FilterChain>();
 
+    /**
+     * The capacity, in characters, of the buffer between the data stream and the sinks.
+     *
+     * @ant.defaultValue {@value #DEFAULT_BUFFER_SIZE}
+     */
+    public void
+    setBufferSize(int value) {
+        if (value < 1) throw new BuildException("Buffer size must be positive");
+        this.bufferSize = value;
+    }
+    private int bufferSize = TeeFilter.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * What to do when a sink does not keep up with the data stream and the buffer is full:
+     * <dl>
+     *   <dt>{@code BLOCK}</dt>
+     *   <dd>Wait until the slowest sink has consumed some data (the default).</dd>
+     *   <dt>{@code DROP}</dt>
+     *   <dd>Stop feeding the slowest sink, so it sees truncated data; a warning is logged.</dd>
+     *   <dt>{@code SPILL}</dt>
+     *   <dd>
+     *     Write the rest of the data to a temporary file, which the sinks read when the data stream is closed.
+     *   </dd>
+     * </dl>
+     */
+    public void
+    setOverflow(Overflow value) { this.overflow = value; }
+    private Overflow overflow = Overflow.BLOCK;
+
+    /**
+     * The name of the executor that runs the sinks. All tee filters with the same executor name share the same
+     * pool of threads, instead of creating new threads each time they are used. If the JVM supports virtual threads
+     * (JRE 21+), then the sinks execute in virtual threads instead.
+     *
+     * @ant.defaultValue {@value #DEFAULT_EXECUTOR}
+     */
+    public void
+    setExecutor(String value) { this.executor = value; }
+    private String executor = TeeFilter.DEFAULT_EXECUTOR;
+
+    /** (Must be public for ANTDOC.) */
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    /** (Must be public for ANTDOC.) */
+    public static final String DEFAULT_EXECUTOR = "tee";
+
+    private static final int MAX_CHUNK_SIZE = 4096;
+
     // ---------------------------------- IMPLEMENTATION -----------------------------------
 
     /** Something that consumes the character stream produced by a {@link Reader}. */
@@ -189,27 +309,13 @@ class TeeFilter extends ProjectComponent implements ChainableReader {
     }
 
     private void
-    setSink(@NotNull Sink sink) {
-
-        if (this.sink != TeeFilter.DEFAULT_SINK) {
-            throw new BuildException(
-                "Must configure at most one of 'tofile=\"...\"', 'property=\"...\"', "
-                + "'stdout=\"true\"' and '<properties>'"
-            );
-        }
-
-        this.sink = sink;
-    }
-
-    private static final Sink NULL_SINK = new Sink() { @Override public void readAll(Reader in) {} };
+    addSink(Sink sink) { this.sinks.add(sink); }
 
     private static final Sink STDOUT_SINK = new Sink() {
         @Override public void readAll(Reader in) throws IOException { IoUtil.copy(in, System.out); }
     };
 
-    private static final Sink DEFAULT_SINK = TeeFilter.NULL_SINK;
-
-    @NotNull private Sink sink = TeeFilter.DEFAULT_SINK;
+    private final List<Sink> sinks = new ArrayList<Sink>();
 
     /***/
     public static
@@ -26,19 +26,28 @@
 
 package de.unkrig.antology.task;
 
+import java.io.File;
 import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.ExitStatusException;
+import org.apache.tools.ant.Location;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.property.LocalProperties;
 import org.apache.tools.ant.taskdefs.MacroDef;
 import org.apache.tools.ant.taskdefs.MacroInstance;
 import org.apache.tools.ant.taskdefs.Sequential;
@@ -50,7 +59,12 @@ import org.apache.tools.ant.types.resources.URLProvider;
 
 import de.unkrig.antology.task.BreakTask.BreakException;
 import de.unkrig.antology.task.ContinueTask.ContinueException;
+import de.unkrig.antology.type.ResourceCollectionDelta;
 import de.unkrig.antology.util.Logging;
+import de.unkrig.antology.util.MacroTemplate;
+import de.unkrig.antology.util.Metrics;
+import de.unkrig.antology.util.RateEstimator;
+import de.unkrig.antology.util.Threads;
 import de.unkrig.commons.lang.ObjectUtil;
 import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.collections.IterableUtil;
@@ -129,6 +143,10 @@ import de.unkrig.commons.util.time.PointOfTime;
  *     </td>
  *   </tr>
  * </table>
+ * <p>
+ *   The same values can also be exported in machine-readable form, see {@link #setMetricsFile(File)} and {@link
+ *   #setMetricsPrefix(String)}.
+ * </p>
  */
 public
 class ForEach2Task extends Task {
@@ -138,11 +156,193 @@ class ForEach2Task extends Task {
     private
     interface PrePost {
 
-        /** Invoked BEFORE each element. */
-        void pre(Object element);
+        /**
+         * Invoked BEFORE each element.
+         *
+         * @return An opaque object that is passed to {@link #post(Object, Object)} for the same element
+         */
+        @Nullable Object pre(Object element);
+
+        /**
+         * Invoked AFTER each element; iff the iteration is executed by more than one thread, then the invocations for
+         * the various elements may be in a different order than the invocations of {@link #pre(Object)}.
+         */
+        void post(Object element, @Nullable Object preResult);
+    }
+
+    /**
+     * Executes the {@link #createSequential() &lt;sequential>} for one element.
+     */
+    private
+    interface Body {
+
+        /**
+         * @param paramValue The value for the {@link #setParam(String) param}, or {@code null} iff no param is
+         *                   configured
+         */
+        void execute(@Nullable String paramValue);
+    }
+
+    /**
+     * A group of consecutive elements which are processed by one iteration; see {@link #setBatchSize(int)}.
+     */
+    private static
+    class Batch extends ArrayList<Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        Batch(int capacity) { super(capacity); }
+    }
+
+    /**
+     * The tokens of a {@link #setList(String) list}, with the same semantics as a {@link java.util.StringTokenizer},
+     * i.e. any character of the {@link #setDelimiter(String) delimiter} separates tokens, and empty tokens are
+     * ignored.
+     * <p>
+     *   The elements are {@link Token}s, which refer to the original string, so iterating the list does not copy
+     *   the characters of the list. The number of tokens is only computed when {@link #size()} is invoked (which is
+     *   the case iff {@link #setMessage(String) message} is configured).
+     * </p>
+     */
+    private
+    class TokenList extends AbstractCollection<Token> {
+
+        private final String values;
+        private int          size = -1;
+
+        TokenList(String values) { this.values = values; }
+
+        @Override public Iterator<Token>
+        iterator() {
+
+            final String values    = this.values;
+            final String delimiter = ForEach2Task.this.delimiter;
+
+            return new Iterator<Token>() {
+
+                private int position = ForEach2Task.skipDelimiters(values, 0, delimiter);
+
+                @Override public boolean
+                hasNext() { return this.position < values.length(); }
+
+                @Override public Token
+                next() {
+
+                    int start = this.position;
+                    if (start >= values.length()) throw new NoSuchElementException();
+
+                    int end = ForEach2Task.skipNonDelimiters(values, start, delimiter);
+
+                    this.position = ForEach2Task.skipDelimiters(values, end, delimiter);
+
+                    return new Token(values, start, end);
+                }
+
+                @Override public void
+                remove() { throw new UnsupportedOperationException("remove"); }
+            };
+        }
+
+        @Override public int
+        size() {
+
+            if (this.size != -1) return this.size;
+
+            final String values    = this.values;
+            final String delimiter = ForEach2Task.this.delimiter;
+
+            int result = 0;
+            for (int i = ForEach2Task.skipDelimiters(values, 0, delimiter); i < values.length();) {
+                i = ForEach2Task.skipNonDelimiters(values, i, delimiter);
+                i = ForEach2Task.skipDelimiters(values, i, delimiter);
+                result++;
+            }
 
-        /** Invoked AFTER each element. */
-        void post(Object element);
+            return (this.size = result);
+        }
+    }
+
+    /**
+     * A region of a string, which is converted into a {@link String} only when required.
+     */
+    private static final
+    class Token implements CharSequence {
+
+        private final String s;
+        private final int    start, end;
+
+        Token(String s, int start, int end) {
+            this.s     = s;
+            this.start = start;
+            this.end   = end;
+        }
+
+        @Override public int
+        length() { return this.end - this.start; }
+
+        @Override public char
+        charAt(int index) { return this.s.charAt(this.start + index); }
+
+        @Override public CharSequence
+        subSequence(int start, int end) { return new Token(this.s, this.start + start, this.start + end); }
+
+        /**
+         * @return This token, with leading and trailing whitespace removed, like {@link String#trim()}
+         */
+        Token
+        trim() {
+            int start = this.start, end = this.end;
+            while (start < end && this.s.charAt(start) <= ' ') start++;
+            while (end > start && this.s.charAt(end - 1) <= ' ') end--;
+            return start == this.start && end == this.end ? this : new Token(this.s, start, end);
+        }
+
+        @Override public String
+        toString() { return this.s.substring(this.start, this.end); }
+    }
+
+    /**
+     * The state that {@link PrePost#pre(Object)} hands over to {@link PrePost#post(Object, Object)}.
+     */
+    private static
+    class IterationState {
+
+        final PointOfTime currentBeginning;
+        final String      originalMessagePrefix;
+
+        IterationState(PointOfTime currentBeginning, String originalMessagePrefix) {
+            this.currentBeginning      = currentBeginning;
+            this.originalMessagePrefix = originalMessagePrefix;
+        }
+    }
+
+    /**
+     * How the total quantity (the number of elements, or, for resource collections, the total of the sizes of the
+     * resources) is determined when {@link ForEach2Task#setMessage(String) message} is configured.
+     * <p>
+     *   Notice that a {@link ResourceCollectionDelta &lt;resourceCollectionDelta>} does not save its new state
+     *   when it is scanned for determining the total.
+     * </p>
+     */
+    public
+    enum Total {
+
+        /**
+         * Before the first iteration starts, by iterating the collection once up front. This is the most precise
+         * variant, but it delays the first iteration, and resource collections are scanned twice.
+         */
+        EAGER,
+
+        /**
+         * By a background thread, while the iterations are already running. The remaining quantity and the ETA are
+         * reported as soon as the background pass has completed.
+         */
+        BACKGROUND,
+
+        /**
+         * Not at all; the iterations start immediately, and the remaining quantity and the ETA are never reported.
+         */
+        NONE,
     }
 
     public
@@ -160,46 +360,55 @@ class ForEach2Task extends Task {
      */
     public static final boolean DEFAULT_TRIM = true;
 
+    /**
+     * The default value for the {@link #setThreads(int)} attribute.
+     */
+    public static final int DEFAULT_THREADS = 1;
+
+    /**
+     * The default value for the {@link #setBatchSize(int)} attribute.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    /**
+     * The default value for the {@link #setTotal(Total)} attribute.
+     */
+    public static final Total DEFAULT_TOTAL = Total.EAGER;
+
     @Nullable private String      param;
     private String                delimiter = ForEach2Task.DEFAULT_DELIMITER;
     private boolean               trim      = ForEach2Task.DEFAULT_TRIM;
     private Iterable<?>           iterable  = ForEach2Task.DEFAULT_ITERABLE;
     @Nullable private MacroDef    macroDef;
     private boolean               keepGoing;
+    private int                   threads   = ForEach2Task.DEFAULT_THREADS;
+    private boolean               virtualThreads;
+    private boolean               precompile;
+    private int                   batchSize      = ForEach2Task.DEFAULT_BATCH_SIZE;
+    private String                batchDelimiter = ForEach2Task.DEFAULT_DELIMITER;
     @Nullable private String      message;
     @Nullable private String      quantityUnit;
     private boolean               showEta;
+    private Total                 total     = ForEach2Task.DEFAULT_TOTAL;
     @Nullable private PointOfTime currentBeginning;
     @Nullable private Duration    currentDuration;
     @Nullable private Long        currentQuantity;
     @Nullable private PointOfTime remainingBeginning;
+    @Nullable private String      label;
+    @Nullable private File        metricsFile;
+    private Metrics.Format        metricsFormat = ThroughputTask.DEFAULT_METRICS_FORMAT;
+    @Nullable private String      metricsPrefix;
+    private RateEstimator.Kind    estimator       = ThroughputTask.DEFAULT_ESTIMATOR;
+    private int                   estimatorWindow = ThroughputTask.DEFAULT_ESTIMATOR_WINDOW;
+
+    /** The resource collection iff the elements to iterate are its resources. */
+    @Nullable private ResourceCollection resourceCollection;
 
     /**
      * The elements to iterate are the given list, split at the configured {@link #setDelimiter(String) delimiter}.
      */
     public void
-    setList(final String values) {
-        this.setIterable(new AbstractCollection<String>() {
-
-            @SuppressWarnings({ "unchecked", "rawtypes" }) @Override public Iterator<String>
-            iterator() { return (Iterator) this.getDelegate().iterator(); }
-
-            @Override public int
-            size() { return this.getDelegate().size(); }
-
-            private List<Object>
-            getDelegate() {
-                List<Object> result = this.delegate;
-                if (result == null) {
-                    this.delegate = (
-                        result = Collections.list(new StringTokenizer(values, ForEach2Task.this.delimiter))
-                    );
-                }
-                return result;
-            }
-            @Nullable List<Object> delegate;
-        });
-    }
+    setList(String values) { this.setIterable(new TokenList(values)); }
 
     /**
      * Separates the elements within the {@link #setList(String) list}.
@@ -237,6 +446,88 @@ class ForEach2Task extends Task {
     public void
     setKeepGoing(boolean value) { this.keepGoing = value; }
 
+    /**
+     * The number of threads that execute the iterations concurrently. Values greater than 1 fan out the iterations to
+     * a pool of that many worker threads; at most that many iterations are in progress at any time, so the elements
+     * are not read from the iteration source faster than they are processed.
+     * <p>
+     *   Each iteration executes in its own {@code <local>} property scope, so concurrent iterations do not see each
+     *   other's local properties. {@link BreakTask &lt;break>} stops the submission of further elements (iterations
+     *   that are already in progress are completed), and {@link ContinueTask &lt;continue>} terminates only the
+     *   current iteration. If an iteration fails and {@link #setKeepGoing(boolean) keepGoing} is not set, then no
+     *   more elements are submitted, and, after the running iterations have completed, the first failure is
+     *   re-thrown.
+     * </p>
+     * <p>
+     *   If {@link #setMessage(String) message} is configured, then elements may complete in a different order than
+     *   they were started; the "after" messages then report the rate and the ETA relative to the wall-clock time that
+     *   has elapsed since the iteration began.
+     * </p>
+     *
+     * @ant.defaultValue {@value #DEFAULT_THREADS}
+     */
+    public void
+    setThreads(int n) {
+        if (n < 1) throw new BuildException("'threads' must be 1 or greater");
+        this.threads = n;
+    }
+
+    /**
+     * Iff {@code true}, and the JVM supports virtual threads (Java 21+), then the {@link #setThreads(int) worker
+     * threads} are virtual threads; otherwise they are platform threads.
+     * <p>
+     *   Virtual threads that are blocked, e.g. in a {@link Retry2Task &lt;retry2>} that waits for its retry delay,
+     *   or in a {@code <sleep>} or a network operation, do not occupy an operating system thread. Thus, a high
+     *   number of {@link #setThreads(int) threads}, e.g. 1000, is cheap, as long as most of them are waiting. (In
+     *   contrast, each branch of a {@code <parallel>} task always occupies its own platform thread.)
+     * </p>
+     */
+    public void
+    setVirtualThreads(boolean value) { this.virtualThreads = value; }
+
+    /**
+     * Iff greater than 1, then the elements are grouped into batches of that many consecutive elements (the last batch
+     * may be smaller), and the {@link #createSequential() &lt;sequential>} is executed once per batch. The {@link
+     * #setParam(String) param} then reflects the elements of the batch, separated by the {@link
+     * #setBatchDelimiter(String) batch delimiter}.
+     * <p>
+     *   This is useful when the nested tasks have a high fixed cost per execution, e.g. {@code <exec>}, and can
+     *   process multiple elements at once.
+     * </p>
+     * <p>
+     *   Throughput reporting (see {@link #setMessage(String)}) still counts the individual elements (or bytes), not
+     *   the batches.
+     * </p>
+     *
+     * @ant.defaultValue {@value #DEFAULT_BATCH_SIZE}
+     */
+    public void
+    setBatchSize(int n) {
+        if (n < 1) throw new BuildException("'batchSize' must be 1 or greater");
+        this.batchSize = n;
+    }
+
+    /**
+     * Separates the elements of a batch in the value of the {@link #setParam(String) param}; relevant only iff {@link
+     * #setBatchSize(int) batchSize} is greater than 1.
+     *
+     * @ant.defaultValue {@value #DEFAULT_DELIMITER}
+     */
+    public void
+    setBatchDelimiter(String text) { this.batchDelimiter = text; }
+
+    /**
+     * Iff {@code true}, then the {@link #createSequential() &lt;sequential>} is analyzed only once, before the first
+     * iteration, and not on each iteration. This saves considerable time when the nested tasks are cheap, but the
+     * number of iterations is high.
+     * <p>
+     *   Notice that this does not change the semantics of the iteration; in particular, the nested tasks are still
+     *   configured (and their attributes {@code ${...}}-expanded) on each iteration.
+     * </p>
+     */
+    public void
+    setPrecompile(boolean value) { this.precompile = value; }
+
     /**
      * If set, then messages are logged before and after execution of the nested tasks (see the {@link ThroughputTask
      * &lt;throughput>} task).
@@ -269,6 +560,104 @@ class ForEach2Task extends Task {
     public void
     setShowEta(boolean value) { this.showEta = value; }
 
+    /**
+     * Configures, together with {@link #setMessage(String)}, how the total quantity of the iteration is determined,
+     * which is required for reporting the remaining quantity and the ETA.
+     * <p>
+     *   With the default ({@code EAGER}), the iteration source is walked completely before the first iteration
+     *   starts, which can take considerable time for large resource collections (e.g. a file set with many files).
+     *   {@code BACKGROUND} starts the iterations immediately, and computes the total in parallel; {@code NONE}
+     *   skips the computation of the total.
+     * </p>
+     * <p>
+     *   Only collections (e.g. {@link #setList(String) lists}, {@link #add(ResourceCollection) resource collections},
+     *   and {@link #addConfiguredKeysOf(MapElement) maps}) have a total quantity; for all other iteration sources,
+     *   this attribute is irrelevant.
+     * </p>
+     *
+     * @ant.defaultValue {@value #DEFAULT_TOTAL}
+     */
+    public void
+    setTotal(Total value) { this.total = value; }
+
+    /**
+     * Identifies this task in the metrics (see {@link #setMetricsFile(File)}); the labels of nested {@code
+     * <throughput>} and {@code <forEach2>} tasks are prefixed with this label and a slash.
+     *
+     * @ant.defaultValue The task name, i.e. {@code "forEach2"}
+     * @see              ThroughputTask#setLabel(String)
+     */
+    public void
+    setLabel(String text) { this.label = text; }
+
+    /**
+     * Configures, together with {@link #setMessage(String)}, how the "approx." and "ETA" fragments of the messages
+     * are computed:
+     * <dl>
+     *   <dt>{@code CUMULATIVE}</dt>
+     *   <dd>
+     *     From the total quantity and the total duration of all preceding iterations; thus, a slow first iteration
+     *     or a stall early in a long loop skews the estimate for the rest of the loop
+     *   </dd>
+     *   <dt>{@code EWMA}</dt>
+     *   <dd>
+     *     From exponentially weighted moving averages of the quantities and durations of the iterations; recent
+     *     iterations have more weight than older ones
+     *   </dd>
+     *   <dt>{@code WINDOW}</dt>
+     *   <dd>From the last {@link #setEstimatorWindow(int) N} iterations only</dd>
+     * </dl>
+     * <p>
+     *   When the iterations are executed {@link #setThreads(int) concurrently}, the duration of an iteration is the
+     *   time since the completion of the preceding iteration.
+     * </p>
+     *
+     * @ant.defaultValue {@value ThroughputTask#DEFAULT_ESTIMATOR}
+     */
+    public void
+    setEstimator(RateEstimator.Kind value) { this.estimator = value; }
+
+    /**
+     * The number of iterations that the {@code EWMA} and the {@code WINDOW} {@link
+     * #setEstimator(RateEstimator.Kind) estimators} take into account.
+     *
+     * @ant.defaultValue {@value ThroughputTask#DEFAULT_ESTIMATOR_WINDOW}
+     */
+    public void
+    setEstimatorWindow(int n) {
+        if (n < 1) throw new BuildException("'estimatorWindow' must be 1 or greater");
+        this.estimatorWindow = n;
+    }
+
+    /**
+     * Iff configured, then, after each iteration, the quantities, durations, rates and the ETA (see {@link
+     * Metrics#NAMES}) are appended to the given file, with event {@code "iteration"}, and with the current element.
+     * <p>
+     *   Notice that the metrics are also computed iff no {@link #setMessage(String) message} is configured.
+     * </p>
+     *
+     * @see ThroughputTask#setMetricsFile(File)
+     */
+    public void
+    setMetricsFile(File file) { this.metricsFile = file; }
+
+    /**
+     * The format of the {@link #setMetricsFile(File) metrics file}.
+     *
+     * @ant.defaultValue {@value ThroughputTask#DEFAULT_METRICS_FORMAT}
+     */
+    public void
+    setMetricsFormat(Metrics.Format value) { this.metricsFormat = value; }
+
+    /**
+     * Iff configured, then, after each iteration, the metrics are stored in properties named <var>prefix</var>{@code
+     * label}, <var>prefix</var>{@code currentRate}, and so forth (see {@link Metrics#NAMES}).
+     *
+     * @see ThroughputTask#setMetricsPrefix(String)
+     */
+    public void
+    setMetricsPrefix(String prefix) { this.metricsPrefix = prefix; }
+
     /**
      * Use the given point-of-time as the "time of the beginning of the current interval" instead of the current time.
      *
@@ -326,6 +715,7 @@ class ForEach2Task extends Task {
                 return resourceCollection.size();
             }
         });
+        this.resourceCollection = resourceCollection;
     }
 
     /** The elements to iterate are the <em>keys</em> of a {@link Map java.util.Map}. */
@@ -379,210 +769,461 @@ class ForEach2Task extends Task {
     @Override public void
     execute() {
 
-        MacroDef macroDef = this.macroDef;
+        final MacroDef macroDef = this.macroDef;
         if (macroDef == null) throw new BuildException("Subelement '<sequential>' is not configured");
 
+        // With more than one thread, the next resource is requested before the preceding ones are processed, and
+        // thus a checkpoint would cover resources that were not yet processed.
+        ResourceCollection resourceCollection = this.resourceCollection;
+        if (
+            this.threads > 1
+            && resourceCollection instanceof ResourceCollectionDelta
+            && ((ResourceCollectionDelta) resourceCollection).getCheckpointInterval() > 0
+        ) {
+            throw new BuildException(
+                "'threads=\"...\"' greater than 1 is incompatible with a <resourceCollectionDelta> with a "
+                + "'checkpointInterval=\"...\"'"
+            );
+        }
+
         if (macroDef.getAttributes().isEmpty() && this.param != null) {
             MacroDef.Attribute attribute = new MacroDef.Attribute();
             attribute.setName(this.param);
             macroDef.addConfiguredAttribute(attribute);
         }
 
-        final String message = this.message;
+        Body body;
+        if (this.precompile) {
+            final MacroTemplate macroTemplate = MacroTemplate.compile(macroDef, this.param);
+            body = new Body() {
+
+                @Override public void
+                execute(@Nullable String paramValue) {
+                    macroTemplate.execute(
+                        ForEach2Task.this.getProject(),
+                        ForEach2Task.this.getOwningTarget(),
+                        Location.UNKNOWN_LOCATION,         // Like the MacroInstance (see below).
+                        paramValue
+                    );
+                }
+            };
+        } else {
+            body = new Body() {
+
+                @Override public void
+                execute(@Nullable String paramValue) {
+
+                    MacroInstance instance = new MacroInstance();
+                    instance.setProject(ForEach2Task.this.getProject());
+                    instance.setOwningTarget(ForEach2Task.this.getOwningTarget());
+                    instance.setMacroDef(macroDef);
+
+                    String param = ForEach2Task.this.param;
+                    if (param != null && paramValue != null) {
+                        instance.setDynamicAttribute(param.toLowerCase(), paramValue);
+                    }
+
+                    instance.execute();
+                }
+            };
+        }
+
+        final String       message = this.message;
+        final Metrics.Sink sink    = Metrics.sink(
+            this.getProject(),
+            this.metricsFile,
+            this.metricsFormat,
+            this.metricsPrefix
+        );
+
+        final String originalLabel = Metrics.getLabel(this.getProject());
+        final String label         = Metrics.subLabel(originalLabel, ObjectUtil.or(this.label, this.getTaskName()));
 
-        PrePost prePost;
-        if (message == null) {
+        PrePost          prePost;
+        @Nullable Thread totalCalculator = null;
+        if (message == null && sink == null) {
             prePost = new PrePost() {
-                @Override public void pre(Object element)  {}
-                @Override public void post(Object element) {}
+                @Override @Nullable public Object pre(Object element)                         { return null; }
+                @Override public void             post(Object element, @Nullable Object preResult) {}
             };
         } else {
 
             // Prepare throughput reporting.
-            final long    totalQuantity; // -1 == unknown
-            final boolean elementsAreResources;
+            final AtomicLong totalQuantity = new AtomicLong(-1); // -1 == unknown
+            final boolean    elementsAreResources = (
+                this.iterable instanceof Collection
+                && this.resourceCollection != null
+            );
 
-            if (this.iterable instanceof Collection) {
+            if (this.iterable instanceof Collection && this.total == Total.EAGER) {
 
-                Iterator<?> it = this.iterable.iterator();
-                if (it.hasNext() && it.next() instanceof Resource) {
+                if (elementsAreResources) {
                     long totalSize = 0;
-                    for (Object element : this.iterable) {
+                    for (Object element : this.totalIterable()) {
                         totalSize += ((Resource) element).getSize();
                     }
-                    totalQuantity        = totalSize;
-                    elementsAreResources = true;
+                    totalQuantity.set(totalSize);
                 } else {
-                    totalQuantity        = ((Collection<?>) this.iterable).size();
-                    elementsAreResources = false;
+                    totalQuantity.set(((Collection<?>) this.iterable).size());
                 }
-            } else {
-                totalQuantity        = -1;
-                elementsAreResources = false;
+            } else
+            if (this.iterable instanceof Collection && this.total == Total.BACKGROUND) {
+                totalCalculator = this.startTotalCalculator(elementsAreResources, totalQuantity);
             }
 
             final String quantityUnit = ObjectUtil.or(this.quantityUnit, elementsAreResources ? "bytes" : "elements");
 
-            // Iteration state.
-            final long[]     previousQuantity = new long[1];
-            final Duration[] previousDuration = { new Duration(0) };
+            // Iteration state; guarded by "previousQuantity", because with "threads > 1" the iterations are
+            // executed concurrently.
+            final long[]        previousQuantity   = new long[1];
+            final Duration[]    previousDuration   = { new Duration(0) };
+            final PointOfTime   iterationBeginning = new PointOfTime();
+            final boolean       concurrent         = this.threads > 1;
+            final PointOfTime[] lastCompletion     = { iterationBeginning };
 
-            prePost = new PrePost() {
+            // With the CUMULATIVE estimator, the compose methods compute the rate from the previous and current
+            // quantities and durations.
+            final RateEstimator estimator = RateEstimator.newInstance(this.estimator, this.estimatorWindow);
 
-                @Nullable private PointOfTime currentBeginning;
-                @Nullable private String      originalMessagePrefix;
+            prePost = new PrePost() {
 
-                @Override public void
+                @Override @Nullable public Object
                 pre(Object element) {
 
-                    String message2 = message;
-                    if (ForEach2Task.this.param != null) {
+                    PointOfTime currentBeginning = ObjectUtil.or(ForEach2Task.this.currentBeginning, new PointOfTime());
 
-                        // 'PropertyResource.toString()' (created by 'PropertySet', a.k.a. '<propertyset>'), and maybe
-                        // other 'Resource's return 'this.getValue()', but we want 'this.getName()'.
-                        String
-                        token = element instanceof Resource ? ((Resource) element).getName() : element.toString();
+                    String originalMessagePrefix = Logging.getLogMessagePrefix(ForEach2Task.this.getProject());
 
-                        message2 = message.replace("@{" + ForEach2Task.this.param + "}", token);
+                    if (message == null) return new IterationState(currentBeginning, originalMessagePrefix);
+
+                    String message2 = message;
+                    if (ForEach2Task.this.param != null) {
+                        message2 = message.replace(
+                            "@{" + ForEach2Task.this.param + "}",
+                            ForEach2Task.this.nameOf(element)
+                        );
                     }
 
                     long currentQuantity = ForEach2Task.this.quantityOfElement(element, elementsAreResources);
 
-                    PointOfTime currentBeginning = (
-                        this.currentBeginning = ObjectUtil.or(ForEach2Task.this.currentBeginning, new PointOfTime())
-                    );
+                    synchronized (previousQuantity) {
+
+                        long   tq                = totalQuantity.get();
+                        Double remainingQuantity = (
+                            tq == -1
+                            ? null
+                            : (double) (tq - previousQuantity[0] - currentQuantity)
+                        );
+
+                        // When the iterations are executed concurrently, then the estimated rate is the overall
+                        // rate, and not the rate of one iteration.
+                        Double secondsPerUnit = estimator == null || concurrent ? null : estimator.secondsPerUnit();
+
+                        ForEach2Task.this.log(ThroughputTask.composeBeforeMessage(
+                            message2,                     // message
+                            (double) previousQuantity[0], // previousQuantity
+                            previousDuration[0],          // previousDuration
+                            (double) currentQuantity,     // currentQuantity
+                            currentBeginning,             // currentBeginning
+                            remainingQuantity,            // remainingQuantity
+                            ForEach2Task.this.showEta,    // showEta
+                            quantityUnit,                 // quantityUnit
+                            secondsPerUnit                // secondsPerUnit
+                        ));
+                    }
 
-                    Double remainingQuantity = (
-                        totalQuantity == -1
-                        ? null
-                        : (double) (totalQuantity - previousQuantity[0] - currentQuantity)
-                    );
+                    Logging.setLogMessagePrefix(ForEach2Task.this.getProject(), originalMessagePrefix + "| ");
 
-                    ForEach2Task.this.log(ThroughputTask.composeBeforeMessage(
-                        message2,                     // message
-                        (double) previousQuantity[0], // previousQuantity
-                        previousDuration[0],          // previousDuration
-                        (double) currentQuantity,     // currentQuantity
-                        currentBeginning,             // currentBeginning
-                        remainingQuantity,            // remainingQuantity
-                        ForEach2Task.this.showEta,    // showEta
-                        quantityUnit                  // quantityUnit
-                    ));
-
-                    {
-                        String currentMessagePrefix = Logging.getLogMessagePrefix(ForEach2Task.this.getProject());
-                        this.originalMessagePrefix = currentMessagePrefix;
-                        Logging.setLogMessagePrefix(ForEach2Task.this.getProject(), currentMessagePrefix + "| ");
-                    }
+                    return new IterationState(currentBeginning, originalMessagePrefix);
                 }
 
                 @Override public void
-                post(Object element) {
+                post(Object element, @Nullable Object preResult) {
 
-                    {
-                        String originalMessagePrefix = this.originalMessagePrefix;
-                        assert originalMessagePrefix != null;
-                        Logging.setLogMessagePrefix(ForEach2Task.this.getProject(), originalMessagePrefix);
-                    }
+                    IterationState iterationState = (IterationState) preResult;
+                    assert iterationState != null;
+
+                    PointOfTime currentBeginning = iterationState.currentBeginning;
+
+                    Logging.setLogMessagePrefix(ForEach2Task.this.getProject(), iterationState.originalMessagePrefix);
 
                     PointOfTime remainingBeginning = ForEach2Task.this.remainingBeginning;
                     if (remainingBeginning == null) remainingBeginning = new PointOfTime();
 
                     long currentQuantity = ForEach2Task.this.quantityOfElement(element, elementsAreResources);
 
-                    PointOfTime currentBeginning = this.currentBeginning;
-                    assert currentBeginning != null;
-
                     Duration currentDuration = ObjectUtil.or(
                         ForEach2Task.this.currentDuration,
                         remainingBeginning.subtract(currentBeginning)
                     );
 
-                    Double remainingQuantity = (
-                        totalQuantity == -1
-                        ? null
-                        : (double) (totalQuantity - previousQuantity[0] - currentQuantity)
-                    );
-
-                    ForEach2Task.this.log(ThroughputTask.composeAfterMessage(
-                        (double) previousQuantity[0],  // previousQuantity
-                        previousDuration[0],           // previousDuration
-                        (double) currentQuantity,      // currentQuantity
-                        currentDuration,               // currentDuration
-                        remainingQuantity,             // remainingQuantity
-                        remainingBeginning,            // remainingBeginning
-                        ForEach2Task.this.showEta,     // showEta
-                        quantityUnit                   // quantityUnit
-                    ));
-
-                    previousDuration[0] = previousDuration[0].add(currentDuration);
-                    previousQuantity[0] += currentQuantity;
+                    synchronized (previousQuantity) {
+
+                        long   tq                = totalQuantity.get();
+                        Double remainingQuantity = (
+                            tq == -1
+                            ? null
+                            : (double) (tq - previousQuantity[0] - currentQuantity)
+                        );
+
+                        // When the iterations are executed concurrently, then the sum of the iteration durations is
+                        // much greater than the elapsed time; thus compute the cumulated rate and the ETA from the
+                        // wall-clock time since the beginning of the iteration.
+                        Duration previousDuration2 = previousDuration[0];
+                        if (concurrent) {
+                            long ms = (
+                                remainingBeginning.subtract(iterationBeginning).milliseconds()
+                                - currentDuration.milliseconds()
+                            );
+                            previousDuration2 = new Duration(ms < 0 ? 0 : ms);
+                        }
+
+                        Double secondsPerUnit = null;
+                        if (estimator != null) {
+                            estimator.sample(
+                                currentQuantity,
+                                concurrent ? remainingBeginning.subtract(lastCompletion[0]) : currentDuration
+                            );
+                            lastCompletion[0] = remainingBeginning;
+                            secondsPerUnit    = estimator.secondsPerUnit();
+                        }
+
+                        if (message != null) {
+                            ForEach2Task.this.log(ThroughputTask.composeAfterMessage(
+                                (double) previousQuantity[0],  // previousQuantity
+                                previousDuration2,             // previousDuration
+                                (double) currentQuantity,      // currentQuantity
+                                currentDuration,               // currentDuration
+                                remainingQuantity,             // remainingQuantity
+                                remainingBeginning,            // remainingBeginning
+                                ForEach2Task.this.showEta,     // showEta
+                                quantityUnit,                  // quantityUnit
+                                secondsPerUnit                 // secondsPerUnit
+                            ));
+                        }
+
+                        if (sink != null) {
+                            Map<String, Object> metrics = ThroughputTask.composeMetrics(
+                                (double) previousQuantity[0],
+                                previousDuration2,
+                                (double) currentQuantity,
+                                currentDuration,
+                                remainingQuantity,
+                                remainingBeginning,
+                                quantityUnit,
+                                secondsPerUnit
+                            );
+                            metrics.put("label",   label);
+                            metrics.put("event",   "iteration");
+                            metrics.put("element", ForEach2Task.this.nameOf(element));
+                            sink.write(metrics);
+                        }
+
+                        previousDuration[0] = previousDuration[0].add(currentDuration);
+                        previousQuantity[0] += currentQuantity;
+                    }
                 }
             };
         }
 
-        int errorCount = 0;
+        Iterable<?> iterable = this.batchSize == 1 ? this.iterable : this.batches(this.iterable, this.batchSize);
 
-        ITERATION:
-        for (Object element : this.iterable) {
-            assert element != null;
+        AtomicInteger errorCount = new AtomicInteger();
 
-            if (this.trim && element instanceof String) element = ((String) element).trim();
+        try {
+            Metrics.setLabel(this.getProject(), label);
+            if (this.threads == 1) {
+                for (Object element : iterable) {
+                    assert element != null;
+                    if (this.executeIteration(element, body, prePost, errorCount)) break;
+                }
+            } else {
+                this.executeConcurrently(iterable, body, prePost, errorCount);
+            }
+        } finally {
 
-            prePost.pre(element);
+            // The total is no longer of interest.
+            if (totalCalculator != null) totalCalculator.interrupt();
 
-            MacroInstance instance = new MacroInstance();
-            instance.setProject(this.getProject());
-            instance.setOwningTarget(this.getOwningTarget());
-            instance.setMacroDef(macroDef);
+            Metrics.setLabel(this.getProject(), originalLabel);
+        }
 
-            {
-                String param = this.param;
-                if (param != null) {
+        if (errorCount.get() > 0) {
+            throw new BuildException(errorCount + " iterations failed.");
+        }
+    }
 
-                    // 'PropertyResource.toString()' (created by 'PropertySet', a.k.a. '<propertyset>'), and maybe other
-                    // 'Resource's return 'this.getValue()', but we want 'this.getName()'.
-                    String token = (
-                        element instanceof FileProvider ? ((FileProvider) element).getFile().getPath() :
-                        element instanceof URLProvider  ? ((URLProvider)  element).getURL().toString() :
-                        element instanceof Resource     ? ((Resource)     element).getName()           :
-                        element.toString()
-                    );
+    /**
+     * Starts a daemon thread that walks the iteration source and eventually stores the total quantity in the given
+     * {@code result}. The thread terminates early when it is interrupted.
+     */
+    private Thread
+    startTotalCalculator(final boolean elementsAreResources, final AtomicLong result) {
+
+        final Iterable<?> iterable = this.totalIterable();
+
+        Thread thread = new Thread("forEach2-total") {
+
+            @Override public void
+            run() {
+                try {
+                    long total = 0;
+                    if (elementsAreResources) {
+                        for (Object element : iterable) {
+                            if (this.isInterrupted()) return;
+                            total += ((Resource) element).getSize();
+                        }
+                    } else {
+                        total = ((Collection<?>) iterable).size();
+                    }
+                    result.set(total);
+                    ForEach2Task.this.log("Total quantity is " + total, Project.MSG_VERBOSE);
+                } catch (RuntimeException re) {
 
-                    instance.setDynamicAttribute(param.toLowerCase(), token);
+                    // Computing the total is only a "nice-to-have", so don't fail the iteration.
+                    ForEach2Task.this.log("Computing the total quantity failed: " + re, Project.MSG_VERBOSE);
                 }
             }
+        };
+        thread.setDaemon(true);
+        thread.start();
+
+        return thread;
+    }
 
-            try {
-                instance.execute();
-            } catch (BreakException be) {
-                break ITERATION;
-            } catch (ContinueException ce) {
-                continue ITERATION;
-            } catch (BuildException be) {
-                if (BreakException.isWrappedBy(be)) break ITERATION;
-                if (ContinueException.isWrappedBy(be)) continue ITERATION;
+    /**
+     * @return The elements to walk for determining the total quantity; for a {@link ResourceCollectionDelta}, a dry
+     *         run, so that walking it does not save its new state
+     */
+    private Iterable<?>
+    totalIterable() {
 
-                int status = be instanceof ExitStatusException ? ((ExitStatusException) be).getStatus() : -1;
-                if (status != 0) {
+        final ResourceCollection resourceCollection = this.resourceCollection;
+        if (!(resourceCollection instanceof ResourceCollectionDelta)) return this.iterable;
 
-                    if (!this.keepGoing) throw be;
+        return new Iterable<Resource>() {
 
-                    // 'PropertyResource.toString()' (created by 'PropertySet', a.k.a. '<propertyset>'), and maybe other
-                    // 'Resource's return 'this.getValue()', but we want 'this.getName()'.
-                    String token = element instanceof Resource ? ((Resource) element).getName() : element.toString();
+            @Override public Iterator<Resource>
+            iterator() { return ((ResourceCollectionDelta) resourceCollection).iterator(true); }
+        };
+    }
 
-                    this.log(token + ": " + be.getMessage(), Project.MSG_ERR);
-                    errorCount++;
+    /**
+     * Executes the iterations in a pool of {@link #setThreads(int)} worker threads.
+     */
+    private void
+    executeConcurrently(
+        Iterable<?>         iterable,
+        final Body          body,
+        final PrePost       prePost,
+        final AtomicInteger errorCount
+    ) {
+
+        final Project         project         = this.getProject();
+        final LocalProperties localProperties = LocalProperties.get(project);
+
+        // Notice: This also wraps the project's build listeners (iff not yet done), which must not happen
+        // concurrently in the worker threads.
+        final String messagePrefix = Logging.getLogMessagePrefix(project);
+        Logging.setLogMessagePrefix(project, messagePrefix);
+        final String label = Metrics.getLabel(project);
+
+        final int                             threads   = this.threads;
+        final Semaphore                       slots     = new Semaphore(threads);
+        final AtomicBoolean                   terminate = new AtomicBoolean();
+        final AtomicReference<BuildException> failure   = new AtomicReference<BuildException>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(
+            threads,
+            Threads.newThreadFactory("forEach2-", this.virtualThreads)
+        );
+        try {
+            for (final Object element : iterable) {
+                assert element != null;
+
+                // Wait until one of the workers is available, so that no more elements are read from the iterable
+                // than are processed.
+                slots.acquireUninterruptibly();
+                if (terminate.get()) {
+                    slots.release();
+                    break;
                 }
-            } finally {
-                prePost.post(element);
+
+                executorService.execute(new Runnable() {
+
+                    @Override public void
+                    run() {
+                        try {
+
+                            // Give this worker thread its own local property stack.
+                            localProperties.copy();
+                            Logging.setLogMessagePrefix(project, messagePrefix);
+                            Metrics.setLabel(project, label);
+
+                            if (ForEach2Task.this.executeIteration(element, body, prePost, errorCount)) {
+                                terminate.set(true);
+                            }
+                        } catch (BuildException be) {
+                            failure.compareAndSet(null, be);
+                            terminate.set(true);
+                        } catch (RuntimeException re) {
+                            failure.compareAndSet(null, new BuildException(re));
+                            terminate.set(true);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
             }
+
+            // Wait until all iterations have completed.
+            slots.acquireUninterruptibly(threads);
+            slots.release(threads);
+        } finally {
+            executorService.shutdown();
         }
 
-        if (errorCount > 0) {
-            throw new BuildException(errorCount + " iterations failed.");
+        BuildException be = failure.get();
+        if (be != null) throw be;
+    }
+
+    /**
+     * Executes the {@link #createSequential() &lt;sequential>} for one element.
+     *
+     * @return Whether the iteration should be terminated, i.e. whether a {@link BreakTask &lt;break>} was executed
+     */
+    private boolean
+    executeIteration(Object element, Body body, PrePost prePost, AtomicInteger errorCount) {
+
+        if (this.trim) element = ForEach2Task.trim(element);
+
+        Object preResult = prePost.pre(element);
+
+        String paramValue = this.param == null ? null : this.paramValueOf(element);
+
+        try {
+            body.execute(paramValue);
+        } catch (BreakException be) {
+            return true;
+        } catch (ContinueException ce) {
+            return false;
+        } catch (BuildException be) {
+            if (BreakException.isWrappedBy(be)) return true;
+            if (ContinueException.isWrappedBy(be)) return false;
+
+            int status = be instanceof ExitStatusException ? ((ExitStatusException) be).getStatus() : -1;
+            if (status != 0) {
+
+                if (!this.keepGoing) throw be;
+
+                this.log(this.nameOf(element) + ": " + be.getMessage(), Project.MSG_ERR);
+                errorCount.incrementAndGet();
+            }
+        } finally {
+            prePost.post(element, preResult);
         }
+
+        return false;
     }
 
     private void
@@ -598,9 +1239,120 @@ class ForEach2Task extends Task {
         this.iterable = iterable;
     }
 
+    /**
+     * Groups the elements of the <var>delegate</var> into {@link Batch}es of up to <var>batchSize</var> elements.
+     */
+    private Iterable<Batch>
+    batches(final Iterable<?> delegate, final int batchSize) {
+
+        return new Iterable<Batch>() {
+
+            @Override public Iterator<Batch>
+            iterator() {
+
+                final Iterator<?> it = delegate.iterator();
+
+                return new Iterator<Batch>() {
+
+                    @Override public boolean
+                    hasNext() { return it.hasNext(); }
+
+                    @Override public Batch
+                    next() {
+                        Batch result = new Batch(batchSize);
+                        do {
+                            Object element = it.next();
+                            if (ForEach2Task.this.trim) element = ForEach2Task.trim(element);
+                            result.add(element);
+                        } while (result.size() < batchSize && it.hasNext());
+                        return result;
+                    }
+
+                    @Override public void
+                    remove() { throw new UnsupportedOperationException("remove"); }
+                };
+            }
+        };
+    }
+
+    private static int
+    skipDelimiters(String s, int position, String delimiter) {
+        while (position < s.length() && delimiter.indexOf(s.charAt(position)) != -1) position++;
+        return position;
+    }
+
+    private static int
+    skipNonDelimiters(String s, int position, String delimiter) {
+        while (position < s.length() && delimiter.indexOf(s.charAt(position)) == -1) position++;
+        return position;
+    }
+
+    /**
+     * @return The <var>element</var>, with leading and trailing whitespace removed, iff it is a string
+     */
+    private static Object
+    trim(Object element) {
+        return (
+            element instanceof String ? ((String) element).trim() :
+            element instanceof Token  ? ((Token) element).trim()  :
+            element
+        );
+    }
+
+    /**
+     * @return The value for the {@link #setParam(String) param} for the given element
+     */
+    private String
+    paramValueOf(Object element) {
+
+        if (element instanceof Batch) {
+            StringBuilder sb = new StringBuilder();
+            for (Object e : (Batch) element) {
+                if (sb.length() > 0) sb.append(this.batchDelimiter);
+                sb.append(this.paramValueOf(e));
+            }
+            return sb.toString();
+        }
+
+        // 'PropertyResource.toString()' (created by 'PropertySet', a.k.a. '<propertyset>'), and maybe other
+        // 'Resource's return 'this.getValue()', but we want 'this.getName()'.
+        return (
+            element instanceof FileProvider ? ((FileProvider) element).getFile().getPath() :
+            element instanceof URLProvider  ? ((URLProvider)  element).getURL().toString() :
+            element instanceof Resource     ? ((Resource)     element).getName()           :
+            element.toString()
+        );
+    }
+
+    /**
+     * @return The text that designates the given element in log messages
+     */
+    private String
+    nameOf(Object element) {
+
+        if (element instanceof Batch) {
+            StringBuilder sb = new StringBuilder();
+            for (Object e : (Batch) element) {
+                if (sb.length() > 0) sb.append(this.batchDelimiter);
+                sb.append(this.nameOf(e));
+            }
+            return sb.toString();
+        }
+
+        // 'PropertyResource.toString()' (created by 'PropertySet', a.k.a. '<propertyset>'), and maybe other
+        // 'Resource's return 'this.getValue()', but we want 'this.getName()'.
+        return element instanceof Resource ? ((Resource) element).getName() : element.toString();
+    }
+
     private long
     quantityOfElement(Object element, final boolean elementIsResource) {
 
+        if (element instanceof Batch) {
+            long result = 0;
+            for (Object e : (Batch) element) result += this.quantityOfElement(e, elementIsResource);
+            return result;
+        }
+
         Long tmp = ForEach2Task.this.currentQuantity;
         return (
             tmp != null       ? tmp :
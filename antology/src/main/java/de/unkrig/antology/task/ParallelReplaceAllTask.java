@@ -0,0 +1,451 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.task;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+import de.unkrig.antology.filter.ReplaceAllFilter;
+import de.unkrig.antology.util.SharedExecutor;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Copies a file, and replaces all matches of regular expressions on the way, like
+ * <pre>
+ *   &lt;copy file="<var>file</var>" tofile="<var>tofile</var>">
+ *     &lt;filterchain>
+ *       &lt;replaceAll ... />
+ *     &lt;/filterchain>
+ *   &lt;/copy>
+ * </pre>
+ * <p>
+ *   , but much faster for large files: The input file is memory-mapped and split into chunks at line boundaries,
+ *   the replacements are executed on the chunks in parallel, and the results are written to the output file in
+ *   order.
+ * </p>
+ * <p>
+ *   Because the chunks are processed independently, matches never span <em>chunk</em> boundaries (which is a
+ *   difference to the {@code <replaceAll>} filter); thus, for patterns that can match line separators, the result
+ *   may depend on the {@link #setChunkSize(int) chunk size}. Iff the encoding is not ASCII-compatible (e.g. UTF-16),
+ *   then the input cannot be split safely, and is processed sequentially.
+ * </p>
+ * <p>
+ *   For the same reason, the patterns must not use the anchors <code>^</code>, <code>$</code>, <code>\A</code>,
+ *   <code>\G</code>, <code>\Z</code> and <code>\z</code> (which would match at the beginning and at the end of
+ *   each chunk); the task rejects such patterns. Lookbehinds and lookaheads do not see beyond the chunk, and in
+ *   replacement expressions, {@code m.start} is relative to the beginning of the chunk, not to the beginning of the
+ *   file.
+ * </p>
+ * <p>
+ *   Example:
+ * </p>
+ * <pre>
+ *   &lt;parallelReplaceAll file="audit.log" tofile="audit-sanitized.log" encoding="UTF-8">
+ *     &lt;replaceAll singlePass="true">
+ *       &lt;pattern pattern="password=\S+" replacementString="password=***" />
+ *       &lt;pattern pattern="\d{4}-\d{4}-\d{4}-\d{4}" replacementString="****-****-****-****" />
+ *     &lt;/replaceAll>
+ *   &lt;/parallelReplaceAll>
+ * </pre>
+ */
+public
+class ParallelReplaceAllTask extends Task {
+
+    /** (Must be public for ANTDOC.) */
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** (Must be public for ANTDOC.) */
+    public static final String DEFAULT_EXECUTOR = "parallelReplaceAll";
+
+    // ATTRIBUTE SETTERS
+
+    /**
+     * The file to read (mandatory).
+     */
+    public void
+    setFile(File value) { this.file = value; }
+    @Nullable private File file;
+
+    /**
+     * The file to write (mandatory). Must be different from {@link #setFile(File)}.
+     */
+    public void
+    setTofile(File value) { this.tofile = value; }
+    @Nullable private File tofile;
+
+    /**
+     * The encoding of the input file and the output file. Defaults to the "platform default encoding".
+     */
+    public void
+    setEncoding(String charsetName) { this.charset = Charset.forName(charsetName); }
+    private Charset charset = Charset.defaultCharset();
+
+    /**
+     * The approximate size, in bytes, of the chunks; each chunk extends to the end of the line. Each chunk that is
+     * being processed requires about as much heap memory as the size of its result, so the task requires about
+     * {@link #setThreads(int) threads} &times; <var>chunkSize</var> bytes of heap memory.
+     *
+     * @ant.defaultValue {@value #DEFAULT_CHUNK_SIZE}
+     */
+    public void
+    setChunkSize(int value) {
+        if (value < 1) throw new BuildException("Chunk size must be positive");
+        this.chunkSize = value;
+    }
+    private int chunkSize = ParallelReplaceAllTask.DEFAULT_CHUNK_SIZE;
+
+    /**
+     * The maximum number of chunks to process concurrently. Defaults to the number of available processors.
+     */
+    public void
+    setThreads(int value) {
+        if (value < 1) throw new BuildException("Thread count must be positive");
+        this.threads = value;
+    }
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The name of the executor that processes the chunks; see {@link
+     * de.unkrig.antology.filter.TeeFilter#setExecutor(String)}.
+     *
+     * @ant.defaultValue {@value #DEFAULT_EXECUTOR}
+     */
+    public void
+    setExecutor(String value) { this.executor = value; }
+    private String executor = ParallelReplaceAllTask.DEFAULT_EXECUTOR;
+
+    // SUBELEMENT ADDERS
+
+    /**
+     * The replacements to execute, configured exactly like the {@code <replaceAll>} filter. If more than one is
+     * given, then they are executed in a row.
+     */
+    public void
+    addConfiguredReplaceAll(ReplaceAllFilter filter) { this.filters.add(filter); }
+    private final List<ReplaceAllFilter> filters = new ArrayList<ReplaceAllFilter>();
+
+    @Override public void
+    execute() throws BuildException {
+
+        File file   = this.file;
+        File tofile = this.tofile;
+        if (file == null)   throw new BuildException("Attribute \"file=...\" missing");
+        if (tofile == null) throw new BuildException("Attribute \"tofile=...\" missing");
+        if (this.filters.isEmpty()) throw new BuildException("Subelement \"<replaceAll>\" missing");
+
+        // Compile the patterns here, so that the threads that process the chunks only read them.
+        for (ReplaceAllFilter filter : this.filters) {
+            for (Pattern pattern : filter.prepare()) {
+                String anchor = ParallelReplaceAllTask.inputAnchor(pattern);
+                if (anchor != null) {
+                    throw new BuildException(
+                        "Pattern \""
+                        + pattern
+                        + "\" must not use \""
+                        + anchor
+                        + "\", because that would match at the chunk boundaries"
+                    );
+                }
+            }
+        }
+
+        try {
+            if (file.getCanonicalFile().equals(tofile.getCanonicalFile())) {
+                throw new BuildException("\"file=...\" and \"tofile=...\" must be different");
+            }
+
+            if (ParallelReplaceAllTask.isAsciiCompatible(this.charset)) {
+                this.replaceInChunks(file, tofile);
+            } else {
+                this.log("Encoding " + this.charset + " cannot be split; processing sequentially", Project.MSG_VERBOSE);
+                this.replaceSequentially(file, tofile);
+            }
+        } catch (IOException ioe) {
+            throw new BuildException(ioe, this.getLocation());
+        }
+    }
+
+    private void
+    replaceInChunks(File file, File tofile) throws IOException {
+
+        SharedExecutor executor = SharedExecutor.get(this.getProject(), this.executor);
+
+        // Each chunk's result is written as soon as it (and all previous chunks) are complete, so the number of
+        // chunks in memory is limited.
+        Deque<Future<ByteBuffer>> inFlight = new ArrayDeque<Future<ByteBuffer>>();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileOutputStream out = new FileOutputStream(tofile);
+            try {
+                FileChannel inChannel  = in.getChannel();
+                FileChannel outChannel = out.getChannel();
+                long        size       = inChannel.size();
+                int         chunks     = 0;
+
+                for (long position = 0; position < size || !inFlight.isEmpty();) {
+
+                    while (position < size && inFlight.size() < this.threads) {
+
+                        long end = ParallelReplaceAllTask.lineBoundary(inChannel, position + this.chunkSize, size);
+                        if (end - position > Integer.MAX_VALUE) {
+                            throw new IOException("Line at offset " + position + " of \"" + file + "\" is too long");
+                        }
+
+                        final ByteBuffer chunk = inChannel.map(MapMode.READ_ONLY, position, end - position);
+                        inFlight.add(executor.submit(new Callable<ByteBuffer>() {
+
+                            @Override public ByteBuffer
+                            call() throws IOException { return ParallelReplaceAllTask.this.replace(chunk); }
+                        }));
+                        position = end;
+                        chunks++;
+                    }
+
+                    ByteBuffer result = ParallelReplaceAllTask.get(inFlight.remove());
+                    while (result.hasRemaining()) outChannel.write(result);
+                }
+
+                out.close();
+
+                this.log(
+                    "Replaced " + size + " bytes in " + chunks + " chunks; " + executor,
+                    Project.MSG_VERBOSE
+                );
+            } finally {
+                try { out.close(); } catch (Exception e) {}
+            }
+        } finally {
+            for (Future<ByteBuffer> f : inFlight) f.cancel(true);
+            try { in.close(); } catch (Exception e) {}
+        }
+    }
+
+    private void
+    replaceSequentially(File file, File tofile) throws IOException {
+
+        Reader in = new InputStreamReader(new FileInputStream(file), this.charset);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tofile), this.charset);
+            try {
+                Reader r = this.chain(in);
+
+                char[] buffer = new char[8192];
+                for (int n = r.read(buffer); n != -1; n = r.read(buffer)) out.write(buffer, 0, n);
+
+                r.close();
+                out.close();
+            } finally {
+                try { out.close(); } catch (Exception e) {}
+            }
+        } finally {
+            try { in.close(); } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * Decodes the <var>chunk</var>, executes the replacements, and encodes the result.
+     * <p>
+     *   The data is decoded and encoded on the fly, so that the only large buffer is the one that holds the result.
+     * </p>
+     */
+    ByteBuffer
+    replace(final ByteBuffer chunk) throws IOException {
+
+        InputStream is = new InputStream() {
+
+            @Override public int
+            read() { return chunk.hasRemaining() ? 0xff & chunk.get() : -1; }
+
+            @Override public int
+            read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!chunk.hasRemaining()) return -1;
+                len = Math.min(len, chunk.remaining());
+                chunk.get(b, off, len);
+                return len;
+            }
+        };
+
+        Reader r = this.chain(new InputStreamReader(
+            is,
+            this.charset
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        ));
+
+        ResultBuffer result = new ResultBuffer(chunk.remaining() + 64);
+        Writer       w      = new OutputStreamWriter(
+            result,
+            this.charset
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        );
+
+        char[] buffer = new char[8192];
+        for (int n = r.read(buffer); n != -1; n = r.read(buffer)) w.write(buffer, 0, n);
+        r.close();
+        w.close();
+
+        return result.toByteBuffer();
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} whose content can be retrieved without copying it.
+     */
+    private static
+    class ResultBuffer extends ByteArrayOutputStream {
+
+        ResultBuffer(int size) { super(size); }
+
+        ByteBuffer
+        toByteBuffer() { return ByteBuffer.wrap(this.buf, 0, this.count); }
+    }
+
+    private Reader
+    chain(Reader in) {
+        for (ReplaceAllFilter filter : this.filters) in = filter.chain(in);
+        return in;
+    }
+
+    /**
+     * @return The offset after the first LF at or after <var>from</var>, or <var>size</var>
+     */
+    private static long
+    lineBoundary(FileChannel channel, long from, long size) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long position = from; position < size;) {
+
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n == -1) break;
+
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += n;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The first anchor in the <var>pattern</var> that refers to the beginning or the end of the input (rather
+     *         than of a line), e.g. {@code "$"}, or {@code null}
+     */
+    @Nullable private static String
+    inputAnchor(Pattern pattern) {
+
+        if ((pattern.flags() & Pattern.LITERAL) != 0) return null;
+
+        String regex        = pattern.pattern();
+        int    classNesting = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                if (++i == regex.length()) break;
+                c = regex.charAt(i);
+                if (c == 'Q') {
+
+                    // Skip the quoted section "\Q...\E".
+                    int end = regex.indexOf("\\E", i + 1);
+                    if (end == -1) break;
+                    i = end + 1;
+                } else
+                if (classNesting == 0 && "AGZz".indexOf(c) != -1) {
+                    return "\\" + c;
+                }
+            } else
+            if (c == '[') {
+                classNesting++;
+            } else
+            if (c == ']') {
+                if (classNesting > 0) classNesting--;
+            } else
+            if (classNesting == 0 && (c == '^' || c == '$')) {
+                return String.valueOf(c);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Whether the <var>charset</var> encodes LF as the single byte 0x0A, and thus the input can be split
+     *         after each 0x0A byte
+     */
+    private static boolean
+    isAsciiCompatible(Charset charset) {
+        return Arrays.equals("\n".getBytes(charset), new byte[] { '\n' });
+    }
+
+    private static <T> T
+    get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new BuildException(ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)      throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new BuildException(cause);
+        }
+    }
+}
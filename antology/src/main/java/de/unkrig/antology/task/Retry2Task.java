@@ -28,15 +28,28 @@ package de.unkrig.antology.task;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.ExitStatusException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
 import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
 import org.apache.tools.ant.property.LocalProperties;
 
+import de.unkrig.antology.util.CircuitBreaker;
 import de.unkrig.antology.util.FlowControlException;
+import de.unkrig.antology.util.Threads;
 import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.time.Duration;
 import de.unkrig.commons.util.time.PointOfTime;
@@ -45,6 +58,10 @@ import de.unkrig.commons.util.time.PointOfTime;
  * An enhanced version of the <a href="http://ant.apache.org/manual/Tasks/retry.html">{@code <retry>}</a> task.
  * Executes its subtasks sequentially, and if one of these fails, and some other conditions hold true, then the
  * subtasks are re-executed.
+ * <p>
+ *   Alternatively, iff {@link #setHedgeAfter(Duration) hedgeAfter} is configured, then an attempt that takes too long
+ *   is not waited for, but a second attempt is started in parallel, and the first attempt that succeeds wins.
+ * </p>
  */
 public
 class Retry2Task extends Task implements TaskContainer {
@@ -55,6 +72,90 @@ class Retry2Task extends Task implements TaskContainer {
     /** (Must be public for ANTDOC.) */
     public static final double DEFAULT_RETRY_DELAY_EXPONENT = 1.0;
 
+    /**
+     * How the retry delay is randomized, so that many clients which fail at the same time do not retry in lockstep.
+     * Let <var>d</var> be the {@link Retry2Task#setRetryDelay(Duration) retry delay}, multiplied with the {@link
+     * Retry2Task#setRetryDelayExponent(double) retry delay exponent} for each retry, and capped by the {@link
+     * Retry2Task#setMaxDelay(Duration) max delay}.
+     */
+    public
+    enum Jitter {
+
+        /** Wait exactly <var>d</var>. */
+        NONE,
+
+        /** Wait a random duration between zero and <var>d</var>. */
+        FULL,
+
+        /** Wait <var>d</var>/2, plus a random duration between zero and <var>d</var>/2. */
+        EQUAL,
+
+        /**
+         * Wait a random duration between the retry delay and three times the preceding delay (or, before the first
+         * retry, three times the retry delay), capped by the max delay; the retry delay exponent is not used.
+         */
+        DECORRELATED,
+    }
+
+    /** (Must be public for ANTDOC.) */
+    public static final Jitter DEFAULT_JITTER = Jitter.NONE;
+
+    /** (Must be public for ANTDOC.) */
+    public static final int DEFAULT_CIRCUIT_THRESHOLD = 5;
+
+    /** (Must be public for ANTDOC.) */
+    public static final String DEFAULT_CIRCUIT_COOL_DOWN = "30s";
+
+    /**
+     * The per-attempt latencies and wait times of one execution.
+     */
+    private static
+    class Statistics {
+
+        private final List<Long> waits     = new ArrayList<Long>();
+        private final List<Long> latencies = new ArrayList<Long>();
+        private long             pendingWait;
+
+        /**
+         * @return The number of the attempt, starting with 1
+         */
+        synchronized int
+        attemptStarted() {
+            this.waits.add(this.pendingWait);
+            this.latencies.add(-1L);
+            this.pendingWait = 0;
+            return this.waits.size();
+        }
+
+        synchronized void
+        attemptCompleted(int attemptNumber, long latency) { this.latencies.set(attemptNumber - 1, latency); }
+
+        synchronized void
+        waited(long ms) { this.pendingWait += ms; }
+
+        synchronized void
+        publish(Project project, String prefix, long totalTime) {
+
+            long totalWait = 0;
+            for (int i = 0; i < this.waits.size(); i++) {
+
+                long wait = this.waits.get(i);
+                project.setProperty(prefix + "attempt" + (i + 1) + ".wait", Long.toString(wait));
+                totalWait += wait;
+
+                // Attempts that were cancelled have no latency.
+                long latency = this.latencies.get(i);
+                if (latency != -1) {
+                    project.setProperty(prefix + "attempt" + (i + 1) + ".latency", Long.toString(latency));
+                }
+            }
+
+            project.setProperty(prefix + "attempts",  Integer.toString(this.waits.size()));
+            project.setProperty(prefix + "totalWait", Long.toString(totalWait));
+            project.setProperty(prefix + "totalTime", Long.toString(totalTime));
+        }
+    }
+
     // -------------------------- CONFIGURATION --------------------------
 
     @Nullable private Integer     status;
@@ -62,8 +163,23 @@ class Retry2Task extends Task implements TaskContainer {
     @Nullable private Duration    retryDelay;
     private double                retryDelayExponent = Retry2Task.DEFAULT_RETRY_DELAY_EXPONENT;
     @Nullable private PointOfTime delayIntervalBegin;
+    @Nullable private Duration    hedgeAfter;
+    private boolean               virtualThreads;
+    private Jitter                jitter             = Retry2Task.DEFAULT_JITTER;
+    @Nullable private Duration    maxDelay;
+    @Nullable private Duration    giveUpAfter;
+    @Nullable private String      statisticsPrefix;
+    @Nullable private String      circuit;
+    private int                   circuitThreshold   = Retry2Task.DEFAULT_CIRCUIT_THRESHOLD;
+    private Duration              circuitCoolDown    = new Duration(Retry2Task.DEFAULT_CIRCUIT_COOL_DOWN);
     private final List<Task>      tasks              = new ArrayList<Task>();
 
+    // The state of the current execution.
+    private final Random          random             = new Random();
+    @Nullable private PointOfTime executionBeginning;
+    @Nullable private Duration    previousDelay;
+    @Nullable private Statistics  statistics;
+
     /**
      * If set, then the tasks are only re-executed iff the exit status of the failed task equals <var>n</var>, i.e.
      * <code>&lt;fail&nbsp;status="<var>n</var>"&nbsp;/&gt;</code> was executed.
@@ -95,6 +211,128 @@ class Retry2Task extends Task implements TaskContainer {
      */
     public void setRetryDelayExponent(double value) { this.retryDelayExponent = value; }
 
+    /**
+     * Iff {@code true}, and the JVM supports virtual threads (Java 21+), then the {@link #setHedgeAfter(Duration)
+     * hedged attempts} are executed in virtual threads, which do not occupy operating system threads while they
+     * wait.
+     * <p>
+     *   Notice that without hedging, the attempts and the retry delays are executed in the current thread, because
+     *   ANT tasks execute synchronously. To make many concurrent {@code <retry2>}s cheap while they wait, execute
+     *   them with {@code <forEach2 threads="..." virtualThreads="true">} instead of {@code <parallel>}, because the
+     *   latter always uses one platform thread per branch.
+     * </p>
+     */
+    public void
+    setVirtualThreads(boolean value) { this.virtualThreads = value; }
+
+    /**
+     * How the retry delay is randomized.
+     *
+     * @ant.defaultValue {@value #DEFAULT_JITTER}
+     */
+    public void
+    setJitter(Jitter value) { this.jitter = value; }
+
+    /**
+     * If set, then the retry delay (which grows with each retry iff {@link #setRetryDelayExponent(double)
+     * retryDelayExponent} is greater than 1) is never longer than the given duration.
+     */
+    public void
+    setMaxDelay(Duration duration) { this.maxDelay = duration; }
+
+    /**
+     * If set, then no more retries are made when the given duration has elapsed since the execution of this task
+     * began; also no retry is made iff its delay would end after that point of time. This time budget is shared by
+     * all attempts.
+     * <p>
+     *   Without {@link #setHedgeAfter(Duration) hedging}, an attempt that is already running when the time budget
+     *   is exhausted is not interrupted. With hedging, the running attempts are cancelled when the budget is
+     *   exhausted, and the task fails.
+     * </p>
+     */
+    public void
+    setGiveUpAfter(Duration duration) { this.giveUpAfter = duration; }
+
+    /**
+     * If set, then, after the execution, statistics about the attempts are stored in properties:
+     * <dl>
+     *   <dt><var>prefix</var>{@code attempts}</dt>
+     *   <dd>The number of attempts that were started</dd>
+     *   <dt><var>prefix</var>{@code attempt}<var>N</var>{@code .wait}</dt>
+     *   <dd>The time waited before the <var>N</var>th attempt (starting with 1), in milliseconds</dd>
+     *   <dt><var>prefix</var>{@code attempt}<var>N</var>{@code .latency}</dt>
+     *   <dd>The duration of the <var>N</var>th attempt, in milliseconds (not set for cancelled attempts)</dd>
+     *   <dt><var>prefix</var>{@code totalWait}</dt>
+     *   <dd>The sum of all wait times, in milliseconds</dd>
+     *   <dt><var>prefix</var>{@code totalTime}</dt>
+     *   <dd>The duration of the execution of this task, in milliseconds</dd>
+     * </dl>
+     * <p>
+     *   The properties are also set iff the task fails.
+     * </p>
+     */
+    public void
+    setStatisticsPrefix(String prefix) { this.statisticsPrefix = prefix; }
+
+    /**
+     * If set, then all {@code <retry2>} tasks with the same circuit name share a "circuit breaker": After {@link
+     * #setCircuitThreshold(int) circuitThreshold} consecutive failed attempts (of any of these tasks), the circuit
+     * "opens", and for the {@link #setCircuitCoolDown(Duration) cool-down period}, all these tasks fail immediately,
+     * without executing their subtasks and without retrying. After the cool-down period, exactly one attempt (the
+     * "probe") is permitted; iff it succeeds, the circuit "closes" again, otherwise it opens for another cool-down
+     * period.
+     * <p>
+     *   This is useful when many {@code <retry2>} tasks (e.g. in a {@link ForEach2Task &lt;forEach2>} body) access
+     *   the same remote resource, and that resource is down: Instead of each task waiting for its complete retry
+     *   delays, they fail fast.
+     * </p>
+     * <p>
+     *   The circuit is scoped to the ANT project; its threshold and cool-down period are configured by the first
+     *   {@code <retry2>} that uses it.
+     * </p>
+     */
+    public void
+    setCircuit(String name) { this.circuit = name; }
+
+    /**
+     * The number of consecutive failed attempts after which the {@link #setCircuit(String) circuit} opens.
+     *
+     * @ant.defaultValue {@value #DEFAULT_CIRCUIT_THRESHOLD}
+     */
+    public void
+    setCircuitThreshold(int n) {
+        if (n < 1) throw new BuildException("'circuitThreshold' must be 1 or greater");
+        this.circuitThreshold = n;
+    }
+
+    /**
+     * For how long the {@link #setCircuit(String) circuit} remains open, before a probe attempt is permitted.
+     *
+     * @ant.defaultValue {@value #DEFAULT_CIRCUIT_COOL_DOWN}
+     */
+    public void
+    setCircuitCoolDown(Duration duration) { this.circuitCoolDown = duration; }
+
+    /**
+     * If set, then the subtasks are executed in a background thread, and if that "attempt" has not completed after
+     * the given duration, then another attempt is started in parallel (a "hedged" attempt), and so forth. The first
+     * attempt that completes successfully wins, and the other attempts still running are cancelled (by interrupting
+     * their threads, and by not starting any more of their subtasks). This task completes only when the cancelled
+     * attempts have terminated (but waits no longer than five seconds for that).
+     * <p>
+     *   Each hedged attempt counts as a retry, so the total number of attempts is still limited by {@link
+     *   #setRetryCount(int) retryCount}. An attempt that fails is handled exactly like without hedging, i.e. the
+     *   {@link #setStatus(int) status} is checked, and {@link BreakTask &lt;break>} and {@link ContinueTask
+     *   &lt;continue>} are propagated immediately; only when no other attempt is running, the {@link
+     *   #setRetryDelay(Duration) retry delay} is waited for before the next attempt is started.
+     * </p>
+     * <p>
+     *   Each attempt executes its own copy of the subtasks, and in its own {@code <local>} property scope.
+     * </p>
+     */
+    public void
+    setHedgeAfter(Duration duration) { this.hedgeAfter = duration; }
+
     /**
      * Use the given point-of-time as the beginning of the delay interval, instead of the current time.
      *
@@ -122,7 +360,10 @@ class Retry2Task extends Task implements TaskContainer {
 
         Duration retryDelay = this.retryDelay;
         if (retryDelay != null) {
-            retryDelay = retryDelay.multiply(Math.pow(this.retryDelayExponent, n));
+            retryDelay = this.nextDelay(retryDelay, n);
+
+            if (this.budgetExhaustedBy(retryDelay)) return false;
+
             PointOfTime delayIntervalBegin = this.delayIntervalBegin;
             if (delayIntervalBegin == null) delayIntervalBegin = new PointOfTime();
             this.log((
@@ -138,6 +379,11 @@ class Retry2Task extends Task implements TaskContainer {
             } catch (InterruptedException ie) {
                 throw new BuildException(ie);
             }
+
+            Statistics statistics = this.statistics;
+            if (statistics != null) statistics.waited(retryDelay.milliseconds());
+        } else {
+            if (this.budgetExhaustedBy(new Duration(0))) return false;
         }
         this.log("Retry #" + (n + 1) + (retryCount == null ? "" : " of " + retryCount) + "...", Project.MSG_INFO);
 
@@ -149,7 +395,47 @@ class Retry2Task extends Task implements TaskContainer {
     @Override public void
     execute() {
 
+        PointOfTime executionBeginning = (this.executionBeginning = new PointOfTime());
+        Statistics  statistics         = (this.statistics = new Statistics());
+        this.previousDelay = null;
+        try {
+
+            String         circuit        = this.circuit;
+            CircuitBreaker circuitBreaker = (
+                circuit == null
+                ? null
+                : CircuitBreaker.get(this.getProject(), circuit, this.circuitThreshold, this.circuitCoolDown)
+            );
+
+            Duration hedgeAfter = this.hedgeAfter;
+            if (hedgeAfter != null) {
+                this.executeHedged(hedgeAfter, statistics, circuitBreaker);
+            } else {
+                this.executeSequentially(statistics, circuitBreaker);
+            }
+        } finally {
+            String statisticsPrefix = this.statisticsPrefix;
+            if (statisticsPrefix != null) {
+                statistics.publish(
+                    this.getProject(),
+                    statisticsPrefix,
+                    new PointOfTime().subtract(executionBeginning).milliseconds()
+                );
+            }
+        }
+    }
+
+    private void
+    executeSequentially(Statistics statistics, @Nullable CircuitBreaker circuitBreaker) {
+
         for (int n = 0;; n++) {
+
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                throw new BuildException("Giving up after " + n + " retries: " + circuitBreaker);
+            }
+
+            int  attemptNumber = statistics.attemptStarted();
+            long attemptStart  = System.currentTimeMillis();
             try {
                 LocalProperties localProperties = LocalProperties.get(this.getProject());
 
@@ -160,33 +446,354 @@ class Retry2Task extends Task implements TaskContainer {
                     localProperties.exitScope();
                 }
 
+                statistics.attemptCompleted(attemptNumber, System.currentTimeMillis() - attemptStart);
+                if (circuitBreaker != null) circuitBreaker.succeeded();
                 return;
             } catch (RuntimeException re) {
+                statistics.attemptCompleted(attemptNumber, System.currentTimeMillis() - attemptStart);
+                if (circuitBreaker != null) Retry2Task.report(circuitBreaker, re);
+
+                this.checkRetryable(re);
+
+                // Don't wait for the retry delay if the retry would fail fast anyway.
+                if (circuitBreaker != null && circuitBreaker.isOpen()) {
+                    throw new BuildException("Giving up after " + n + " retries: " + circuitBreaker, re);
+                }
 
-                // Check for and honor wrapped FlowControlException.
-                if (FlowControlException.isWrappedBy(re)) throw re;
+                if (!this.retry(n)) {
+                    throw new BuildException("Giving up after " + n + " retries: " + re.getMessage(), re);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the attempts in background threads, and starts another attempt whenever no attempt completed within
+     * the <var>hedgeAfter</var> duration.
+     */
+    private void
+    executeHedged(Duration hedgeAfter, Statistics statistics, @Nullable CircuitBreaker circuitBreaker) {
 
-                // Check for and honor wrapped ExitStatusException.
-                {
-                    Integer status = this.status;
-                    if (status != null) {
-                        for (Throwable t = re; t != null; t = t.getCause()) {
-                            if (t instanceof ExitStatusException) {
-                                ExitStatusException ese = (ExitStatusException) t;
+        ExecutorService executorService = Executors.newCachedThreadPool(
+            Threads.newThreadFactory("retry2-", this.virtualThreads)
+        );
 
-                                if (ese.getStatus() != status) throw re;
-                            }
+        // Notice: Interrupting the threads is not sufficient for cancelling, because some tasks (e.g. "<sleep>")
+        // swallow InterruptedExceptions.
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try {
+            CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executorService);
+
+            if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                throw new BuildException("Giving up after 0 retries: " + circuitBreaker);
+            }
+            completionService.submit(this.attempt(statistics, cancelled, circuitBreaker));
+            int started = 1, running = 1;
+
+            for (;;) {
+
+                long timeout = hedgeAfter.milliseconds();
+
+                Duration remainingBudget = this.remainingBudget();
+                if (remainingBudget != null && remainingBudget.milliseconds() < timeout) {
+                    timeout = remainingBudget.milliseconds();
+                }
+
+                Future<Void> future = completionService.poll(timeout, TimeUnit.MILLISECONDS);
+                if (future == null) {
+
+                    if (this.budgetExhaustedBy(new Duration(0))) {
+                        throw new BuildException(
+                            "Giving up after "
+                            + (started - 1)
+                            + " retries: Time budget of "
+                            + this.giveUpAfter
+                            + " exhausted"
+                        );
+                    }
+
+                    Integer retryCount = this.retryCount;
+                    if (
+                        (retryCount != null && started - 1 >= retryCount)
+                        || (circuitBreaker != null && !circuitBreaker.tryAcquire())
+                    ) {
+
+                        // No more attempts allowed; wait for one of the running attempts to complete.
+                        future = completionService.poll(
+                            remainingBudget == null ? Long.MAX_VALUE : remainingBudget.milliseconds(),
+                            TimeUnit.MILLISECONDS
+                        );
+                        if (future == null) continue;
+                    } else {
+                        this.log((
+                            "No attempt completed within "
+                            + hedgeAfter
+                            + "; starting attempt #"
+                            + (started + 1)
+                            + "..."
+                        ), Project.MSG_INFO);
+                        completionService.submit(this.attempt(statistics, cancelled, circuitBreaker));
+                        started++;
+                        running++;
+                        continue;
+                    }
+                }
+                running--;
+
+                try {
+                    future.get();
+
+                    // The first successful attempt wins; the others are cancelled (see below).
+                    return;
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+
+                    RuntimeException re = (
+                        cause instanceof RuntimeException
+                        ? (RuntimeException) cause
+                        : new BuildException(cause)
+                    );
+
+                    this.checkRetryable(re);
+
+                    // Give the other running attempts a chance to succeed.
+                    if (running > 0) continue;
+
+                    // Don't wait for the retry delay if the retry would fail fast anyway.
+                    if (circuitBreaker != null && circuitBreaker.isOpen()) {
+                        throw new BuildException(
+                            "Giving up after " + (started - 1) + " retries: " + circuitBreaker,
+                            re
+                        );
+                    }
+
+                    if (!this.retry(started - 1)) {
+                        throw new BuildException(
+                            "Giving up after " + (started - 1) + " retries: " + re.getMessage(),
+                            re
+                        );
+                    }
+
+                    if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+                        throw new BuildException("Giving up after " + (started - 1) + " retries: " + circuitBreaker);
+                    }
+                    completionService.submit(this.attempt(statistics, cancelled, circuitBreaker));
+                    started++;
+                    running++;
+                }
+            }
+        } catch (InterruptedException ie) {
+            throw new BuildException(ie);
+        } finally {
+
+            // Cancel the attempts that are still running, and wait until they have terminated, so that they have
+            // no more side effects after this task completes.
+            cancelled.set(true);
+            executorService.shutdownNow();
+            try {
+                if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                    this.log("Cancelled attempts are still running after 5s", Project.MSG_WARN);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return An "attempt" which executes copies of the subtasks in their own {@code <local>} property scope, and
+     *         stops executing subtasks as soon as <var>cancelled</var> is set
+     */
+    private Callable<Void>
+    attempt(
+        final Statistics               statistics,
+        final AtomicBoolean            cancelled,
+        @Nullable final CircuitBreaker circuitBreaker
+    ) {
+
+        final Project         project         = this.getProject();
+        final LocalProperties localProperties = LocalProperties.get(project);
+
+        // Each attempt needs its own copy of the subtasks, because they execute concurrently.
+        final List<Task> tasks = new ArrayList<Task>(this.tasks.size());
+        for (Task task : this.tasks) {
+            tasks.add(task instanceof UnknownElement ? ((UnknownElement) task).copy(project) : task);
+        }
+
+        final int attemptNumber = statistics.attemptStarted();
+
+        return new Callable<Void>() {
+
+            @Override @Nullable public Void
+            call() {
+
+                // Give this thread its own local property stack.
+                localProperties.copy();
+
+                long attemptStart = System.currentTimeMillis();
+
+                localProperties.enterScope();
+                try {
+                    for (Task task : tasks) {
+                        if (cancelled.get()) {
+                            throw new BuildException("Attempt #" + attemptNumber + " was cancelled");
+                        }
+                        task.perform();
+                    }
+                } catch (RuntimeException re) {
+
+                    // Notice: Attempts that are cancelled have no latency.
+                    if (!cancelled.get()) {
+                        statistics.attemptCompleted(attemptNumber, System.currentTimeMillis() - attemptStart);
+                    }
+
+                    if (circuitBreaker != null) {
+                        if (cancelled.get()) {
+                            circuitBreaker.released();
+                        } else {
+                            Retry2Task.report(circuitBreaker, re);
                         }
                     }
+                    throw re;
+                } finally {
+                    localProperties.exitScope();
                 }
 
-                // Print exception chain.
-                for (Throwable t = re; t != null; t = t.getCause()) this.log(t.toString(), Project.MSG_INFO);
+                statistics.attemptCompleted(attemptNumber, System.currentTimeMillis() - attemptStart);
+                if (circuitBreaker != null) circuitBreaker.succeeded();
 
-                if (!this.retry(n)) {
-                    throw new BuildException("Giving up after " + n + " retries: " + re.getMessage(), re);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return The delay before the <var>n</var>th retry (starting with zero), with the configured {@link
+     *         #setRetryDelayExponent(double) exponent}, {@link #setJitter(Jitter) jitter} and {@link
+     *         #setMaxDelay(Duration) max delay} applied
+     */
+    private Duration
+    nextDelay(Duration retryDelay, int n) {
+
+        Duration maxDelay = this.maxDelay;
+
+        Duration result;
+        if (this.jitter == Jitter.DECORRELATED) {
+            Duration previousDelay = this.previousDelay;
+            Duration upper         = (previousDelay == null ? retryDelay : previousDelay).multiply(3);
+            if (maxDelay != null && upper.milliseconds() > maxDelay.milliseconds()) upper = maxDelay;
+            long lower = retryDelay.milliseconds();
+            result = (
+                upper.milliseconds() <= lower
+                ? upper
+                : new Duration(lower + this.randomMillis(upper.milliseconds() - lower))
+            );
+        } else {
+            result = retryDelay.multiply(Math.pow(this.retryDelayExponent, n));
+            if (maxDelay != null && result.milliseconds() > maxDelay.milliseconds()) result = maxDelay;
+
+            switch (this.jitter) {
+
+            case FULL:
+                result = new Duration(this.randomMillis(result.milliseconds()));
+                break;
+
+            case EQUAL:
+                long half = result.milliseconds() / 2;
+                result = new Duration(result.milliseconds() - half + this.randomMillis(half));
+                break;
+
+            default:
+                break;
+            }
+        }
+
+        this.previousDelay = result;
+
+        return result;
+    }
+
+    /**
+     * @return A random value between 0 and <var>bound</var> (inclusively)
+     */
+    private long
+    randomMillis(long bound) {
+        synchronized (this.random) {
+            return (long) (this.random.nextDouble() * (bound + 1));
+        }
+    }
+
+    /**
+     * @return The time left until the {@link #setGiveUpAfter(Duration) time budget} is exhausted, or {@code null} iff
+     *         no time budget is configured
+     */
+    @Nullable private Duration
+    remainingBudget() {
+
+        Duration    giveUpAfter        = this.giveUpAfter;
+        PointOfTime executionBeginning = this.executionBeginning;
+        if (giveUpAfter == null || executionBeginning == null) return null;
+
+        long ms = giveUpAfter.milliseconds() - new PointOfTime().subtract(executionBeginning).milliseconds();
+        return new Duration(ms < 0 ? 0 : ms);
+    }
+
+    /**
+     * @return Whether waiting for the given <var>delay</var> would exceed the {@link #setGiveUpAfter(Duration) time
+     *         budget}; if so, a message is logged
+     */
+    private boolean
+    budgetExhaustedBy(Duration delay) {
+
+        Duration remainingBudget = this.remainingBudget();
+        if (remainingBudget == null) return false;
+
+        if (remainingBudget.isZero() || delay.milliseconds() > remainingBudget.milliseconds()) {
+            this.log("Time budget of " + this.giveUpAfter + " exhausted", Project.MSG_INFO);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reports a failed attempt to the <var>circuitBreaker</var>; {@link FlowControlException}s do not count as
+     * failures.
+     */
+    private static void
+    report(CircuitBreaker circuitBreaker, RuntimeException re) {
+        if (FlowControlException.isWrappedBy(re)) {
+            circuitBreaker.released();
+        } else {
+            circuitBreaker.failed();
+        }
+    }
+
+    /**
+     * Re-throws the <var>re</var> iff it is a (wrapped) {@link FlowControlException}, or if it does not reflect
+     * the configured {@link #setStatus(int) status}; otherwise logs the exception chain.
+     */
+    private void
+    checkRetryable(RuntimeException re) {
+
+        // Check for and honor wrapped FlowControlException.
+        if (FlowControlException.isWrappedBy(re)) throw re;
+
+        // Check for and honor wrapped ExitStatusException.
+        {
+            Integer status = this.status;
+            if (status != null) {
+                for (Throwable t = re; t != null; t = t.getCause()) {
+                    if (t instanceof ExitStatusException) {
+                        ExitStatusException ese = (ExitStatusException) t;
+
+                        if (ese.getStatus() != status) throw re;
+                    }
                 }
             }
         }
+
+        // Print exception chain.
+        for (Throwable t = re; t != null; t = t.getCause()) this.log(t.toString(), Project.MSG_INFO);
     }
 }
@@ -0,0 +1,89 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.antology.task;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Reports the quantity processed so far to an enclosing {@link ThroughputTask}, which uses it for its periodic
+ * progress messages and its "after message".
+ */
+public
+class ThroughputProgressTask extends Task {
+
+    @Nullable private String refid;
+    private double           add = 1;
+    @Nullable private Double value;
+
+    // CHECKSTYLE JavadocMethod:OFF
+
+    /**
+     * The ID of the progress counter, as configured with {@code <throughput progressId="}<var>id</var>{@code ">}.
+     */
+    public void setRefid(String id) { this.refid = id; }
+
+    /**
+     * The quantity to add to the quantity processed so far.
+     *
+     * @ant.valueExplanation <i>float</i>
+     * @ant.defaultValue     1
+     */
+    public void setAdd(double quantity) { this.add = quantity; }
+
+    /**
+     * Sets the quantity processed so far, instead of adding to it.
+     *
+     * @ant.valueExplanation <i>float</i>
+     */
+    public void setValue(double quantity) { this.value = quantity; }
+
+    // CHECKSTYLE JavadocMethod:ON
+
+    @Override public void
+    execute() {
+
+        String refid = this.refid;
+        if (refid == null) throw new BuildException("Attribute 'refid' must be configured");
+
+        Object reference = this.getProject().getReference(refid);
+        if (!(reference instanceof ThroughputTask.Progress)) {
+            throw new BuildException("\"" + refid + "\" does not reference a throughput progress counter");
+        }
+        ThroughputTask.Progress progress = (ThroughputTask.Progress) reference;
+
+        Double value = this.value;
+        if (value != null) {
+            progress.set(value);
+        } else {
+            progress.add(this.add);
+        }
+    }
+}
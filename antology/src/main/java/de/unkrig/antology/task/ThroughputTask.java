@@ -26,10 +26,17 @@
 
 package de.unkrig.antology.task;
 
+import java.io.File;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.ExitStatusException;
@@ -38,6 +45,10 @@ import org.apache.tools.ant.TaskContainer;
 import org.apache.tools.ant.property.LocalProperties;
 
 import de.unkrig.antology.util.Logging;
+import de.unkrig.antology.util.Metrics;
+import de.unkrig.antology.util.RateEstimator;
+import de.unkrig.antology.util.Threads;
+import de.unkrig.commons.lang.ObjectUtil;
 import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.util.time.Duration;
 import de.unkrig.commons.util.time.PointOfTime;
@@ -330,12 +341,57 @@ import de.unkrig.commons.util.time.TimeInterval;
  *  ... done! Took 1.000s (100 bytes @ 100 bytes/s; 200 of 300 bytes complete = 66.7% @ 100
  *  bytes/s; 100 bytes remaining = approx. 1.000s = ETA 2014-02-24 00:56:00)
  * </pre>
+ *
+ * <a name="Progress_messages" />
+ * <h3>Progress messages</h3>
+ *
+ * <p>
+ *   Iff an {@link #setInterval(Duration) interval} is configured, then, while the nested tasks are executing, a
+ *   "progress message" is logged periodically. It is composed like the "after message", except that it begins with
+ *   {@code "... running for"} <var>cD</var>, and that <var>cQ</var> is the quantity processed <em>so far</em>, as
+ *   reported by the nested tasks through a {@code <throughputProgress>} task (see {@link
+ *   #setProgressId(String)}):
+ * </p>
+ * <pre>
+ *  ... running for 0:00:10 (100 KB @ 10 KB/s; 1,100 of 6,000 KB complete = 18.3% @ 27 KB/s; 4,900 KB
+ *  remaining = approx. 0:03:00 = ETA 2014-03-05 13:03:10.000)
+ * </pre>
+ * <p>
+ *   The quantity reported by the nested tasks also replaces the configured {@link #setCurrentQuantity(double)
+ *   currentQuantity} in the "after message"; the difference between the two is added to the {@link
+ *   #setRemainingQuantity(double) remainingQuantity}.
+ * </p>
+ * <p>
+ *   By default, the "approx." and the "ETA" fragments of the progress messages and of the "after message" are
+ *   computed from the total quantity and the total duration so far; with {@link #setEstimator(RateEstimator.Kind)
+ *   estimator="EWMA|WINDOW"}, they are computed from the most recent progress intervals, so that they react more
+ *   quickly to changes in the rate.
+ * </p>
+ *
+ * <a name="Metrics" />
+ * <h3>Metrics</h3>
+ *
+ * <p>
+ *   Additionally, the quantities, durations, rates and the ETA can be exported in machine-readable form, see {@link
+ *   #setMetricsFile(File)} and {@link #setMetricsPrefix(String)}. Each record is tagged with a hierarchical label,
+ *   composed of the {@link #setLabel(String) labels} of all enclosing {@code <throughput>} and {@code <forEach2>}
+ *   tasks, e.g. {@code "deploy/upload"}.
+ * </p>
  */
 public
 class ThroughputTask extends Task implements TaskContainer {
 
     private static final Locale LOCALE = Locale.US;
 
+    /** (Must be public for ANTDOC.) */
+    public static final Metrics.Format DEFAULT_METRICS_FORMAT = Metrics.Format.JSONL;
+
+    /** (Must be public for ANTDOC.) */
+    public static final RateEstimator.Kind DEFAULT_ESTIMATOR = RateEstimator.Kind.CUMULATIVE;
+
+    /** (Must be public for ANTDOC.) */
+    public static final int DEFAULT_ESTIMATOR_WINDOW = 10;
+
     private String           message     = "Starting...";
     private final List<Task> nestedTasks = new ArrayList<Task>();
 
@@ -351,6 +407,16 @@ class ThroughputTask extends Task implements TaskContainer {
     @Nullable private String quantityUnit;
     private boolean          showEta;
 
+    @Nullable private Duration interval;
+    @Nullable private String   progressId;
+    private RateEstimator.Kind estimator       = ThroughputTask.DEFAULT_ESTIMATOR;
+    private int                estimatorWindow = ThroughputTask.DEFAULT_ESTIMATOR_WINDOW;
+
+    @Nullable private String label;
+    @Nullable private File   metricsFile;
+    private Metrics.Format   metricsFormat = ThroughputTask.DEFAULT_METRICS_FORMAT;
+    @Nullable private String metricsPrefix;
+
     // -----------------------------------------
 
     // CHECKSTYLE JavadocMethod:OFF
@@ -442,6 +508,76 @@ class ThroughputTask extends Task implements TaskContainer {
      */
     public void setShowEta(boolean value) { this.showEta = value; }
 
+    /**
+     * Iff configured, then a <a href="#Progress_messages">progress message</a> is logged periodically while the
+     * nested tasks are executing.
+     */
+    public void setInterval(Duration value) { this.interval = value; }
+
+    /**
+     * The ID under which a progress counter is registered while the nested tasks are executing. The nested tasks
+     * report the quantity they processed through {@code <throughputProgress refid="}<var>id</var>{@code "
+     * add="}<var>quantity</var>{@code " />}. A reference with the same ID that exists before is restored
+     * afterwards.
+     */
+    public void setProgressId(String id) { this.progressId = id; }
+
+    /**
+     * How the "approx." and "ETA" fragments of the <a href="#Progress_messages">progress messages</a> and of the
+     * "after message" (and the respective metrics) are computed:
+     * <dl>
+     *   <dt>{@code CUMULATIVE}</dt>
+     *   <dd>From the total quantity and duration so far (including the "previous interval")</dd>
+     *   <dt>{@code EWMA}</dt>
+     *   <dd>From an exponentially weighted moving average over the progress intervals</dd>
+     *   <dt>{@code WINDOW}</dt>
+     *   <dd>From the last {@link #setEstimatorWindow(int) N} progress intervals</dd>
+     * </dl>
+     *
+     * @ant.defaultValue {@value #DEFAULT_ESTIMATOR}
+     */
+    public void setEstimator(RateEstimator.Kind value) { this.estimator = value; }
+
+    /**
+     * The number of samples that the {@code EWMA} and the {@code WINDOW} {@link #setEstimator(RateEstimator.Kind)
+     * estimators} take into account.
+     *
+     * @ant.defaultValue {@value #DEFAULT_ESTIMATOR_WINDOW}
+     */
+    public void
+    setEstimatorWindow(int n) {
+        if (n < 1) throw new BuildException("'estimatorWindow' must be 1 or greater");
+        this.estimatorWindow = n;
+    }
+
+    /**
+     * Identifies this task in the <a href="#Metrics">metrics</a>; the labels of nested {@code <throughput>} and
+     * {@code <forEach2>} tasks are prefixed with this label and a slash.
+     *
+     * @ant.defaultValue The task name, i.e. {@code "throughput"}
+     */
+    public void setLabel(String text) { this.label = text; }
+
+    /**
+     * Iff configured, then the <a href="#Metrics">metrics</a> are appended to the given file; one record for each
+     * progress message, and one for the "after message".
+     */
+    public void setMetricsFile(File file) { this.metricsFile = file; }
+
+    /**
+     * The format of the {@link #setMetricsFile(File) metrics file}.
+     *
+     * @ant.defaultValue {@value #DEFAULT_METRICS_FORMAT}
+     */
+    public void setMetricsFormat(Metrics.Format value) { this.metricsFormat = value; }
+
+    /**
+     * Iff configured, then, after the execution of the nested tasks, the <a href="#Metrics">metrics</a> are stored
+     * in properties named <var>prefix</var>{@code label}, <var>prefix</var>{@code currentRate}, and so forth (see
+     * {@link Metrics#NAMES}).
+     */
+    public void setMetricsPrefix(String prefix) { this.metricsPrefix = prefix; }
+
     /**
      * The tasks to execute sequentially.
      */
@@ -487,20 +623,81 @@ class ThroughputTask extends Task implements TaskContainer {
             this.quantityUnit               // quantityUnit
         ));
 
+        // Notice: An enclosing task may have registered a reference with the same ID, which must be restored
+        // afterwards.
+        Progress progress   = new Progress();
+        String   progressId = this.progressId;
+        Object   previousReference;
+        if (progressId != null) {
+            previousReference = this.getProject().getReferences().get(progressId);
+            this.getProject().addReference(progressId, progress);
+        } else {
+            previousReference = null;
+        }
+
+        String originalLabel = Metrics.getLabel(this.getProject());
+        String label         = Metrics.subLabel(originalLabel, ObjectUtil.or(this.label, this.getTaskName()));
+
+        // Progress records go only to the metrics file, because the properties are only of interest after the
+        // execution.
+        Metrics.Sink progressSink = Metrics.sink(this.getProject(), this.metricsFile, this.metricsFormat, null);
+
         LocalProperties localProperties = LocalProperties.get(this.getProject());
         localProperties.enterScope();
 
-        String originalMessagePrefix = Logging.getLogMessagePrefix(this.getProject());
+        String           originalMessagePrefix = Logging.getLogMessagePrefix(this.getProject());
+        ProgressReporter progressReporter      = new ProgressReporter(
+            previousQuantity,
+            previousInterval.getDuration(),
+            currentQuantity,
+            currentIntervalBeginning,
+            remainingQuantity,
+            progress,
+            originalMessagePrefix,
+            label,
+            progressSink
+        );
+
+        ScheduledExecutorService reporter = null;
         try {
             Logging.setLogMessagePrefix(this.getProject(), originalMessagePrefix + "| ");
+            Metrics.setLabel(this.getProject(), label);
+
+            Duration interval = this.interval;
+            if (interval != null) {
+                reporter = Executors.newSingleThreadScheduledExecutor(Threads.newThreadFactory("throughput-", false));
+                reporter.scheduleAtFixedRate(
+                    progressReporter,
+                    interval.milliseconds(),
+                    interval.milliseconds(),
+                    TimeUnit.MILLISECONDS
+                );
+            }
+
             for (Task t : this.nestedTasks) t.perform();
         } catch (ExitStatusException ese) {
 
             // Handle '<fail status="0" />' like normal completion.
             if (ese.getStatus() != 0) throw ese;
         } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+                try {
+                    reporter.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
             localProperties.exitScope();
             Logging.setLogMessagePrefix(this.getProject(), originalMessagePrefix);
+            Metrics.setLabel(this.getProject(), originalLabel);
+            if (progressId != null) {
+                if (previousReference != null) {
+                    this.getProject().addReference(progressId, previousReference);
+                } else {
+                    this.getProject().getReferences().remove(progressId);
+                }
+            }
         }
 
         // currentInterval.ending = remainingInterval.beginning = now.
@@ -519,16 +716,222 @@ class ThroughputTask extends Task implements TaskContainer {
         assert currentDuration != null;
         PointOfTime remainingBeginning = remainingInterval.getBeginning();
         assert remainingBeginning != null;
+
+        // Iff the nested tasks reported their progress, then that replaces the configured current quantity.
+        Double processedQuantity = currentQuantity, unprocessedQuantity = remainingQuantity;
+        if (progressId != null) {
+            double processed = progress.get();
+            processedQuantity   = processed;
+            unprocessedQuantity = ThroughputTask.remainingQuantity(currentQuantity, remainingQuantity, processed);
+        }
+
+        // The reporter has terminated, so the estimator can safely take the final sample here.
+        Double secondsPerUnit = (
+            processedQuantity == null
+            ? null
+            : progressReporter.sample(currentIntervalBeginning.add(currentDuration), processedQuantity)
+        );
+
         this.log(ThroughputTask.composeAfterMessage(
             previousQuantity,
             previousInterval.getDuration(),
-            currentQuantity,
+            processedQuantity,
             currentDuration,
-            remainingQuantity,
+            unprocessedQuantity,
             remainingBeginning,
             this.showEta,
-            this.quantityUnit
+            this.quantityUnit,
+            secondsPerUnit
         ));
+
+        Metrics.Sink sink = Metrics.sink(this.getProject(), this.metricsFile, this.metricsFormat, this.metricsPrefix);
+        if (sink != null) {
+            Map<String, Object> metrics = ThroughputTask.composeMetrics(
+                previousQuantity,
+                previousInterval.getDuration(),
+                processedQuantity,
+                currentDuration,
+                unprocessedQuantity,
+                remainingBeginning,
+                this.quantityUnit,
+                secondsPerUnit
+            );
+            metrics.put("label", label);
+            metrics.put("event", "done");
+            sink.write(metrics);
+        }
+    }
+
+    /**
+     * Logs a <a href="#Progress_messages">progress message</a> on each invocation.
+     */
+    private
+    class ProgressReporter implements Runnable {
+
+        @Nullable private final Double       previousQuantity;
+        @Nullable private final Duration     previousDuration;
+        @Nullable private final Double       currentQuantity;
+        private final PointOfTime            currentBeginning;
+        @Nullable private final Double       remainingQuantity;
+        private final Progress               progress;
+        private final String                 messagePrefix;
+        private final String                 label;
+        @Nullable private final Metrics.Sink sink;
+
+        /**
+         * With the CUMULATIVE estimator, the compose methods compute the rate themselves, and also take the previous
+         * interval into account.
+         */
+        @Nullable private final RateEstimator estimator = RateEstimator.newInstance(
+            ThroughputTask.this.estimator,
+            ThroughputTask.this.estimatorWindow
+        );
+
+        private PointOfTime lastSample;
+        private double      lastProcessed;
+
+        ProgressReporter(
+            @Nullable Double       previousQuantity,
+            @Nullable Duration     previousDuration,
+            @Nullable Double       currentQuantity,
+            PointOfTime            currentBeginning,
+            @Nullable Double       remainingQuantity,
+            Progress               progress,
+            String                 messagePrefix,
+            String                 label,
+            @Nullable Metrics.Sink sink
+        ) {
+            this.previousQuantity  = previousQuantity;
+            this.previousDuration  = previousDuration;
+            this.currentQuantity   = currentQuantity;
+            this.currentBeginning  = currentBeginning;
+            this.remainingQuantity = remainingQuantity;
+            this.progress          = progress;
+            this.messagePrefix     = messagePrefix;
+            this.label             = label;
+            this.sink              = sink;
+            this.lastSample        = currentBeginning;
+        }
+
+        @Override public void
+        run() {
+
+            // The log message prefix is thread-local.
+            Logging.setLogMessagePrefix(ThroughputTask.this.getProject(), this.messagePrefix);
+
+            PointOfTime now            = new PointOfTime();
+            double      processed      = this.progress.get();
+            Double      secondsPerUnit = this.sample(now, processed);
+
+            Double unprocessed = ThroughputTask.remainingQuantity(
+                this.currentQuantity,
+                this.remainingQuantity,
+                processed
+            );
+            ThroughputTask.this.log(ThroughputTask.composeProgressMessage(
+                this.previousQuantity,
+                this.previousDuration,
+                processed,
+                now.subtract(this.currentBeginning),
+                unprocessed,
+                now,
+                ThroughputTask.this.showEta,
+                ThroughputTask.this.quantityUnit,
+                secondsPerUnit
+            ));
+
+            Metrics.Sink sink = this.sink;
+            if (sink != null) {
+                Map<String, Object> metrics = ThroughputTask.composeMetrics(
+                    this.previousQuantity,
+                    this.previousDuration,
+                    processed,
+                    now.subtract(this.currentBeginning),
+                    unprocessed,
+                    now,
+                    ThroughputTask.this.quantityUnit,
+                    secondsPerUnit
+                );
+                metrics.put("label", this.label);
+                metrics.put("event", "progress");
+                sink.write(metrics);
+            }
+        }
+
+        /**
+         * Feeds what was processed since the preceding sample into the estimator.
+         *
+         * @param processed The quantity processed since the beginning of the current interval
+         * @return          The estimator's {@link RateEstimator#secondsPerUnit()}, or {@code null} with the
+         *                  CUMULATIVE estimator
+         */
+        @Nullable Double
+        sample(PointOfTime now, double processed) {
+
+            RateEstimator estimator = this.estimator;
+            if (estimator == null) return null;
+
+            estimator.sample(processed - this.lastProcessed, now.subtract(this.lastSample));
+            this.lastSample    = now;
+            this.lastProcessed = processed;
+
+            return estimator.secondsPerUnit();
+        }
+    }
+
+    /**
+     * A counter through which the nested tasks report the quantity processed so far; see {@link
+     * #setProgressId(String)}. Is thread-safe, so that nested tasks which execute concurrently (e.g. in a {@code
+     * <forEach2 threads="...">}) may report their progress.
+     */
+    public static final
+    class Progress {
+
+        /** The bits of the {@code double} value. */
+        private final AtomicLong quantity = new AtomicLong(Double.doubleToLongBits(0));
+
+        /**
+         * Adds the <var>delta</var> to the quantity processed so far.
+         */
+        public void
+        add(double delta) {
+            for (;;) {
+                long expected = this.quantity.get();
+                long updated  = Double.doubleToLongBits(Double.longBitsToDouble(expected) + delta);
+                if (this.quantity.compareAndSet(expected, updated)) return;
+            }
+        }
+
+        /**
+         * Sets the quantity processed so far.
+         */
+        public void
+        set(double value) { this.quantity.set(Double.doubleToLongBits(value)); }
+
+        /**
+         * @return The quantity processed so far
+         */
+        public double
+        get() { return Double.longBitsToDouble(this.quantity.get()); }
+    }
+
+    /**
+     * @param currentQuantity   The <em>planned</em> current quantity, or {@code null}
+     * @param processedQuantity The quantity actually processed so far in the current interval
+     * @return                  The <var>remainingQuantity</var>, plus what is still missing of the
+     *                          <var>currentQuantity</var>, or {@code null} iff neither is known
+     */
+    @Nullable private static Double
+    remainingQuantity(
+        @Nullable Double currentQuantity,
+        @Nullable Double remainingQuantity,
+        double           processedQuantity
+    ) {
+        if (currentQuantity == null) return remainingQuantity;
+
+        double missing = Math.max(0, currentQuantity - processedQuantity);
+
+        return remainingQuantity == null ? missing : missing + remainingQuantity;
     }
 
     /**
@@ -548,6 +951,39 @@ class ThroughputTask extends Task implements TaskContainer {
         @Nullable Double   remainingQuantity,
         boolean            showEta,
         @Nullable String   quantityUnit
+    ) {
+        return ThroughputTask.composeBeforeMessage(
+            message,
+            previousQuantity,
+            previousDuration,
+            currentQuantity,
+            currentBeginning,
+            remainingQuantity,
+            showEta,
+            quantityUnit,
+            null
+        );
+    }
+
+    /**
+     * Like {@link #composeBeforeMessage(String, Double, Duration, Double, PointOfTime, Double, boolean, String)}, but
+     * computes the "approx." and "ETA" fragments from the given <var>secondsPerUnit</var> (typically computed by a
+     * {@link RateEstimator}), instead of from <var>previousQuantity</var> and <var>previousDuration</var>.
+     *
+     * @param secondsPerUnit The inverse of the estimated rate, or {@code null} to compute it from
+     *                       <var>previousQuantity</var> and <var>previousDuration</var>
+     */
+    public static String
+    composeBeforeMessage(
+        String             message,
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        @Nullable Double   currentQuantity,
+        PointOfTime        currentBeginning,
+        @Nullable Double   remainingQuantity,
+        boolean            showEta,
+        @Nullable String   quantityUnit,
+        @Nullable Double   secondsPerUnit
     ) {
         if (currentQuantity != null) {
             quantityUnit = quantityUnit == null ? "" : " " + quantityUnit;
@@ -576,8 +1012,14 @@ class ThroughputTask extends Task implements TaskContainer {
                     ThroughputTask.singularize(quantityUnit, currentQuantity)
                 );
             }
-            if (previousQuantity != null && previousQuantity != 0 && previousDuration != null) {
-                Duration estimatedCurrentDuration = previousDuration.multiply(currentQuantity).divide(previousQuantity);
+            Duration estimatedCurrentDuration = (
+                secondsPerUnit != null
+                ? new Duration(currentQuantity * secondsPerUnit)
+                : previousQuantity != null && previousQuantity != 0 && previousDuration != null
+                ? previousDuration.multiply(currentQuantity).divide(previousQuantity)
+                : null
+            );
+            if (estimatedCurrentDuration != null) {
                 message += String.format(ThroughputTask.LOCALE, " = approx. %s", estimatedCurrentDuration);
                 if (showEta) {
                     message += String.format(
@@ -630,9 +1072,113 @@ class ThroughputTask extends Task implements TaskContainer {
         boolean            showEta,
         @Nullable String   quantityUnit
     ) {
+        return ThroughputTask.composeAfterMessage(
+            previousQuantity,
+            previousDuration,
+            currentQuantity,
+            currentDuration,
+            remainingQuantity,
+            remainingBeginning,
+            showEta,
+            quantityUnit,
+            null
+        );
+    }
+
+    /**
+     * Like {@link #composeAfterMessage(Double, Duration, Double, Duration, Double, PointOfTime, boolean, String)}, but
+     * computes the "approx." and "ETA" fragments from the given <var>secondsPerUnit</var> (typically computed by a
+     * {@link RateEstimator}), instead of from the quantities and durations.
+     *
+     * @param secondsPerUnit The inverse of the estimated rate, or {@code null} to compute it from the quantities and
+     *                       durations
+     */
+    public static String
+    composeAfterMessage(
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        @Nullable Double   currentQuantity,
+        Duration           currentDuration,
+        @Nullable Double   remainingQuantity,
+        PointOfTime        remainingBeginning,
+        boolean            showEta,
+        @Nullable String   quantityUnit,
+        @Nullable Double   secondsPerUnit
+    ) {
 
         // (1) "... done! Took 1.000s"
-        String afterMessage = String.format(ThroughputTask.LOCALE, "... done! Took %s", currentDuration);
+        return ThroughputTask.appendQuantities(
+            String.format(ThroughputTask.LOCALE, "... done! Took %s", currentDuration),
+            previousQuantity,
+            previousDuration,
+            currentQuantity,
+            currentDuration,
+            remainingQuantity,
+            remainingBeginning,
+            showEta,
+            quantityUnit,
+            secondsPerUnit
+        );
+    }
+
+    /**
+     * Composes and returns a <a
+     * href="http://antology.unkrig.de/antdoc/tasks/throughput.html#Progress_messages">progress message</a>.
+     *
+     * @param currentQuantity The quantity processed so far
+     * @param currentDuration The time elapsed so far
+     * @param quantityUnit    E.g. 'min' or 'bytes' or {@code null}
+     * @param secondsPerUnit  The inverse of the estimated rate, or {@code null} to compute it from the quantities and
+     *                        durations
+     */
+    public static String
+    composeProgressMessage(
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        double             currentQuantity,
+        Duration           currentDuration,
+        @Nullable Double   remainingQuantity,
+        PointOfTime        remainingBeginning,
+        boolean            showEta,
+        @Nullable String   quantityUnit,
+        @Nullable Double   secondsPerUnit
+    ) {
+
+        // Without a previous quantity, the "complete" and percentage fragments would be missing.
+        if (previousQuantity == null && remainingQuantity != null) previousQuantity = 0.0;
+
+        return ThroughputTask.appendQuantities(
+            String.format(ThroughputTask.LOCALE, "... running for %s", currentDuration),
+            previousQuantity,
+            previousDuration,
+            currentQuantity,
+            currentDuration,
+            remainingQuantity,
+            remainingBeginning,
+            showEta,
+            quantityUnit,
+            secondsPerUnit
+        );
+    }
+
+    /**
+     * Appends fragments (2) through (12) of the <a
+     * href="http://antology.unkrig.de/antdoc/tasks/throughput.html#After_message">after message</a> to the
+     * <var>afterMessage</var>.
+     */
+    private static String
+    appendQuantities(
+        String             afterMessage,
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        @Nullable Double   currentQuantity,
+        Duration           currentDuration,
+        @Nullable Double   remainingQuantity,
+        PointOfTime        remainingBeginning,
+        boolean            showEta,
+        @Nullable String   quantityUnit,
+        @Nullable Double   secondsPerUnit
+    ) {
 
         if (currentQuantity == null) return afterMessage;
 
@@ -730,16 +1276,14 @@ class ThroughputTask extends Task implements TaskContainer {
             ThroughputTask.singularize(quantityUnit, remainingQuantity)
         );
 
-        // Calculate the 'seconds per unit' (the inverse of the 'rate') for the following ETR / ETA calculation.
-        // If all of '(previous current)(Duration Quantity)' are known, calculate it from these; otherwise,
-        // calculate it from 'current(Duration Quantity)'.
-        Double secondsPerUnit = (
-            previousDuration != null && previousQuantity != null && previousQuantity + currentQuantity > 0
-            ? (Double) (previousDuration.add(currentDuration).toSeconds() / (previousQuantity + currentQuantity))
-            : currentQuantity > 0
-            ? currentDuration.toSeconds() / currentQuantity
-            : null
-        );
+        if (secondsPerUnit == null) {
+            secondsPerUnit = ThroughputTask.secondsPerUnit(
+                previousQuantity,
+                previousDuration,
+                currentQuantity,
+                currentDuration
+            );
+        }
         if (secondsPerUnit != null) {
             Duration remainingDuration = new Duration(remainingQuantity * secondsPerUnit);
 
@@ -764,6 +1308,95 @@ class ThroughputTask extends Task implements TaskContainer {
         return afterMessage + ")";
     }
 
+    /**
+     * Calculates the "seconds per unit" (the inverse of the "rate") for the ETR / ETA calculation. If all of {@code
+     * (previous|current)(Duration|Quantity)} are known, calculates it from these; otherwise, calculates it from {@code
+     * current(Duration|Quantity)}.
+     *
+     * @return {@code null} iff no quantity was processed yet
+     */
+    @Nullable private static Double
+    secondsPerUnit(
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        double             currentQuantity,
+        Duration           currentDuration
+    ) {
+        return (
+            previousDuration != null && previousQuantity != null && previousQuantity + currentQuantity > 0
+            ? (Double) (previousDuration.add(currentDuration).toSeconds() / (previousQuantity + currentQuantity))
+            : currentQuantity > 0
+            ? currentDuration.toSeconds() / currentQuantity
+            : null
+        );
+    }
+
+    /**
+     * Computes the same values as {@link #composeAfterMessage(Double, Duration, Double, Duration, Double,
+     * PointOfTime, boolean, String, Double)}, but in machine-readable form.
+     *
+     * @return Maps {@link Metrics#NAMES} to {@link Double}s, {@link Long}s and {@link String}s, or {@code null} iff
+     *         the value is unknown; the caller typically adds the {@code "label"} and the {@code "event"}
+     */
+    public static Map<String, Object>
+    composeMetrics(
+        @Nullable Double   previousQuantity,
+        @Nullable Duration previousDuration,
+        @Nullable Double   currentQuantity,
+        Duration           currentDuration,
+        @Nullable Double   remainingQuantity,
+        PointOfTime        remainingBeginning,
+        @Nullable String   quantityUnit,
+        @Nullable Double   secondsPerUnit
+    ) {
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("time",             remainingBeginning.milliseconds());
+        result.put("unit",             quantityUnit);
+        result.put("previousQuantity", previousQuantity);
+        result.put("previousDuration", previousDuration == null ? null : previousDuration.toSeconds());
+        result.put("currentQuantity",  currentQuantity);
+        result.put("currentDuration",  currentDuration.toSeconds());
+
+        if (currentQuantity == null) return result;
+
+        if (!currentDuration.isZero()) result.put("currentRate", currentQuantity / currentDuration.toSeconds());
+
+        double completedQuantity = previousQuantity == null ? currentQuantity : previousQuantity + currentQuantity;
+        result.put("completedQuantity", completedQuantity);
+
+        if (previousDuration != null && previousQuantity != null) {
+            Duration cumulatedDuration = previousDuration.add(currentDuration);
+            if (!cumulatedDuration.isZero()) {
+                result.put("cumulativeRate", completedQuantity / cumulatedDuration.toSeconds());
+            }
+        }
+
+        if (remainingQuantity == null) return result;
+
+        result.put("remainingQuantity", remainingQuantity);
+
+        double totalQuantity = completedQuantity + remainingQuantity;
+        result.put("totalQuantity", totalQuantity);
+        if (totalQuantity != 0) result.put("percentComplete", 100.0 * completedQuantity / totalQuantity);
+
+        if (secondsPerUnit == null) {
+            secondsPerUnit = ThroughputTask.secondsPerUnit(
+                previousQuantity,
+                previousDuration,
+                currentQuantity,
+                currentDuration
+            );
+        }
+        if (secondsPerUnit != null) {
+            Duration remainingDuration = new Duration(remainingQuantity * secondsPerUnit);
+            result.put("remainingDuration", remainingDuration.toSeconds());
+            result.put("eta",               remainingBeginning.add(remainingDuration).milliseconds());
+        }
+
+        return result;
+    }
+
     private void
     checkConsistency() {
         Double previousQuantity  = this.previousQuantity;
@@ -27,49 +27,130 @@
 package de.unkrig.antology.type;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Properties;
-import java.util.TimeZone;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectComponent;
+import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
-import org.apache.tools.ant.types.resources.Resources;
+import org.apache.tools.ant.types.resources.FileResource;
 import org.apache.tools.ant.types.resources.StringResource;
 
+import de.unkrig.antology.util.ParallelDirectoryScanner;
+import de.unkrig.antology.util.ParallelDirectoryScanner.ScannedFile;
+import de.unkrig.antology.util.ResourceStateStore;
+import de.unkrig.antology.util.ResourceStateStore.Entry;
+import de.unkrig.antology.util.SharedExecutor;
 import de.unkrig.commons.nullanalysis.Nullable;
 
 /**
  * Selects the subset of resources that was added, deleted or modified since the last check.
+ * <p>
+ *   The resources are checked lazily: Added and modified resources are returned as soon as they are found, and
+ *   deleted resources at the end. The new state is saved when the iteration is complete, or, with {@link
+ *   #setCheckpointInterval(int)}, also in between.
+ * </p>
+ * <p>
+ *   Each iteration (except for {@link #iterator(boolean) dry runs}) saves the new state, so the next iteration
+ *   reports only the changes since then. {@code <forEach2>} determines its total quantity through a dry run.
+ * </p>
  */
 public
-class ResourceCollectionDelta implements ResourceCollection, Iterable<Resource> {
+class ResourceCollectionDelta extends ProjectComponent implements ResourceCollection, Iterable<Resource> {
 
-    private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+    /** (Must be public for ANTDOC.) */
+    public static final String DEFAULT_HASH_ALGORITHM = "SHA-256";
 
-    private File stateFile = new File(System.getProperty("user.home"), ".resource-collection.delta.properties");
+    /** (Must be public for ANTDOC.) */
+    public static final String DEFAULT_EXECUTOR = "resourceCollectionDelta";
+
+    /**
+     * How to determine whether a resource was modified.
+     */
+    public
+    enum Compare {
+
+        /**
+         * Iff its "last modified" time changed.
+         */
+        LAST_MODIFIED,
+
+        /**
+         * Iff its size changed.
+         */
+        SIZE,
+
+        /**
+         * Iff its content changed. The content is hashed only if the size is unchanged, but the "last modified"
+         * time changed (or is not yet known).
+         */
+        HASH,
+    }
+
+    @Nullable private File stateFile;
+
+    private ResourceStateStore.Format stateFormat = ResourceStateStore.Format.PROPERTIES;
 
     @Nullable private String stateKey;
 
     private boolean                      added;
     private boolean                      deleted;
     private boolean                      modified;
+    private Compare                      compare       = Compare.LAST_MODIFIED;
+    private String                       hashAlgorithm = ResourceCollectionDelta.DEFAULT_HASH_ALGORITHM;
+    private int                          threads       = Runtime.getRuntime().availableProcessors();
+    private int                          scanThreads;
+    private int                          checkpointInterval;
+    private String                       executor      = ResourceCollectionDelta.DEFAULT_EXECUTOR;
     @Nullable private ResourceCollection delegate;
 
     /**
-     * The file to store the state information in.
+     * The file to store the state information in. Defaults to "{@code
+     * ~/.resource-collection.delta.properties}" resp. (for {@link #setStateFormat(ResourceStateStore.Format)
+     * stateFormat="BINARY"}) "{@code ~/.resource-collection.delta.bin}".
      */
     public void
     setStateFile(File file) { this.stateFile = file; }
 
+    /**
+     * How the state information is stored.
+     * <dl>
+     *   <dt>{@code PROPERTIES}</dt>
+     *   <dd>
+     *     A human-readable properties file, which is re-written completely on each check. Appropriate for up to
+     *     some 10,000 resources.
+     *   </dd>
+     *   <dt>{@code BINARY}</dt>
+     *   <dd>
+     *     A compact binary file, to which each check appends only the changes; timestamps are stored as numbers.
+     *     Appropriate for millions of resources.
+     *   </dd>
+     * </dl>
+     *
+     * @ant.defaultValue PROPERTIES
+     */
+    public void
+    setStateFormat(ResourceStateStore.Format value) { this.stateFormat = value; }
+
     /**
      * Identifies the "state" to check against; use different values if you want to check more than one
      * resource collection (or use different {@link #setStateFile(File)}s).
@@ -101,6 +182,106 @@ class ResourceCollectionDelta implements ResourceCollection, Iterable<Resource>
     public void
     setModified(boolean includeModifiedResources) { this.modified = includeModifiedResources; }
 
+    /**
+     * How to determine whether a resource was <em>modified</em>.
+     * <dl>
+     *   <dt>{@code LAST_MODIFIED}</dt>
+     *   <dd>By its "last modified" time</dd>
+     *   <dt>{@code SIZE}</dt>
+     *   <dd>By its size; resources that were "touched", but not modified, are not reported</dd>
+     *   <dt>{@code HASH}</dt>
+     *   <dd>
+     *     By a hash of its content; resources that were "touched", or were modified and then reverted, are not
+     *     reported. Resources with unchanged size and "last modified" time are not read; hashing of the other ones
+     *     executes in {@link #setThreads(int) parallel}.
+     *   </dd>
+     * </dl>
+     * <p>
+     *   With {@code SIZE} and {@code HASH}, the sizes resp. hashes are saved in the state file. If a size or hash
+     *   is not yet known from an earlier check, then the "last modified" times are compared instead.
+     * </p>
+     *
+     * @ant.defaultValue LAST_MODIFIED
+     */
+    public void
+    setCompare(Compare value) { this.compare = value; }
+
+    /**
+     * The {@link MessageDigest} algorithm for {@link #setCompare(Compare) compare="HASH"}.
+     *
+     * @ant.defaultValue {@value #DEFAULT_HASH_ALGORITHM}
+     */
+    public void
+    setHashAlgorithm(String value) {
+        try {
+            MessageDigest.getInstance(value);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new BuildException(nsae);
+        }
+        this.hashAlgorithm = value;
+    }
+
+    /**
+     * The maximum number of resources to hash concurrently for {@link #setCompare(Compare) compare="HASH"}.
+     * Defaults to the number of available processors.
+     */
+    public void
+    setThreads(int value) {
+        if (value < 1) throw new BuildException("Thread count must be positive");
+        this.threads = value;
+    }
+
+    /**
+     * If greater than zero, and the resource collection is a {@code <fileset>} (but not, e.g., a {@code
+     * <zipfileset>}) without selectors, then its directory tree is scanned by that many threads concurrently, and the
+     * "last modified" time and size of each file are determined with one file system operation. Notice that the
+     * resources are then checked in no particular order.
+     * <p>
+     *   This is particularly useful for huge directory trees on network file systems, where each file system
+     *   operation is slow, and more threads than processors are appropriate.
+     * </p>
+     *
+     * @ant.defaultValue 0
+     */
+    public void
+    setScanThreads(int value) {
+        if (value < 0) throw new BuildException("Scan thread count must not be negative");
+        this.scanThreads = value;
+    }
+
+    /**
+     * The name of the executor that hashes the resources and scans the directory tree; see {@link
+     * de.unkrig.antology.filter.TeeFilter#setExecutor(String)}.
+     *
+     * @ant.defaultValue {@value #DEFAULT_EXECUTOR}
+     */
+    public void
+    setExecutor(String value) { this.executor = value; }
+
+    /**
+     * If greater than zero, then the new state is saved each time that many resources were processed (and not
+     * only at the end of the iteration). Thus, if the build is interrupted, then the next execution does not
+     * report the already processed resources again.
+     * <p>
+     *   A resource counts as "processed" as soon as the caller requests the next resource. Thus, callers that
+     *   process the resources concurrently would checkpoint resources that were not yet processed; {@code
+     *   <forEach2 threads="2">} (and more threads) rejects a checkpoint interval for that reason.
+     * </p>
+     *
+     * @ant.defaultValue 0
+     */
+    public void
+    setCheckpointInterval(int value) {
+        if (value < 0) throw new BuildException("Checkpoint interval must not be negative");
+        this.checkpointInterval = value;
+    }
+
+    /**
+     * @see #setCheckpointInterval(int)
+     */
+    public int
+    getCheckpointInterval() { return this.checkpointInterval; }
+
     /** The collection of resources to check. */
     public void
     addConfigured(ResourceCollection value) {
@@ -108,7 +289,7 @@ class ResourceCollectionDelta implements ResourceCollection, Iterable<Resource>
         this.delegate = value;
     }
 
-    @Nullable private Properties state;
+    @Nullable private ResourceStateStore store;
 
     // IMPLEMENTATION OF ResourceCollection
 
@@ -120,150 +301,482 @@ class ResourceCollectionDelta implements ResourceCollection, Iterable<Resource>
     }
 
     @Override public Iterator<Resource>
-    iterator() {
+    iterator() { return this.iterator(false); }
+
+    /**
+     * A dry run can execute concurrently with another iteration, e.g. to determine the number of changes in a
+     * background thread.
+     *
+     * @param dryRun Whether to <em>not</em> save the new state
+     */
+    public Iterator<Resource>
+    iterator(boolean dryRun) {
 
         final ResourceCollection delegate = this.delegate;
         if (delegate == null) throw new BuildException("Resource collection subelement missing");
         final String stateKey = this.stateKey;
         if (stateKey == null) throw new BuildException("'stateKey=...' attribute missing");
 
-        // Restore the state if it exists.
-        Properties state;
-        try {
-            state = this.state;
-            if (state == null) {
-                state = new Properties();
-                try {
-                    final FileInputStream is = new FileInputStream(this.stateFile);
-                    try {
-                        state.load(is);
-                        is.close();
-                    } finally {
-                        try { is.close(); } catch (final Exception e) {}
-                    }
-                } catch (final FileNotFoundException fnfe) {
-                    ;
-                }
+        // Restore the state if it exists. Notice that the store is not thread-safe, and that the loaded state
+        // reflects the updates of other iterations, so a dry run takes a snapshot of it.
+        final ResourceStateStore store = this.getStore();
+        Map<String, Entry>       state;
+        synchronized (store) {
+            try {
+                state = store.load(stateKey);
+            } catch (final IOException ioe) {
+                throw new BuildException(ioe);
             }
-        } catch (final IOException ioe) {
-            throw new BuildException(ioe);
+            if (dryRun) state = new HashMap<String, Entry>(state);
+        }
+
+        // Scan the directory tree in parallel iff configured and possible.
+        ParallelDirectoryScanner scanner = this.parallelDirectoryScanner(delegate);
+        Iterator<Resource>       subjects;
+        if (scanner == null) {
+            subjects = delegate.iterator();
+        } else {
+            File dir = ((FileSet) delegate).getDir(this.getProject());
+            assert dir != null;
+            subjects = new ScannedFileResources(dir, scanner);
         }
 
-        final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        df.setTimeZone(ResourceCollectionDelta.GMT);
+        return new DeltaIterator(store, stateKey, state, subjects, scanner, dryRun);
+    }
 
-        final Properties newState = new Properties();
-        final Resources  result   = new Resources();
-        for (final Iterator<Resource> it = delegate.iterator(); it.hasNext();) {
-            final Resource subject = it.next();
+    /**
+     * A resource that was added or modified (iff {@link #entry} is not {@code null}) or deleted (iff {@link
+     * #entry} is {@code null}).
+     */
+    private static
+    class Change {
 
-            String key = stateKey + '@' + subject.getName();
+        final String          name;
+        @Nullable final Entry entry;
 
-            final String oldValue = state.getProperty(key);
+        Change(String name, @Nullable Entry entry) {
+            this.name  = name;
+            this.entry = entry;
+        }
+    }
 
-            final String newValue = df.format(subject.getLastModified());
+    /**
+     * Checks the resources lazily, i.e. only as far as necessary to produce the next element, and persists the new
+     * state incrementally.
+     * <p>
+     *   The state of a resource is persisted only after the <em>following</em> element was requested (or the end of
+     *   the iteration was reached); the idea is that the caller has processed the resource by then.
+     * </p>
+     */
+    private
+    class DeltaIterator implements Iterator<Resource> {
+
+        private final ResourceStateStore                 store;
+        private final String                             stateKey;
+        private final Map<String, Entry>                 state;
+        private final Iterator<Resource>                 subjects;
+        @Nullable private final ParallelDirectoryScanner scanner;
+        private final boolean                            dryRun;
+
+        private final Set<String> seen = new HashSet<String>();
+
+        // Resources are hashed in the background, but evaluated in their original order.
+        private final Deque<Candidate> candidates = new ArrayDeque<Candidate>();
+
+        // The changes that are yet to be returned by "next()".
+        private final Deque<Change> ready = new ArrayDeque<Change>();
+
+        // The last change returned by "next()".
+        @Nullable private Change yielded;
+
+        // The changes that are yet to be persisted.
+        private final Map<String, Entry> puts     = new HashMap<String, Entry>();
+        private final List<String>       removals = new ArrayList<String>();
+
+        private boolean scanned, finished;
+
+        DeltaIterator(
+            ResourceStateStore                 store,
+            String                             stateKey,
+            Map<String, Entry>                 state,
+            Iterator<Resource>                 subjects,
+            @Nullable ParallelDirectoryScanner scanner,
+            boolean                            dryRun
+        ) {
+            this.store    = store;
+            this.stateKey = stateKey;
+            this.state    = state;
+            this.subjects = subjects;
+            this.scanner  = scanner;
+            this.dryRun   = dryRun;
+        }
 
-            if (oldValue == null) {
-                if (this.added) {
-                    newState.setProperty(key, newValue);
-                    result.add(new StringResource(subject.getName()));
-                }
-            } else
-            if (newValue.equals(oldValue)) {
-                newState.setProperty(key, newValue);
-            } else
-            {
-                if (this.modified) {
-                    newState.setProperty(key, newValue);
-                    result.add(new StringResource(subject.getName()));
+        @Override public boolean
+        hasNext() {
+
+            // The caller is done with the preceding element.
+            Change yielded = this.yielded;
+            if (yielded != null) {
+                Entry entry = yielded.entry;
+                if (entry != null) {
+                    this.puts.put(yielded.name, entry);
                 } else {
-                    newState.setProperty(key, oldValue);
+                    this.removals.add(yielded.name);
                 }
+                this.yielded = null;
+
+                int interval = ResourceCollectionDelta.this.checkpointInterval;
+                if (interval > 0 && this.puts.size() + this.removals.size() >= interval) this.store();
+            }
+
+            try {
+                while (this.ready.isEmpty() && !this.scanned) this.advance();
+            } catch (RuntimeException re) {
+                this.cancel();
+                throw re;
+            }
+
+            if (!this.ready.isEmpty()) return true;
+
+            if (!this.finished) {
+                this.store();
+                this.finished = true;
             }
+
+            return false;
         }
 
-        for (final Entry<Object, Object> entry : state.entrySet()) {
-            final String key      = (String) entry.getKey();
-            final String oldValue = (String) entry.getValue();
-            if (!newState.containsKey(key)) {
-                if (key.startsWith(stateKey + '@') && this.deleted) {
-                    result.add(new StringResource(key.substring(stateKey.length() + 1)));
-                } else {
-                    newState.setProperty(key, oldValue);
+        @Override public Resource
+        next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            Change result = this.ready.remove();
+            this.yielded = result;
+            return new StringResource(result.name);
+        }
+
+        @Override public void
+        remove() { throw new UnsupportedOperationException("remove"); }
+
+        /**
+         * Checks the next resource, or, at the end of the scan, determines the deleted resources.
+         */
+        private void
+        advance() {
+
+            ResourceCollectionDelta rcd = ResourceCollectionDelta.this;
+
+            if (this.subjects.hasNext()) {
+                Resource subject = this.subjects.next();
+
+                String name = subject.getName();
+                this.seen.add(name);
+
+                Entry oldEntry = this.state.get(name);
+                if (oldEntry == null && !rcd.added) return;
+
+                this.candidates.add(rcd.candidate(subject, oldEntry));
+
+                while (
+                    !this.candidates.isEmpty()
+                    && (this.candidates.size() > rcd.threads || this.candidates.peek().isDone())
+                ) rcd.evaluate(this.candidates.remove(), this.puts, this.ready);
+                return;
+            }
+
+            while (!this.candidates.isEmpty()) rcd.evaluate(this.candidates.remove(), this.puts, this.ready);
+
+            if (rcd.deleted) {
+                for (String name : this.state.keySet()) {
+                    if (!this.seen.contains(name)) this.ready.add(new Change(name, null));
                 }
             }
+
+            this.scanned = true;
         }
 
-        final Iterator<Resource> tmp = result.iterator();
-        return new Iterator<Resource>() {
-
-            @Override public boolean
-            hasNext() {
-
-                if (tmp.hasNext()) return true;
-
-                File stateFile    = ResourceCollectionDelta.this.stateFile;
-                File oldStateFile = new File(stateFile.getParent(), stateFile.getName() + ",old");
-                File newStateFile = new File(stateFile.getParent(), stateFile.getName() + ",new");
-
-                {
-                    OutputStream os;
-                    try {
-                        os = new FileOutputStream(newStateFile);
-                    } catch (final FileNotFoundException fnfe) {
-                        throw new BuildException(fnfe.getMessage(), fnfe);
-                    }
-
-                    try {
-                        newState.store(os, null);
-                        os.close();
-                    } catch (final IOException ioe) {
-                        throw new BuildException(ioe.getMessage(), ioe);
-                    } finally {
-                        try { os.close(); } catch (final Exception e) {}
-                    }
-                }
+        private void
+        store() {
 
-                if (stateFile.exists()) {
-                    oldStateFile.delete();
-                    ResourceCollectionDelta.rename(stateFile, oldStateFile);
-                    ResourceCollectionDelta.rename(newStateFile, stateFile);
-                    ResourceCollectionDelta.delete(oldStateFile);
-                } else {
-                    ResourceCollectionDelta.rename(newStateFile, stateFile);
+            if (this.dryRun) return;
+
+            synchronized (this.store) {
+                try {
+                    this.store.update(this.stateKey, this.puts, this.removals);
+                } catch (IOException ioe) {
+                    throw new BuildException(ioe.getMessage(), ioe);
                 }
+            }
+            this.puts.clear();
+            this.removals.clear();
+        }
+
+        void
+        cancel() {
+            for (Candidate c : this.candidates) c.cancel();
+            ParallelDirectoryScanner scanner = this.scanner;
+            if (scanner != null) scanner.cancel();
+        }
+    }
+
+    /**
+     * @return {@code null} iff the <var>delegate</var> cannot be (or is not configured to be) scanned in parallel
+     */
+    @Nullable private ParallelDirectoryScanner
+    parallelDirectoryScanner(ResourceCollection delegate) {
+
+        // Notice: Subclasses of FileSet (e.g. ZipFileSet and TarFileSet) cannot be scanned in the file system.
+        if (this.scanThreads == 0 || delegate.getClass() != FileSet.class) return null;
+
+        FileSet fileSet = (FileSet) delegate;
+        if (fileSet.hasSelectors()) return null;
+
+        Project project = this.getProject();
+
+        File dir = fileSet.getDir(project);
+        if (dir == null) throw new BuildException("No directory specified for fileset");
+        if (!dir.isDirectory() && fileSet.getErrorOnMissingDir()) {
+            throw new BuildException(dir.getAbsolutePath() + " does not exist");
+        }
+
+        String[] includes = fileSet.mergeIncludes(project);
+        String[] excludes = fileSet.mergeExcludes(project);
+
+        return new ParallelDirectoryScanner(
+            project,
+            dir,
+            includes == null ? new String[0] : includes,
+            excludes == null ? new String[0] : excludes,
+            fileSet.getDefaultexcludes(),
+            fileSet.isCaseSensitive(),
+            fileSet.isFollowSymlinks(),
+            SharedExecutor.get(project, this.executor),
+            this.scanThreads
+        );
+    }
+
+    /**
+     * Wraps the files found by a {@link ParallelDirectoryScanner} as {@link FileResource}s, which do not access the
+     * file system again for the "last modified" time and the size.
+     */
+    private static
+    class ScannedFileResources implements Iterator<Resource> {
+
+        private final File                     baseDir;
+        private final ParallelDirectoryScanner scanner;
+
+        ScannedFileResources(File baseDir, ParallelDirectoryScanner scanner) {
+            this.baseDir = baseDir;
+            this.scanner = scanner;
+        }
+
+        @Override public boolean
+        hasNext() { return this.scanner.hasNext(); }
+
+        @Override public Resource
+        next() {
+
+            final ScannedFile file = this.scanner.next();
 
-                ResourceCollectionDelta.this.state = newState;
+            return new FileResource(this.baseDir, file.getName()) {
+                @Override public boolean isExists()        { return true;                   }
+                @Override public long    getLastModified() { return file.getLastModified(); }
+                @Override public long    getSize()         { return file.getSize();         }
+            };
+        }
+
+        @Override public void
+        remove() { throw new UnsupportedOperationException("remove"); }
+    }
+
+    /**
+     * A resource that was found in the delegate, and is yet to be compared with its previous state.
+     */
+    private static
+    class Candidate {
+
+        final String             name;
+        @Nullable final Entry    oldEntry;
+        final long               lastModified;
+        final long               size;
+        @Nullable Future<byte[]> hash;
+
+        Candidate(String name, @Nullable Entry oldEntry, long lastModified, long size) {
+            this.name         = name;
+            this.oldEntry     = oldEntry;
+            this.lastModified = lastModified;
+            this.size         = size;
+        }
 
-                return false;
+        boolean
+        isDone() {
+            Future<byte[]> hash = this.hash;
+            return hash == null || hash.isDone();
+        }
+
+        void
+        cancel() {
+            Future<byte[]> hash = this.hash;
+            if (hash != null) hash.cancel(true);
+        }
+    }
+
+    private Candidate
+    candidate(final Resource subject, @Nullable Entry oldEntry) {
+
+        long lastModified = subject.getLastModified();
+        long size         = this.compare == Compare.LAST_MODIFIED ? -1 : subject.getSize();
+        if (size < 0) size = -1;
+
+        Candidate result = new Candidate(subject.getName(), oldEntry, lastModified, size);
+
+        if (this.compare == Compare.HASH) {
+
+            // Iff size and "last modified" time are unchanged, then assume that the content is unchanged, too.
+            if (
+                oldEntry != null
+                && oldEntry.getHash() != null
+                && size != -1
+                && oldEntry.getSize() == size
+                && oldEntry.getLastModified() == lastModified
+            ) return result;
+
+            final String algorithm = this.hashAlgorithm;
+            result.hash = SharedExecutor.get(this.getProject(), this.executor).submit(new Callable<byte[]>() {
+
+                @Override public byte[]
+                call() throws IOException { return ResourceCollectionDelta.hash(subject, algorithm); }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Compares the <var>candidate</var> with its previous state, and, iff it was added or modified, adds it to the
+     * <var>ready</var> changes. Iff it was not modified, but its state needs an update nonetheless, then adds its new
+     * state to the <var>puts</var>.
+     */
+    private void
+    evaluate(Candidate candidate, Map<String, Entry> puts, Deque<Change> ready) {
+
+        Future<byte[]> hashFuture = candidate.hash;
+        Entry          oldEntry   = candidate.oldEntry;
+
+        byte[] hash;
+        if (hashFuture != null) {
+            try {
+                hash = hashFuture.get();
+            } catch (InterruptedException ie) {
+                throw new BuildException(ie);
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                throw new BuildException("Hashing \"" + candidate.name + "\": " + cause, cause);
             }
+        } else {
+            hash = oldEntry == null ? null : oldEntry.getHash();
+        }
+
+        Entry newEntry = new Entry(candidate.lastModified, candidate.size, hash);
+
+        if (oldEntry == null) {
+            ready.add(new Change(candidate.name, newEntry));
+        } else
+        if (this.isModified(oldEntry, newEntry)) {
+            if (this.modified) ready.add(new Change(candidate.name, newEntry));
+        } else
+        if (
+            this.compare == Compare.HASH
+            && (oldEntry.getLastModified() != newEntry.getLastModified() || hashFuture != null)
+        ) {
+
+            // Remember the new "last modified" time and hash, so that the resource need not be hashed again next
+            // time.
+            puts.put(candidate.name, newEntry);
+        } else
+        if (this.compare == Compare.SIZE && oldEntry.getSize() == -1 && newEntry.getSize() != -1) {
+
+            // The previous state was recorded without sizes (e.g. with compare="LAST_MODIFIED"); remember the size,
+            // so that it is compared next time.
+            puts.put(candidate.name, newEntry);
+        }
+    }
+
+    private boolean
+    isModified(Entry oldEntry, Entry newEntry) {
 
-            @Override public Resource
-            next() { return tmp.next(); }
+        switch (this.compare) {
 
-            @Override public void
-            remove() { tmp.remove(); }
-        };
+        case LAST_MODIFIED:
+            break;
+
+        case SIZE:
+            if (oldEntry.getSize() != -1 && newEntry.getSize() != -1) {
+                return oldEntry.getSize() != newEntry.getSize();
+            }
+            break;
+
+        case HASH:
+            byte[] oldHash = oldEntry.getHash(), newHash = newEntry.getHash();
+            if (oldHash != null && newHash != null) return !Arrays.equals(oldHash, newHash);
+            break;
+
+        default:
+            throw new AssertionError(this.compare);
+        }
+
+        return oldEntry.getLastModified() != newEntry.getLastModified();
     }
 
+    private static byte[]
+    hash(Resource resource, String algorithm) throws IOException {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+
+        InputStream is = resource.getInputStream();
+        try {
+            byte[] buffer = new byte[65536];
+            for (int n = is.read(buffer); n != -1; n = is.read(buffer)) md.update(buffer, 0, n);
+            is.close();
+        } finally {
+            try { is.close(); } catch (Exception e) {}
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Counts the resources, but, other than an {@link #iterator()}, does not save the new state.
+     */
     @Override public int
     size() {
         int result = 0;
-        for (@SuppressWarnings("unused") Resource unused : this) result++;
+        for (Iterator<Resource> it = this.iterator(true); it.hasNext(); it.next()) result++;
         return result;
     }
 
-    private static void
-    delete(File file) {
-        if (!file.delete()) {
-            throw new BuildException("Could not delete '" + file);
+    private synchronized ResourceStateStore
+    getStore() {
+
+        ResourceStateStore result = this.store;
+        if (result != null) return result;
+
+        File stateFile = this.stateFile;
+        if (stateFile == null) {
+            stateFile = new File(
+                System.getProperty("user.home"),
+                (
+                    this.stateFormat == ResourceStateStore.Format.BINARY
+                    ? ".resource-collection.delta.bin"
+                    : ".resource-collection.delta.properties"
+                )
+            );
         }
-    }
 
-    private static void
-    rename(File source, File destination) {
-        if (!source.renameTo(destination)) {
-            throw new BuildException("Could not rename '" + source + "' to '" + destination);
-        }
+        return (this.store = ResourceStateStore.open(stateFile, this.stateFormat));
     }
 }
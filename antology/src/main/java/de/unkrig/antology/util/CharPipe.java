@@ -0,0 +1,435 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.LockSupport;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A replacement for a {@link java.io.PipedWriter}/{@link java.io.PipedReader} pair, for exactly one writing thread
+ * and one or more reading threads, where each reader gets all the data.
+ * <p>
+ *   The data is transferred through a ring of fixed-size {@code char[]} chunks, which are allocated only once and
+ *   are shared by all readers. The {@link #writer()} publishes a chunk only when it is full (or on {@link
+ *   Writer#flush() flush} and {@link Writer#close() close}), so single-character writes are as cheap as an array
+ *   store. Neither side takes a lock; the writer blocks (parks) only when the ring is full (i.e. when the slowest
+ *   reader lags by the entire ring), and a reader only when it has consumed all published chunks.
+ * </p>
+ * <p>
+ *   What happens when the ring is full is determined by the {@link Overflow} policy.
+ * </p>
+ */
+public final
+class CharPipe {
+
+    private static final Charset SPILL_CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * What the writer does when the ring is full, i.e. when (at least) one reader does not keep up.
+     */
+    public
+    enum Overflow {
+
+        /**
+         * Wait until the slowest reader has consumed a chunk.
+         */
+        BLOCK,
+
+        /**
+         * Stop feeding the slowest reader(s); these get end-of-input immediately, i.e. they miss the rest of the
+         * data. (See {@link CharPipe#isDropped()}.)
+         */
+        DROP,
+
+        /**
+         * Write this and all following data to a temporary file, which the readers read after they have consumed
+         * the ring and the writer was closed. Thus the writer never blocks, at the cost of disk space and of
+         * delaying the readers.
+         */
+        SPILL,
+    }
+
+    private final char[][]     chunks;
+    private final int[]        lengths;
+    private final PipeReader[] readers;
+    private final Overflow     overflow;
+
+    /** The number of chunks that were published by the writer. */
+    private volatile long head;
+
+    /** The number of chars in the (not yet published) chunk with index {@link #head}; owned by the writer. */
+    private int fill;
+
+    private volatile boolean writerClosed;
+
+    /** Written by the writer before it sets {@link #writerClosed}. */
+    @Nullable private File spillFile;
+
+    @Nullable private Writer spillWriter;
+
+    private final Writer writer = new Writer() {
+
+        @Override public void
+        write(int c) throws IOException {
+            CharPipe cp = CharPipe.this;
+
+            if (cp.fill == 0 || cp.spillWriter != null) {
+                super.write(c);
+                return;
+            }
+
+            char[] chunk = cp.chunks[(int) (cp.head % cp.chunks.length)];
+            chunk[cp.fill++] = (char) c;
+            if (cp.fill == chunk.length) cp.publish();
+        }
+
+        @Override public void
+        write(char[] cbuf, int off, int len) throws IOException {
+            CharPipe cp = CharPipe.this;
+
+            while (len > 0) {
+
+                Writer sw = cp.spillWriter;
+                if (sw != null) {
+                    sw.write(cbuf, off, len);
+                    return;
+                }
+
+                if (!cp.acquireChunk()) {
+                    if (cp.spillWriter != null) continue;
+
+                    // All readers are closed or dropped.
+                    return;
+                }
+
+                char[] chunk = cp.chunks[(int) (cp.head % cp.chunks.length)];
+                int    n     = Math.min(len, chunk.length - cp.fill);
+                System.arraycopy(cbuf, off, chunk, cp.fill, n);
+                cp.fill += n;
+                off     += n;
+                len     -= n;
+                if (cp.fill == chunk.length) cp.publish();
+            }
+        }
+
+        @Override public void
+        flush() throws IOException {
+            CharPipe cp = CharPipe.this;
+
+            if (cp.fill > 0) cp.publish();
+
+            Writer sw = cp.spillWriter;
+            if (sw != null) sw.flush();
+        }
+
+        @Override public void
+        close() throws IOException {
+            CharPipe cp = CharPipe.this;
+
+            if (cp.writerClosed) return;
+
+            try {
+                if (cp.fill > 0) cp.publish();
+
+                Writer sw = cp.spillWriter;
+                if (sw != null) sw.close();
+            } finally {
+                cp.writerClosed = true;
+                for (PipeReader r : cp.readers) CharPipe.unpark(r.waiting);
+                cp.deleteSpillFileIfUnused();
+            }
+        }
+    };
+
+    /**
+     * One read end of the pipe.
+     */
+    private
+    class PipeReader extends Reader {
+
+        /** The number of chunks that this reader consumed. */
+        volatile long tail;
+
+        /** The read position within the chunk with index {@link #tail}. */
+        private int pos;
+
+        volatile boolean closed, dropped;
+
+        /**
+         * Whether this reader is copying from a chunk; the writer does not overwrite the chunk of a dropped reader
+         * before that reader has finished copying.
+         */
+        volatile boolean copying;
+
+        @Nullable volatile Thread waiting;
+
+        @Nullable private Reader spillReader;
+
+        @Override public int
+        read(char[] cbuf, int off, int len) throws IOException {
+            CharPipe cp = CharPipe.this;
+
+            for (;;) {
+
+                if (this.dropped) return -1;
+
+                if (this.tail < cp.head) {
+                    int idx = (int) (this.tail % cp.chunks.length);
+
+                    // Notice: Checking "dropped" only after the copy would not suffice, because the JMM does not
+                    // order the (plain) reads of the copy before that (volatile) read. Instead, announce the copy
+                    // before checking "dropped", so that either this reader notices that it was dropped, or the
+                    // writer notices the copy and waits for its completion before it overwrites the chunk.
+                    int n;
+                    this.copying = true;
+                    try {
+                        if (this.dropped) return -1;
+                        n = Math.min(len, cp.lengths[idx] - this.pos);
+                        System.arraycopy(cp.chunks[idx], this.pos, cbuf, off, n);
+                    } finally {
+                        this.copying = false;
+                        CharPipe.unpark(cp.waitingWriter);
+                    }
+
+                    this.pos += n;
+                    if (this.pos == cp.lengths[idx]) {
+                        this.pos = 0;
+                        this.tail++;
+                        CharPipe.unpark(cp.waitingWriter);
+                    }
+                    return n;
+                }
+
+                Reader sr = this.spillReader;
+                if (sr != null) return sr.read(cbuf, off, len);
+
+                if (cp.writerClosed) {
+
+                    // The writer may have published its last chunk just before it closed.
+                    if (this.tail < cp.head) continue;
+
+                    File sf = cp.spillFile;
+                    if (sf == null) return -1;
+
+                    this.spillReader = new InputStreamReader(new FileInputStream(sf), CharPipe.SPILL_CHARSET);
+                    continue;
+                }
+
+                // This reader has consumed all published chunks; wait for the writer.
+                this.waiting = Thread.currentThread();
+                try {
+                    while (this.tail >= cp.head && !cp.writerClosed && !this.dropped) {
+                        LockSupport.park(cp);
+                        if (Thread.interrupted()) throw new InterruptedIOException();
+                    }
+                } finally {
+                    this.waiting = null;
+                }
+            }
+        }
+
+        @Override public void
+        close() throws IOException {
+
+            this.closed = true;
+            CharPipe.unpark(CharPipe.this.waitingWriter);
+
+            Reader sr = this.spillReader;
+            if (sr != null) {
+                sr.close();
+                this.spillReader = null;
+            }
+
+            CharPipe.this.deleteSpillFileIfUnused();
+        }
+    }
+
+    @Nullable private volatile Thread waitingWriter;
+
+    /**
+     * @param chunkSize   The number of chars per chunk
+     * @param chunkCount  The number of chunks in the ring; thus, the capacity of the pipe is <var>chunkSize</var>
+     *                    &times; <var>chunkCount</var> chars
+     * @param readerCount The number of {@link #reader(int) read ends}
+     */
+    public
+    CharPipe(int chunkSize, int chunkCount, int readerCount, Overflow overflow) {
+
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize");
+        if (chunkCount < 1) throw new IllegalArgumentException("chunkCount");
+        if (readerCount < 1) throw new IllegalArgumentException("readerCount");
+
+        this.chunks   = new char[chunkCount][chunkSize];
+        this.lengths  = new int[chunkCount];
+        this.readers  = new PipeReader[readerCount];
+        this.overflow = overflow;
+
+        for (int i = 0; i < readerCount; i++) this.readers[i] = new PipeReader();
+    }
+
+    /**
+     * @return The write end of the pipe; may only be used by one thread
+     */
+    public Writer
+    writer() { return this.writer; }
+
+    /**
+     * @param index 0 ... <var>readerCount</var> - 1
+     * @return      One of the read ends of the pipe; each may only be used by one thread. Closing it before
+     *              end-of-input causes the writer to ignore that reader from then on
+     */
+    public Reader
+    reader(int index) { return this.readers[index]; }
+
+    /**
+     * @return Whether data was discarded for at least one reader due to the {@link Overflow#DROP} policy
+     */
+    public boolean
+    isDropped() {
+        for (PipeReader r : this.readers) {
+            if (r.dropped) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes the chunk with index {@link #head} available to the writer, or applies the {@link Overflow} policy.
+     *
+     * @return {@code false} iff the chunk was not acquired, and the writer must re-check its state
+     */
+    private boolean
+    acquireChunk() throws IOException {
+
+        if (this.fill > 0) return true;
+
+        long minTail = this.minTail();
+        if (minTail == Long.MAX_VALUE) return false;
+        if (this.head - minTail < this.chunks.length) return true;
+
+        switch (this.overflow) {
+
+        case BLOCK:
+            this.waitingWriter = Thread.currentThread();
+            try {
+                for (;;) {
+                    minTail = this.minTail();
+                    if (minTail == Long.MAX_VALUE) return false;
+                    if (this.head - minTail < this.chunks.length) return true;
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) throw new InterruptedIOException();
+                }
+            } finally {
+                this.waitingWriter = null;
+            }
+
+        case DROP:
+            for (PipeReader r : this.readers) {
+                if (!r.closed && !r.dropped && r.tail == minTail) {
+                    r.dropped = true;
+                    CharPipe.unpark(r.waiting);
+                }
+            }
+
+            // Wait until the dropped readers have finished copying from the chunk that is about to be overwritten.
+            this.waitingWriter = Thread.currentThread();
+            try {
+                for (PipeReader r : this.readers) {
+                    while (r.dropped && r.copying) {
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                this.waitingWriter = null;
+            }
+            return this.minTail() != Long.MAX_VALUE;
+
+        case SPILL:
+            File sf = File.createTempFile("pipe-", ".spill");
+            sf.deleteOnExit();
+            this.spillFile   = sf;
+            this.spillWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(sf), CharPipe.SPILL_CHARSET)
+            );
+            return false;
+
+        default:
+            throw new AssertionError(this.overflow);
+        }
+    }
+
+    /**
+     * @return The smallest {@link PipeReader#tail} of all readers that are neither closed nor dropped, or {@link
+     *         Long#MAX_VALUE} iff there are none
+     */
+    private long
+    minTail() {
+        long result = Long.MAX_VALUE;
+        for (PipeReader r : this.readers) {
+            if (!r.closed && !r.dropped && r.tail < result) result = r.tail;
+        }
+        return result;
+    }
+
+    private void
+    publish() {
+        this.lengths[(int) (this.head % this.chunks.length)] = this.fill;
+        this.fill = 0;
+        this.head++;
+        for (PipeReader r : this.readers) CharPipe.unpark(r.waiting);
+    }
+
+    /**
+     * Deletes the spill file iff the writer and all readers are closed.
+     */
+    private synchronized void
+    deleteSpillFileIfUnused() {
+
+        if (!this.writerClosed) return;
+        for (PipeReader r : this.readers) {
+            if (!r.closed) return;
+        }
+
+        File sf = this.spillFile;
+        if (sf != null) sf.delete();
+    }
+
+    private static void
+    unpark(@Nullable Thread thread) { if (thread != null) LockSupport.unpark(thread); }
+}
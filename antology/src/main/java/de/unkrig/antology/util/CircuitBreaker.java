@@ -0,0 +1,178 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import org.apache.tools.ant.Project;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.util.time.Duration;
+import de.unkrig.commons.util.time.PointOfTime;
+
+/**
+ * A named circuit breaker, which is shared by all users within the same ANT {@link Project}.
+ * <p>
+ *   The breaker is initially "closed", i.e. all operations are permitted. After <var>threshold</var> consecutive
+ *   failures, it "opens", i.e. operations are rejected without being executed. After the <var>coolDown</var>
+ *   duration, it is "half-open", i.e. exactly one "probe" operation is permitted; if that succeeds, then the breaker
+ *   is closed again, otherwise it opens again for another cool-down period.
+ * </p>
+ */
+public final
+class CircuitBreaker {
+
+    private static final String REFERENCE_PREFIX = CircuitBreaker.class.getName() + ".";
+
+    private
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String   name;
+    private final int      threshold;
+    private final Duration coolDown;
+
+    // Guarded by "this".
+    private State                 state = State.CLOSED;
+    private int                   consecutiveFailures;
+    @Nullable private PointOfTime openedAt;
+    private boolean               probeInProgress;
+
+    private
+    CircuitBreaker(String name, int threshold, Duration coolDown) {
+        this.name      = name;
+        this.threshold = threshold;
+        this.coolDown  = coolDown;
+    }
+
+    /**
+     * Returns the circuit breaker with the given <var>name</var>, which is shared by all users within the
+     * <var>project</var>; creates it iff it does not yet exist. (The <var>threshold</var> and <var>coolDown</var> of
+     * the first invocation take effect.)
+     */
+    public static CircuitBreaker
+    get(Project project, String name, int threshold, Duration coolDown) {
+
+        String referenceName = CircuitBreaker.REFERENCE_PREFIX + name;
+
+        synchronized (project) {
+            Object result = project.getReference(referenceName);
+            if (result == null) {
+                project.addReference(referenceName, (result = new CircuitBreaker(name, threshold, coolDown)));
+            }
+            return (CircuitBreaker) result;
+        }
+    }
+
+    /**
+     * Must be invoked before each operation; iff it returns {@code true}, then the operation may be executed, and
+     * {@link #succeeded()} or {@link #failed()} must be invoked after the operation completes.
+     *
+     * @return Whether the operation is permitted
+     */
+    public synchronized boolean
+    tryAcquire() {
+
+        switch (this.state) {
+
+        case CLOSED:
+            return true;
+
+        case OPEN:
+            PointOfTime openedAt = this.openedAt;
+            assert openedAt != null;
+            if (new PointOfTime().subtract(openedAt).milliseconds() < this.coolDown.milliseconds()) return false;
+            this.state = State.HALF_OPEN;
+            this.probeInProgress = false;
+            // FALLTHROUGH
+
+        case HALF_OPEN:
+            if (this.probeInProgress) return false;
+            this.probeInProgress = true;
+            return true;
+
+        default:
+            throw new AssertionError(this.state);
+        }
+    }
+
+    /**
+     * @return Whether the breaker is open, and its cool-down period has not yet expired, i.e. whether {@link
+     *         #tryAcquire()} would certainly return {@code false}
+     */
+    public synchronized boolean
+    isOpen() {
+        PointOfTime openedAt = this.openedAt;
+        return (
+            this.state == State.OPEN
+            && openedAt != null
+            && new PointOfTime().subtract(openedAt).milliseconds() < this.coolDown.milliseconds()
+        );
+    }
+
+    /**
+     * Reports that a permitted operation succeeded; closes the breaker.
+     */
+    public synchronized void
+    succeeded() {
+        this.state               = State.CLOSED;
+        this.consecutiveFailures = 0;
+        this.probeInProgress     = false;
+    }
+
+    /**
+     * Reports that a permitted operation failed; opens the breaker iff the threshold is reached, or iff the failed
+     * operation was the probe.
+     */
+    public synchronized void
+    failed() {
+
+        this.consecutiveFailures++;
+
+        if (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.threshold) {
+            this.state           = State.OPEN;
+            this.openedAt        = new PointOfTime();
+            this.probeInProgress = false;
+        }
+    }
+
+    /**
+     * Reports that a permitted operation completed neither successfully nor with a failure (e.g. it was cancelled);
+     * iff it was the probe, then the next operation becomes the probe.
+     */
+    public synchronized void
+    released() {
+        if (this.state == State.HALF_OPEN) this.probeInProgress = false;
+    }
+
+    @Override public synchronized String
+    toString() {
+        PointOfTime openedAt = this.openedAt;
+        return (
+            this.state == State.OPEN && openedAt != null
+            ? "Circuit \"" + this.name + "\" is open until " + openedAt.add(this.coolDown)
+            : "Circuit \"" + this.name + "\" is " + (this.state == State.CLOSED ? "closed" : "half-open")
+        );
+    }
+}
@@ -0,0 +1,717 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
+
+import de.unkrig.commons.lang.protocol.Function;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.reflect.ReflectUtil;
+import de.unkrig.commons.text.Notations;
+import de.unkrig.commons.text.expression.EvaluationException;
+import de.unkrig.commons.text.expression.Expression;
+import de.unkrig.commons.text.expression.ExpressionEvaluator;
+import de.unkrig.commons.text.expression.Parser;
+import de.unkrig.commons.text.expression.Parser.BinaryOperator;
+import de.unkrig.commons.text.parser.ParseException;
+import de.unkrig.commons.text.pattern.ExpressionMatchReplacer;
+
+/**
+ * A drop-in replacement for {@link ExpressionMatchReplacer#parse(String)} which parses the expression only once
+ * into an evaluation tree that is cheap to evaluate for each match.
+ * <p>
+ *   {@link ExpressionMatchReplacer} wraps each match into a variable mapping, and looks up every field and method
+ *   through reflection on each evaluation. The tree built here, in contrast,
+ * </p>
+ * <ul>
+ *   <li>accesses the match (variable {@code m}) directly,</li>
+ *   <li>
+ *     resolves fields and methods only once per receiver class (an "inline cache"), and, where the receiver class
+ *     is not public (which is the case for many {@link MatchResult} implementations), through a public supertype,
+ *   </li>
+ *   <li>
+ *     evaluates sub-expressions that do not depend on the match (literals, {@code static final} fields, operations
+ *     on these, and method invocations on constant strings and numbers) at compile time,
+ *   </li>
+ *   <li>evaluates only the chosen operand of {@code ?:}, {@code &&} and {@code ||}.</li>
+ * </ul>
+ * <p>
+ *   Arithmetic, comparison and the other operators are evaluated with exactly the semantics of the {@link
+ *   ExpressionEvaluator}. Expressions with constructs that this class does not compile ({@code instanceof}, casts,
+ *   {@code new}, and non-final static fields) are silently left to the {@link ExpressionMatchReplacer}.
+ * </p>
+ */
+public final
+class CompiledExpressionMatchReplacer {
+
+    private CompiledExpressionMatchReplacer() {}
+
+    /**
+     * @return A match replacer which evaluates the <var>spec</var> for each match, with the match available as
+     *         variable {@code m}, and returns the result as a string, or {@code null} iff the expression evaluates
+     *         to {@code null}
+     * @see    ExpressionMatchReplacer#parse(String)
+     */
+    public static Function<MatchResult, String>
+    parse(final String spec) throws ParseException {
+
+        Compiler   compiler = new Compiler(spec);
+        final Node root     = compiler.parse();
+
+        if (compiler.error != null) throw new ParseException(compiler.error);
+        if (compiler.unsupported) return ExpressionMatchReplacer.parse(spec);
+
+        if (root instanceof Constant) {
+            Object value = ((Constant) root).value;
+            final String result = value == null ? null : value.toString();
+            return new Function<MatchResult, String>() {
+                @Override @Nullable public String call(@Nullable MatchResult matchResult) { return result; }
+            };
+        }
+
+        return new Function<MatchResult, String>() {
+
+            @Override @Nullable public String
+            call(@Nullable MatchResult matchResult) {
+                assert matchResult != null;
+
+                Object result;
+                try {
+                    result = root.evaluate(matchResult);
+                } catch (EvaluationException ee) {
+                    throw new IllegalArgumentException("Evaluating \"" + spec + "\"", ee);
+                }
+
+                return result == null ? null : result.toString();
+            }
+        };
+    }
+
+    /**
+     * Notice: The {@link Parser} wraps any exception that a callback throws, which is broken on newer JREs, so the
+     * callbacks record problems in fields instead of throwing exceptions.
+     */
+    private static
+    class Compiler extends Parser<Node, RuntimeException> {
+
+        /**
+         * Whether the expression uses a construct that is not compiled, and must be left to the interpreter.
+         */
+        boolean unsupported;
+
+        /**
+         * The message of the first semantic error, if any.
+         */
+        @Nullable String error;
+
+        Compiler(String spec) { super(spec); }
+
+        private Node
+        unsupported() {
+            this.unsupported = true;
+            return new Constant(null);
+        }
+
+        @Override protected Node
+        conditional(Node lhs, Node mhs, Node rhs) {
+            return CompiledExpressionMatchReplacer.fold(new Conditional(lhs, mhs, rhs));
+        }
+
+        @Override protected Node
+        unaryOperation(UnaryOperator operator, Node operand) {
+            return CompiledExpressionMatchReplacer.fold(new Operation(operator + "a", operand, null));
+        }
+
+        @Override protected Node
+        binaryOperation(Node lhs, BinaryOperator operator, Node rhs) {
+            switch (operator) {
+
+            case LOGICAL_AND:
+                return CompiledExpressionMatchReplacer.fold(new LogicalAnd(lhs, rhs));
+
+            case LOGICAL_OR:
+                return CompiledExpressionMatchReplacer.fold(new LogicalOr(lhs, rhs));
+
+            case PLUS:
+                return CompiledExpressionMatchReplacer.fold(new Plus(lhs, rhs));
+
+            default:
+                return CompiledExpressionMatchReplacer.fold(new BinaryOperation(lhs, operator, rhs));
+            }
+        }
+
+        @Override protected Node
+        fieldReference(Node target, String fieldName) {
+            return CompiledExpressionMatchReplacer.fold(new AttributeAccess(target, fieldName));
+        }
+
+        @Override protected Node
+        staticFieldReference(Class<?> type, String fieldName) {
+            try {
+                Field field = type.getField(fieldName);
+                if (Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())) {
+                    return new Constant(field.get(null));
+                }
+            } catch (Exception e) {
+                ;
+            }
+            return this.unsupported();
+        }
+
+        @Override protected Node
+        methodInvocation(Node target, String methodName, List<Node> arguments) {
+            return CompiledExpressionMatchReplacer.fold(new MethodInvocation(target, null, methodName, arguments));
+        }
+
+        @Override protected Node
+        staticMethodInvocation(Class<?> target, String methodName, List<Node> arguments) {
+            return new MethodInvocation(null, target, methodName, arguments);
+        }
+
+        @Override protected Node
+        variableReference(String variableName) {
+            if (!"m".equals(variableName) && this.error == null) this.error = "Unknown variable '" + variableName + "'";
+            return new MatchVariable();
+        }
+
+        @Override protected Node
+        literal(@Nullable Object o) { return new Constant(o); }
+
+        @Override protected Node
+        parenthesized(Node exp) { return exp; }
+
+        @Override protected Node
+        arrayAccess(Node lhs, Node rhs) {
+            return CompiledExpressionMatchReplacer.fold(new Operation("a[b]", lhs, rhs));
+        }
+
+        @Override protected Node
+        instanceoF(Node lhs, Class<?> rhs) {
+            return this.unsupported();
+        }
+
+        @Override protected Node
+        newClass(Class<?> clasS, List<Node> arguments) {
+            return this.unsupported();
+        }
+
+        @Override protected Node
+        newArray(Class<?> clasS, List<Node> dimensions) {
+            return this.unsupported();
+        }
+
+        @Override protected Node
+        cast(Class<?> targetClass, Node rhs) {
+            return this.unsupported();
+        }
+    }
+
+    /**
+     * Replaces the <var>node</var> with its value iff it does not depend on the match.
+     */
+    static Node
+    fold(Node node) {
+
+        if (!node.isConstant()) return node;
+
+        try {
+            return new Constant(node.evaluate(null));
+        } catch (EvaluationException ee) {
+            ;
+        } catch (RuntimeException re) {
+            ;
+        }
+
+        // Evaluation failed; defer the error to evaluation time, where it can be reported properly.
+        return node;
+    }
+
+    abstract static
+    class Node {
+
+        @Nullable abstract Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException;
+
+        /**
+         * @return Whether this node evaluates to the same value for every match, and without side effects
+         */
+        boolean isConstant() { return false; }
+    }
+
+    static
+    class Constant extends Node {
+
+        @Nullable final Object value;
+
+        Constant(@Nullable Object value) { this.value = value; }
+
+        @Override @Nullable Object evaluate(@Nullable MatchResult m) { return this.value; }
+        @Override boolean          isConstant()                     { return true; }
+    }
+
+    static
+    class MatchVariable extends Node {
+        @Override @Nullable Object evaluate(@Nullable MatchResult m) { return m; }
+    }
+
+    static
+    class Conditional extends Node {
+
+        private final Node lhs, mhs, rhs;
+
+        Conditional(Node lhs, Node mhs, Node rhs) { this.lhs = lhs; this.mhs = mhs; this.rhs = rhs; }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+            return (ExpressionEvaluator.toBoolean(this.lhs.evaluate(m)) ? this.mhs : this.rhs).evaluate(m);
+        }
+
+        @Override boolean
+        isConstant() { return this.lhs.isConstant() && this.mhs.isConstant() && this.rhs.isConstant(); }
+    }
+
+    static
+    class LogicalAnd extends Node {
+
+        private final Node lhs, rhs;
+
+        LogicalAnd(Node lhs, Node rhs) { this.lhs = lhs; this.rhs = rhs; }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+            return ExpressionEvaluator.toBoolean(this.lhs.evaluate(m)) ? this.rhs.evaluate(m) : Boolean.FALSE;
+        }
+
+        @Override boolean
+        isConstant() { return this.lhs.isConstant() && this.rhs.isConstant(); }
+    }
+
+    static
+    class LogicalOr extends Node {
+
+        private final Node lhs, rhs;
+
+        LogicalOr(Node lhs, Node rhs) { this.lhs = lhs; this.rhs = rhs; }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+            return ExpressionEvaluator.toBoolean(this.lhs.evaluate(m)) ? Boolean.TRUE : this.rhs.evaluate(m);
+        }
+
+        @Override boolean
+        isConstant() { return this.lhs.isConstant() && this.rhs.isConstant(); }
+    }
+
+    /**
+     * Any operator, evaluated through a tiny expression {@code "a OP b"} with the {@link ExpressionEvaluator}'s
+     * semantics.
+     */
+    static
+    class Operation extends Node {
+
+        private final Expression operation;
+        final Node               lhs;
+        @Nullable final Node     rhs;
+
+        Operation(String spec, Node lhs, @Nullable Node rhs) {
+            try {
+                this.operation = new ExpressionEvaluator("a", "b").parse(spec);
+            } catch (ParseException pe) {
+                throw new AssertionError(pe);
+            }
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+            Node rhs = this.rhs;
+            return this.apply(this.lhs.evaluate(m), rhs == null ? null : rhs.evaluate(m));
+        }
+
+        @Nullable Object
+        apply(@Nullable Object lhsv, @Nullable Object rhsv) throws EvaluationException {
+            return this.operation.evaluate("a", lhsv, "b", rhsv);
+        }
+
+        @Override boolean
+        isConstant() { return this.lhs.isConstant() && (this.rhs == null || this.rhs.isConstant()); }
+    }
+
+    /**
+     * A binary operator, with a fast path for the (frequent) case that both operands are {@link Integer}s.
+     */
+    static
+    class BinaryOperation extends Operation {
+
+        private final BinaryOperator operator;
+
+        BinaryOperation(Node lhs, BinaryOperator operator, Node rhs) {
+            super("a " + operator + " b", lhs, rhs);
+            this.operator = operator;
+        }
+
+        @Override @Nullable Object
+        apply(@Nullable Object lhsv, @Nullable Object rhsv) throws EvaluationException {
+
+            if (lhsv instanceof Integer && rhsv instanceof Integer) {
+                int lhsi = (Integer) lhsv, rhsi = (Integer) rhsv;
+                switch (this.operator) {
+                case EQUAL:         return lhsi == rhsi;
+                case NOT_EQUAL:     return lhsi != rhsi;
+                case LESS:          return lhsi < rhsi;
+                case LESS_EQUAL:    return lhsi <= rhsi;
+                case GREATER:       return lhsi > rhsi;
+                case GREATER_EQUAL: return lhsi >= rhsi;
+                case PLUS:          return lhsi + rhsi;
+                case MINUS:         return lhsi - rhsi;
+                case MULTIPLY:      return lhsi * rhsi;
+                case DIVIDE:        if (rhsi != 0) return lhsi / rhsi; break;
+                case MODULO:        if (rhsi != 0) return lhsi % rhsi; break;
+                default:            break;
+                }
+            }
+
+            return super.apply(lhsv, rhsv);
+        }
+    }
+
+    /**
+     * The {@code +} operator, which is by far the most frequent in replacement expressions, and which is a string
+     * concatenation iff one of the operands is a string.
+     */
+    static
+    class Plus extends BinaryOperation {
+
+        Plus(Node lhs, Node rhs) { super(lhs, BinaryOperator.PLUS, rhs); }
+
+        @Override @Nullable Object
+        apply(@Nullable Object lhsv, @Nullable Object rhsv) throws EvaluationException {
+
+            if (lhsv instanceof String || rhsv instanceof String) {
+                return ExpressionEvaluator.toString(lhsv).concat(ExpressionEvaluator.toString(rhsv));
+            }
+
+            return super.apply(lhsv, rhsv);
+        }
+    }
+
+    /**
+     * Field access, or invocation of a zero-parameter method or getter; equivalent with {@code
+     * ExpressionEvaluator.getAttributeValue()}.
+     */
+    static
+    class AttributeAccess extends Node {
+
+        private final Node   target;
+        private final String attributeName;
+
+        @Nullable private volatile Binding binding;
+
+        AttributeAccess(Node target, String attributeName) {
+            this.target        = target;
+            this.attributeName = attributeName;
+        }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+
+            Object target = this.target.evaluate(m);
+            if (target == null) return null;
+
+            Binding b = this.binding;
+            if (b == null || b.receiverClass != target.getClass()) this.binding = (b = this.bind(target.getClass()));
+
+            try {
+                return b.field != null ? b.field.get(target) : b.method.invoke(target);
+            } catch (InvocationTargetException ite) {
+                throw new EvaluationException(ite.getTargetException());
+            } catch (Exception e) {
+                throw new EvaluationException(e);
+            }
+        }
+
+        private Binding
+        bind(Class<?> clasS) throws EvaluationException {
+
+            String attributeName = this.attributeName;
+            try {
+                return new Binding(clasS, clasS.getField(attributeName), null);
+            } catch (NoSuchFieldException nsfe) {
+                ;
+            }
+
+            try {
+                return new Binding(clasS, null, CompiledExpressionMatchReplacer.publicMethod(
+                    clasS.getMethod(attributeName)
+                ));
+            } catch (NoSuchMethodException nsme) {
+                ;
+            }
+
+            String getterName = Notations.fromCamelCase(attributeName).prepend("get").toLowerCamelCase();
+            try {
+                return new Binding(clasS, null, CompiledExpressionMatchReplacer.publicMethod(
+                    clasS.getMethod(getterName)
+                ));
+            } catch (NoSuchMethodException nsme) {
+                ;
+            }
+
+            throw new EvaluationException(
+                "'"
+                + clasS.getName()
+                + "' has no field '"
+                + attributeName
+                + "' nor a method '"
+                + attributeName
+                + "()' or '"
+                + getterName
+                + "()' method"
+            );
+        }
+
+        @Override boolean
+        isConstant() { return CompiledExpressionMatchReplacer.isValueConstant(this.target); }
+
+        private static
+        class Binding {
+
+            final Class<?>         receiverClass;
+            @Nullable final Field  field;
+            @Nullable final Method method;
+
+            Binding(Class<?> receiverClass, @Nullable Field field, @Nullable Method method) {
+                this.receiverClass = receiverClass;
+                this.field         = field;
+                this.method        = method;
+            }
+        }
+    }
+
+    /**
+     * Invocation of an instance method or (iff <var>target</var> is {@code null}) of a static method; equivalent
+     * with {@code ExpressionEvaluator.invokeMethod()} and {@code invokeStaticMethod()}.
+     */
+    static
+    class MethodInvocation extends Node {
+
+        /**
+         * The argument values of all zero-argument invocations; {@link Method#invoke(Object, Object...)} does not
+         * retain the array, so it can be shared.
+         */
+        private static final Object[] NO_ARGUMENT_VALUES = new Object[0];
+
+        @Nullable private final Node     target;
+        @Nullable private final Class<?> staticTarget;
+        private final String             methodName;
+        private final Node[]             arguments;
+
+        @Nullable private volatile Binding binding;
+
+        MethodInvocation(
+            @Nullable Node     target,
+            @Nullable Class<?> staticTarget,
+            String             methodName,
+            List<Node>         arguments
+        ) {
+            this.target       = target;
+            this.staticTarget = staticTarget;
+            this.methodName   = methodName;
+            this.arguments    = arguments.toArray(new Node[arguments.size()]);
+        }
+
+        @Override @Nullable Object
+        evaluate(@Nullable MatchResult m) throws EvaluationException {
+
+            Object   receiver;
+            Class<?> receiverClass;
+            if (this.target == null) {
+                receiver      = null;
+                receiverClass = this.staticTarget;
+                assert receiverClass != null;
+            } else {
+                receiver = this.target.evaluate(m);
+                if (receiver == null) return null;
+                receiverClass = receiver.getClass();
+            }
+
+            // Notice: The array cannot be cached in the node, because the same compiled expression is evaluated
+            // concurrently, e.g. by "<parallelReplaceAll>".
+            Node[]   arguments      = this.arguments;
+            Object[] argumentValues = (
+                arguments.length == 0
+                ? MethodInvocation.NO_ARGUMENT_VALUES
+                : new Object[arguments.length]
+            );
+            for (int i = 0; i < arguments.length; i++) argumentValues[i] = arguments[i].evaluate(m);
+
+            Binding b = this.binding;
+            if (b == null || !b.matches(receiverClass, argumentValues)) {
+                this.binding = (b = this.bind(receiverClass, argumentValues));
+            }
+
+            try {
+                return b.method.invoke(receiver, argumentValues);
+            } catch (InvocationTargetException ite) {
+                throw new EvaluationException(ite.getTargetException());
+            } catch (Exception e) {
+                throw new EvaluationException(e);
+            }
+        }
+
+        private Binding
+        bind(Class<?> receiverClass, Object[] argumentValues) throws EvaluationException {
+
+            List<Object> values = new ArrayList<Object>(argumentValues.length);
+            for (Object argumentValue : argumentValues) values.add(argumentValue);
+            Class<?>[] argumentTypes = ReflectUtil.getTypes(values);
+
+            Method method;
+            try {
+                method = ReflectUtil.getMostSpecificMethod(receiverClass, this.methodName, argumentTypes);
+            } catch (NoSuchMethodException nsme) {
+                throw new EvaluationException(nsme);
+            }
+
+            if (this.target == null && !Modifier.isStatic(method.getModifiers())) {
+                throw new EvaluationException(
+                    "Cannot invoke non-static method '"
+                    + receiverClass.getName()
+                    + '.'
+                    + this.methodName
+                    + "()' in static context"
+                );
+            }
+
+            return new Binding(receiverClass, argumentTypes, CompiledExpressionMatchReplacer.publicMethod(method));
+        }
+
+        @Override boolean
+        isConstant() {
+            if (this.target == null || !CompiledExpressionMatchReplacer.isValueConstant(this.target)) return false;
+            for (Node argument : this.arguments) {
+                if (!argument.isConstant()) return false;
+            }
+            return true;
+        }
+
+        private static
+        class Binding {
+
+            final Class<?>   receiverClass;
+            final Class<?>[] argumentTypes;
+            final Method     method;
+
+            Binding(Class<?> receiverClass, Class<?>[] argumentTypes, Method method) {
+                this.receiverClass = receiverClass;
+                this.argumentTypes = argumentTypes;
+                this.method        = method;
+            }
+
+            boolean
+            matches(Class<?> receiverClass, Object[] argumentValues) {
+
+                if (receiverClass != this.receiverClass) return false;
+
+                for (int i = 0; i < argumentValues.length; i++) {
+                    Object argumentValue = argumentValues[i];
+                    if ((argumentValue == null ? null : argumentValue.getClass()) != this.argumentTypes[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return Whether the <var>node</var> is a constant of an immutable type, so that accessing its attributes and
+     *         invoking its methods can be done at compile time
+     */
+    static boolean
+    isValueConstant(Node node) {
+
+        if (!(node instanceof Constant)) return false;
+
+        Object value = ((Constant) node).value;
+        return (
+            value instanceof String
+            || value instanceof Number
+            || value instanceof Boolean
+            || value instanceof Character
+        );
+    }
+
+    /**
+     * Reflective invocation of a public method fails if its declaring class is not public, so this method finds the
+     * same method in a public superclass or interface.
+     *
+     * @return The <var>method</var>, or the same method declared by a public supertype
+     */
+    static Method
+    publicMethod(Method method) {
+
+        if (Modifier.isPublic(method.getDeclaringClass().getModifiers())) return method;
+
+        Method result = CompiledExpressionMatchReplacer.publicMethod(
+            method.getDeclaringClass(),
+            method.getName(),
+            method.getParameterTypes()
+        );
+
+        return result != null ? result : method;
+    }
+
+    @Nullable private static Method
+    publicMethod(@Nullable Class<?> clasS, String methodName, Class<?>[] parameterTypes) {
+
+        if (clasS == null) return null;
+
+        if (Modifier.isPublic(clasS.getModifiers())) {
+            try {
+                Method result = clasS.getMethod(methodName, parameterTypes);
+                if (Modifier.isPublic(result.getDeclaringClass().getModifiers())) return result;
+            } catch (NoSuchMethodException nsme) {
+                return null;
+            }
+        }
+
+        for (Class<?> interfacE : clasS.getInterfaces()) {
+            Method result = CompiledExpressionMatchReplacer.publicMethod(interfacE, methodName, parameterTypes);
+            if (result != null) return result;
+        }
+
+        return CompiledExpressionMatchReplacer.publicMethod(clasS.getSuperclass(), methodName, parameterTypes);
+    }
+}
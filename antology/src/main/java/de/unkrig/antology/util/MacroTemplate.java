@@ -0,0 +1,319 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Location;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.apache.tools.ant.RuntimeConfigurable;
+import org.apache.tools.ant.Target;
+import org.apache.tools.ant.UnknownElement;
+import org.apache.tools.ant.property.LocalProperties;
+import org.apache.tools.ant.taskdefs.MacroDef;
+import org.apache.tools.ant.taskdefs.MacroInstance;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A pre-compiled form of the body of a {@link MacroDef} which has at most one attribute (and neither nested elements
+ * nor text).
+ * <p>
+ *   Executing a {@link MacroInstance} re-builds the macro body from the {@link MacroDef}, and scans every attribute
+ *   value and every text for {@code @{...}} references, which is relatively expensive when a macro is executed many
+ *   times, e.g. in a loop. A {@link MacroTemplate} does the scanning only once, and, on each {@link #execute(Project,
+ *   Target, Location, String) execution}, only plugs the attribute value into the pre-computed template strings.
+ * </p>
+ * <p>
+ *   The semantics are exactly those of the {@link MacroInstance}, in particular, {@code "@@"} is replaced with
+ *   {@code "@"}, and references to undefined attributes are left as they are (but with the attribute name converted
+ *   to lower case).
+ * </p>
+ */
+public final
+class MacroTemplate {
+
+    @Nullable private final String attributeName;
+    private final Element          body;
+    private final boolean          backTrace;
+
+    private
+    MacroTemplate(@Nullable String attributeName, Element body, boolean backTrace) {
+        this.attributeName = attributeName;
+        this.body          = body;
+        this.backTrace     = backTrace;
+    }
+
+    /**
+     * @param attributeName The name of the (only) attribute of the macro, or {@code null} iff the macro has no
+     *                      attributes
+     * @throws BuildException The <var>macroDef</var> has nested elements or text, or more than the one attribute
+     */
+    public static MacroTemplate
+    compile(MacroDef macroDef, @Nullable String attributeName) {
+
+        if (!macroDef.getElements().isEmpty() || macroDef.getText() != null) {
+            throw new BuildException("Macros with nested elements or text cannot be pre-compiled");
+        }
+
+        // Attribute names are case-insensitive.
+        if (attributeName != null) attributeName = attributeName.toLowerCase(Locale.ENGLISH);
+
+        for (MacroDef.Attribute attribute : macroDef.getAttributes()) {
+            if (!attribute.getName().equals(attributeName)) {
+                throw new BuildException("Macro attribute \"" + attribute.getName() + "\" cannot be pre-compiled");
+            }
+        }
+
+        return new MacroTemplate(
+            attributeName,
+            MacroTemplate.compile(macroDef.getNestedTask(), attributeName),
+            macroDef.getBackTrace()
+        );
+    }
+
+    /**
+     * Builds the tasks from the template, with all references to the attribute replaced with the given
+     * <var>attributeValue</var>, and executes them in a new {@code <local>} scope; equivalent with {@link
+     * MacroInstance#execute()}.
+     *
+     * @param owningTarget Becomes the owning target of the created tasks
+     * @param location     Is set on exceptions that the tasks throw, like the location of a {@link MacroInstance}
+     */
+    public void
+    execute(Project project, @Nullable Target owningTarget, Location location, @Nullable String attributeValue) {
+
+        if (this.attributeName != null && attributeValue == null) {
+            throw new BuildException("required attribute " + this.attributeName + " not set");
+        }
+
+        if (owningTarget == null) {
+            owningTarget = new Target();
+            owningTarget.setProject(project);
+        }
+
+        UnknownElement ue = this.body.instantiate(project, owningTarget, location, this.backTrace, attributeValue);
+        ue.init();
+
+        LocalProperties localProperties = LocalProperties.get(project);
+        localProperties.enterScope();
+        try {
+            ue.perform();
+        } catch (BuildException be) {
+            if (this.backTrace) throw ProjectHelper.addLocationToBuildException(be, location);
+            be.setLocation(location);
+            throw be;
+        } finally {
+            localProperties.exitScope();
+        }
+    }
+
+    private static Element
+    compile(UnknownElement ue, @Nullable String attributeName) {
+
+        RuntimeConfigurable wrapper = ue.getWrapper();
+
+        Map<String, Object> attributeMap = wrapper.getAttributeMap();
+        String[]            names        = new String[attributeMap.size()];
+        Template[]          values       = new Template[attributeMap.size()];
+        {
+            int i = 0;
+            for (Map.Entry<String, Object> e : attributeMap.entrySet()) {
+                names[i]  = e.getKey();
+                values[i] = Template.compile((String) e.getValue(), attributeName);
+                i++;
+            }
+        }
+
+        List<Element> children = new ArrayList<Element>();
+        for (Enumeration<RuntimeConfigurable> e = wrapper.getChildren(); e.hasMoreElements();) {
+            children.add(MacroTemplate.compile((UnknownElement) e.nextElement().getProxy(), attributeName));
+        }
+
+        return new Element(
+            ue,
+            wrapper.getPolyType(),
+            names,
+            values,
+            Template.compile(wrapper.getText().toString(), attributeName),
+            children.toArray(new Element[children.size()])
+        );
+    }
+
+    /**
+     * The compiled form of an {@link UnknownElement} and its {@link RuntimeConfigurable}.
+     */
+    private static
+    class Element {
+
+        private final UnknownElement prototype;
+        @Nullable private final String polyType;
+        private final String[]       attributeNames;
+        private final Template[]     attributeValues;
+        private final Template       text;
+        private final Element[]      children;
+
+        Element(
+            UnknownElement   prototype,
+            @Nullable String polyType,
+            String[]         attributeNames,
+            Template[]       attributeValues,
+            Template         text,
+            Element[]        children
+        ) {
+            this.prototype       = prototype;
+            this.polyType        = polyType;
+            this.attributeNames  = attributeNames;
+            this.attributeValues = attributeValues;
+            this.text            = text;
+            this.children        = children;
+        }
+
+        /**
+         * Equivalent with {@code MacroInstance.copy(UnknownElement, boolean)}.
+         */
+        UnknownElement
+        instantiate(
+            Project          project,
+            Target           owningTarget,
+            Location         location,
+            boolean          backTrace,
+            @Nullable String attributeValue
+        ) {
+            UnknownElement prototype = this.prototype;
+
+            UnknownElement result = new UnknownElement(prototype.getTag());
+            result.setNamespace(prototype.getNamespace());
+            result.setProject(project);
+            result.setQName(prototype.getQName());
+            result.setTaskType(prototype.getTaskType());
+            result.setTaskName(prototype.getTaskName());
+            result.setLocation(backTrace ? prototype.getLocation() : location);
+            result.setOwningTarget(owningTarget);
+
+            RuntimeConfigurable rc = new RuntimeConfigurable(result, prototype.getTaskName());
+            rc.setPolyType(this.polyType);
+            for (int i = 0; i < this.attributeNames.length; i++) {
+                rc.setAttribute(this.attributeNames[i], this.attributeValues[i].expand(attributeValue));
+            }
+            rc.addText(this.text.expand(attributeValue));
+
+            for (Element child : this.children) {
+                UnknownElement childUe = child.instantiate(project, owningTarget, location, backTrace, attributeValue);
+                rc.addChild(childUe.getWrapper());
+                result.addChild(childUe);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A string with zero or more references to the attribute.
+     */
+    private static
+    class Template {
+
+        /**
+         * The literal parts, between which the attribute value is to be inserted. Iff the attribute is not
+         * referenced, then there is only one literal part.
+         */
+        private final String[] literals;
+
+        Template(String[] literals) { this.literals = literals; }
+
+        /**
+         * Equivalent with {@code MacroInstance.macroSubs(String, Map)}, for a mapping with only the one
+         * <var>attributeName</var>.
+         */
+        static Template
+        compile(String s, @Nullable String attributeName) {
+
+            List<String>  literals = new ArrayList<String>();
+            StringBuilder sb       = new StringBuilder();
+
+            for (int i = 0, len = s.length(); i < len;) {
+                char c = s.charAt(i++);
+
+                if (c != '@' || i == len) {
+                    sb.append(c);
+                    continue;
+                }
+
+                c = s.charAt(i++);
+                if (c == '@') {
+                    sb.append('@');
+                    continue;
+                }
+                if (c != '{') {
+                    sb.append('@').append(c);
+                    continue;
+                }
+
+                int end = s.indexOf('}', i);
+                if (end == -1) {
+
+                    // Unterminated reference.
+                    sb.append("@{").append(s, i, len);
+                    break;
+                }
+
+                String name = s.substring(i, end).toLowerCase(Locale.ENGLISH);
+                i = end + 1;
+
+                if (name.equals(attributeName)) {
+                    literals.add(sb.toString());
+                    sb.setLength(0);
+                } else {
+                    sb.append("@{").append(name).append('}');
+                }
+            }
+            literals.add(sb.toString());
+
+            return new Template(literals.toArray(new String[literals.size()]));
+        }
+
+        String
+        expand(@Nullable String attributeValue) {
+
+            String[] literals = this.literals;
+            if (literals.length == 1) return literals[0];
+
+            assert attributeValue != null;
+
+            StringBuilder sb = new StringBuilder(literals[0]);
+            for (int i = 1; i < literals.length; i++) sb.append(attributeValue).append(literals[i]);
+            return sb.toString();
+        }
+    }
+}
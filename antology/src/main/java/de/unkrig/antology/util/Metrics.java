@@ -0,0 +1,281 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.antology.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Utility methods related to the export of machine-readable throughput metrics, as reported by the {@code
+ * <throughput>} and the {@code <forEach2>} tasks.
+ */
+public final
+class Metrics {
+
+    private Metrics() {}
+
+    /**
+     * The names of the metrics, in the order in which they appear in the output:
+     * <dl>
+     *   <dt>{@code time}, {@code eta}</dt>
+     *   <dd>Milliseconds since 1970-01-01 00:00:00 UTC</dd>
+     *   <dt>{@code label}</dt>
+     *   <dd>The labels of the reporting task and all enclosing tasks, separated with slashes</dd>
+     *   <dt>{@code event}</dt>
+     *   <dd>{@code "progress"}, {@code "iteration"} or {@code "done"}</dd>
+     *   <dt>{@code element}</dt>
+     *   <dd>The current element of the iteration</dd>
+     *   <dt>{@code *Duration}</dt>
+     *   <dd>Seconds</dd>
+     *   <dt>{@code *Rate}</dt>
+     *   <dd>Quantity units per second</dd>
+     * </dl>
+     */
+    public static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList(
+        "time",
+        "label",
+        "event",
+        "element",
+        "unit",
+        "previousQuantity",
+        "previousDuration",
+        "currentQuantity",
+        "currentDuration",
+        "currentRate",
+        "completedQuantity",
+        "totalQuantity",
+        "percentComplete",
+        "cumulativeRate",
+        "remainingQuantity",
+        "remainingDuration",
+        "eta"
+    ));
+
+    /**
+     * The formats of a {@link Metrics#sink(Project, File, Format, String) metrics file}.
+     */
+    public
+    enum Format {
+
+        /**
+         * One JSON object per line, see <a href="https://jsonlines.org/">jsonlines.org</a>. Metrics with unknown
+         * values are {@code null}.
+         */
+        JSONL,
+
+        /**
+         * Comma-separated values, as defined by RFC 4180. The first line of the file is a header line with the
+         * {@link Metrics#NAMES}. Metrics with unknown values are empty.
+         */
+        CSV,
+    }
+
+    /**
+     * Receives the metrics reported by a task.
+     */
+    public
+    interface Sink {
+
+        /**
+         * @param metrics Maps (some of) the {@link Metrics#NAMES} to {@link Number}s or {@link String}s; values
+         *                may be {@code null}
+         */
+        void write(Map<String, ?> metrics);
+    }
+
+    private static final InheritableThreadLocal<Map<Project, String>>
+    LABEL = new InheritableThreadLocal<Map<Project, String>>() {
+
+        @Override protected Map<Project, String>
+        initialValue() { return new HashMap<Project, String>(); }
+
+        // Worker threads (e.g. those of "<forEach2 threads="...">") must not modify the map of their parent.
+        @Override protected Map<Project, String>
+        childValue(Map<Project, String> parentValue) { return new HashMap<Project, String>(parentValue); }
+    };
+
+    /**
+     * @return The label of the currently executing {@code <throughput>} or {@code <forEach2>} task, or {@code ""}
+     * @see    #setLabel(Project, String)
+     */
+    public static String
+    getLabel(Project project) {
+
+        String label = Metrics.LABEL.get().get(project);
+
+        return label == null ? "" : label;
+    }
+
+    /**
+     * Sets the label that is inherited by the nested tasks and by threads that the current thread starts. The
+     * typical usage pattern is:
+     * <pre>
+     *     String originalLabel = Metrics.getLabel(this.getProject());
+     *     String label         = Metrics.subLabel(originalLabel, "myLabel");
+     *     try {
+     *         Metrics.setLabel(this.getProject(), label);
+     *
+     *         // Execute the nested tasks...
+     *
+     *     } finally {
+     *         Metrics.setLabel(this.getProject(), originalLabel);
+     *     }
+     * </pre>
+     */
+    public static void
+    setLabel(Project project, String label) { Metrics.LABEL.get().put(project, label); }
+
+    /**
+     * @return <var>label</var>, prefixed with the <var>parentLabel</var> and a slash
+     */
+    public static String
+    subLabel(String parentLabel, String label) { return parentLabel.isEmpty() ? label : parentLabel + '/' + label; }
+
+    /**
+     * @param file       Iff non-{@code null}, then the metrics are appended to that file
+     * @param prefix     Iff non-{@code null}, then the metrics are stored in properties named <var>prefix</var>{@code
+     *                   label}, <var>prefix</var>{@code currentRate}, and so forth
+     * @return           {@code null} iff neither <var>file</var> nor <var>prefix</var> is configured
+     */
+    @Nullable public static Sink
+    sink(final Project project, @Nullable final File file, final Format format, @Nullable final String prefix) {
+
+        if (file == null && prefix == null) return null;
+
+        return new Sink() {
+
+            @Override public void
+            write(Map<String, ?> metrics) {
+                if (file != null) Metrics.append(file, format, metrics);
+                if (prefix != null) {
+                    for (String name : Metrics.NAMES) {
+                        Object value = metrics.get(name);
+                        if (value != null) project.setProperty(prefix + name, value.toString());
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Appends one line to the <var>file</var>. Opens and closes the file on each invocation, so that several tasks
+     * may write to the same file, even concurrently.
+     */
+    private static synchronized void
+    append(File file, Format format, Map<String, ?> metrics) {
+
+        StringBuilder sb = new StringBuilder();
+        switch (format) {
+
+        case JSONL:
+            sb.append('{');
+            for (String name : Metrics.NAMES) {
+                if (!metrics.containsKey(name)) continue;
+                if (sb.length() > 1) sb.append(',');
+                Metrics.appendJsonString(name, sb);
+                sb.append(':');
+                Object value = metrics.get(name);
+                if (value instanceof String) {
+                    Metrics.appendJsonString((String) value, sb);
+                } else {
+                    sb.append(Metrics.numberToString((Number) value, "null"));
+                }
+            }
+            sb.append("}\n");
+            break;
+
+        case CSV:
+            if (file.length() == 0) {
+                for (String name : Metrics.NAMES) sb.append(name).append(',');
+                sb.setCharAt(sb.length() - 1, '\n');
+            }
+            for (String name : Metrics.NAMES) {
+                Object value = metrics.get(name);
+                if (value instanceof String) {
+                    sb.append('"').append(((String) value).replace("\"", "\"\"")).append('"');
+                } else {
+                    sb.append(Metrics.numberToString((Number) value, ""));
+                }
+                sb.append(',');
+            }
+            sb.setCharAt(sb.length() - 1, '\n');
+            break;
+
+        default:
+            throw new AssertionError(format);
+        }
+
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                w.write(sb.toString());
+            } finally {
+                w.close();
+            }
+        } catch (IOException ioe) {
+            throw new BuildException("Writing metrics to \"" + file + "\"", ioe);
+        }
+    }
+
+    private static String
+    numberToString(@Nullable Number value, String ifUnknown) {
+        if (value == null) return ifUnknown;
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) return ifUnknown;
+        return value.toString();
+    }
+
+    private static void
+    appendJsonString(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else
+            if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,581 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import org.apache.tools.ant.BuildException;
+
+import de.unkrig.commons.lang.protocol.FunctionWhichThrows;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.text.pattern.PatternUtil;
+
+/**
+ * Replaces the matches of multiple patterns in one pass, instead of stacking one filter reader per pattern.
+ * <p>
+ *   The semantics are those of the regular expression <code>(?:<var>pattern1</var>)|(?:<var>pattern2</var>)|...
+ *   </code>, i.e. the leftmost match wins, and, of the patterns that match at the same position, the first one. Thus,
+ *   unlike with stacked filter readers, text that a replacement produces is never subject to the other patterns.
+ * </p>
+ * <p>
+ *   Iff all patterns are {@link #isLiteral(Pattern) literals}, then a trie of the literals is used instead of the
+ *   regex engine, which evaluates each alternative separately at each position.
+ * </p>
+ * <p>
+ *   Also implements the replacement of a single literal, through the Boyer-Moore-Horspool algorithm; see {@link
+ *   #literalFilterReader(Reader, String, FunctionWhichThrows)}.
+ * </p>
+ */
+public final
+class MultiPatternReplacer {
+
+    private MultiPatternReplacer() {}
+
+    /**
+     * The regex metacharacters; a pattern that contains none of these (and has no flags) matches only the string
+     * that it consists of.
+     */
+    private static final String METACHARACTERS = "\\[](){}.*+?^$|";
+
+    /**
+     * Back references and named groups, which would break when patterns are combined.
+     */
+    private static final Pattern UNCOMBINABLE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+
+    /**
+     * @param matchReplacers Are invoked for the matches of the corresponding <var>patterns</var>; when one returns
+     *                       {@code null}, then the match is not replaced
+     * @return               A reader that produces the content of the <var>delegate</var>, with the matches of the
+     *                       <var>patterns</var> replaced
+     * @throws BuildException One of the patterns contains back references or named groups
+     */
+    public static Reader
+    replaceAllFilterReader(
+        Reader                                                                                          delegate,
+        List<Pattern>                                                                                   patterns,
+        List<FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>> matchReplacers
+    ) {
+        assert patterns.size() == matchReplacers.size();
+
+        boolean allLiterals = true;
+        for (Pattern p : patterns) {
+            if (!MultiPatternReplacer.isLiteral(p)) {
+                allLiterals = false;
+                break;
+            }
+        }
+
+        if (allLiterals) return new TrieReader(delegate, patterns, matchReplacers);
+
+        return MultiPatternReplacer.alternationFilterReader(delegate, patterns, matchReplacers);
+    }
+
+    /**
+     * @return A reader that produces the content of the <var>delegate</var>, with all occurrences of the
+     *         <var>literal</var> replaced; equivalent with {@link PatternUtil#replaceAllFilterReader(Reader, Pattern,
+     *         FunctionWhichThrows)} for the {@link Pattern#quote(String) quoted} literal
+     */
+    public static Reader
+    literalFilterReader(
+        Reader                                                                                  delegate,
+        String                                                                                  literal,
+        FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException> matchReplacer
+    ) {
+        if (literal.isEmpty()) throw new IllegalArgumentException("Empty literal");
+
+        return new HorspoolReader(delegate, literal, matchReplacer);
+    }
+
+    /**
+     * @return Whether the <var>pattern</var> matches exactly the string that it consists of, and nothing else, i.e.
+     *         it is non-empty, and either was compiled with the {@link Pattern#LITERAL} flag, or has no flags and
+     *         contains none of the regex metacharacters <code>\[](){}.*+?^$|</code>
+     */
+    public static boolean
+    isLiteral(Pattern pattern) {
+
+        String s = pattern.pattern();
+        if (s.isEmpty()) return false;
+
+        if (pattern.flags() == Pattern.LITERAL) return true;
+        if (pattern.flags() != 0) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (MultiPatternReplacer.METACHARACTERS.indexOf(s.charAt(i)) != -1) return false;
+        }
+        return true;
+    }
+
+    private static Reader
+    alternationFilterReader(
+        Reader                                                                                          delegate,
+        List<Pattern>                                                                                   patterns,
+        List<FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>> matchReplacers
+    ) {
+
+        // Wrap each pattern in a capturing group, and remember where each pattern's own groups begin.
+        final int[]   groupOffsets = new int[patterns.size()];
+        final int[]   groupCounts  = new int[patterns.size()];
+        StringBuilder sb           = new StringBuilder();
+        int           groupCount   = 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern p = patterns.get(i);
+
+            String regex;
+            if (p.flags() == Pattern.LITERAL) {
+                regex = Pattern.quote(p.pattern());
+            } else
+            if (p.flags() != 0 || MultiPatternReplacer.UNCOMBINABLE.matcher(p.pattern()).find()) {
+                throw new BuildException(
+                    "Pattern \"" + p + "\" cannot be combined with other patterns (flags, back references or named "
+                    + "groups)"
+                );
+            } else
+            {
+                regex = p.pattern();
+            }
+
+            if (i > 0) sb.append('|');
+            sb.append('(').append(regex).append(')');
+
+            groupOffsets[i] = ++groupCount;
+            groupCounts[i]  = p.matcher("").groupCount();
+            groupCount      += groupCounts[i];
+        }
+
+        final Pattern combined = Pattern.compile(sb.toString());
+
+        final FunctionWhichThrows<?, ?, ?>[] mrs = matchReplacers.toArray(
+            new FunctionWhichThrows<?, ?, ?>[matchReplacers.size()]
+        );
+
+        return PatternUtil.replaceAllFilterReader(
+            delegate,
+            combined,
+            new FunctionWhichThrows<MatchResult, CharSequence, IOException>() {
+
+                @Override @Nullable public CharSequence
+                call(@Nullable MatchResult mr) throws IOException {
+                    assert mr != null;
+
+                    // Find the alternative that matched.
+                    for (int i = 0; i < groupOffsets.length; i++) {
+                        if (mr.start(groupOffsets[i]) != -1) {
+                            return MultiPatternReplacer.replace(
+                                mrs[i],
+                                new SubMatchResult(mr, groupOffsets[i], groupCounts[i])
+                            );
+                        }
+                    }
+                    throw new AssertionError();
+                }
+            }
+        );
+    }
+
+    @SuppressWarnings("unchecked") @Nullable private static CharSequence
+    replace(FunctionWhichThrows<?, ?, ?> matchReplacer, MatchResult mr) throws IOException {
+        return (
+            (FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>) matchReplacer
+        ).call(mr);
+    }
+
+    /**
+     * The view of a {@link MatchResult} of the combined pattern as a match result of one of the alternatives.
+     */
+    private static
+    class SubMatchResult implements MatchResult {
+
+        private final MatchResult delegate;
+        private final int         groupOffset;
+        private final int         groupCount;
+
+        SubMatchResult(MatchResult delegate, int groupOffset, int groupCount) {
+            this.delegate    = delegate;
+            this.groupOffset = groupOffset;
+            this.groupCount  = groupCount;
+        }
+
+        @Override public int
+        start() { return this.delegate.start(this.groupOffset); }
+
+        @Override public int
+        start(int group) { return this.delegate.start(this.groupOffset + this.checkGroup(group)); }
+
+        @Override public int
+        end() { return this.delegate.end(this.groupOffset); }
+
+        @Override public int
+        end(int group) { return this.delegate.end(this.groupOffset + this.checkGroup(group)); }
+
+        @Override @Nullable public String
+        group() { return this.delegate.group(this.groupOffset); }
+
+        @Override @Nullable public String
+        group(int group) { return this.delegate.group(this.groupOffset + this.checkGroup(group)); }
+
+        @Override public int
+        groupCount() { return this.groupCount; }
+
+        private int
+        checkGroup(int group) {
+            if (group < 0 || group > this.groupCount) throw new IndexOutOfBoundsException("No group " + group);
+            return group;
+        }
+    }
+
+    /**
+     * The match of a literal; its {@link #start()} is relative to the current buffer.
+     */
+    private static
+    class LiteralMatchResult implements MatchResult {
+
+        private final String literal;
+        private final int    start;
+
+        LiteralMatchResult(String literal, int start) {
+            this.literal = literal;
+            this.start   = start;
+        }
+
+        @Override public int    start()          { return this.start; }
+        @Override public int    start(int group) { this.checkGroup(group); return this.start; }
+        @Override public int    end()            { return this.start + this.literal.length(); }
+        @Override public int    end(int group)   { this.checkGroup(group); return this.end(); }
+        @Override public String group()          { return this.literal; }
+        @Override public String group(int group) { this.checkGroup(group); return this.literal; }
+        @Override public int    groupCount()     { return 0; }
+
+        private void
+        checkGroup(int group) { if (group != 0) throw new IndexOutOfBoundsException("No group " + group); }
+    }
+
+    /**
+     * A node of the trie of literals.
+     */
+    private static
+    class Node {
+
+        /** The (sorted) characters of the edges to the children. */
+        char[] keys = new char[0];
+
+        Node[] children = new Node[0];
+
+        /** The smallest index of the literals that end in this node, or -1. */
+        int literal = -1;
+
+        @Nullable Node
+        child(char c) {
+            int idx = Arrays.binarySearch(this.keys, c);
+            return idx < 0 ? null : this.children[idx];
+        }
+    }
+
+    /**
+     * Replaces the matches of one or more literals.
+     */
+    private abstract static
+    class LiteralsReader extends Reader {
+
+        private final Reader                         in;
+        private final FunctionWhichThrows<?, ?, ?>[] matchReplacers;
+
+        /** The length of the longest literal. */
+        protected final int maxLength;
+
+        /** The input buffer; the unprocessed input is at {@link #start} ... {@link #end}. */
+        private final char[] buffer;
+        private int          start, end;
+        private boolean      eoi;
+
+        /** The output that has not yet been read. */
+        private final StringBuilder out = new StringBuilder();
+        private int                 outPos;
+
+        /** Set by {@link #find(char[], int, int, int)}. */
+        @Nullable protected String matchedLiteral;
+        protected int              matchedIndex;
+
+        LiteralsReader(Reader in, FunctionWhichThrows<?, ?, ?>[] matchReplacers, int maxLength) {
+            this.in             = in;
+            this.matchReplacers = matchReplacers;
+            this.maxLength      = maxLength;
+            this.buffer         = new char[Math.max(8192, 2 * maxLength)];
+        }
+
+        /**
+         * Finds the leftmost match that begins at <var>from</var> ... <var>limit</var> - 1, and, iff found, sets
+         * {@link #matchedLiteral} and {@link #matchedIndex}.
+         *
+         * @param end The end of the valid data in the <var>buffer</var>; at least <var>limit</var> - 1 + {@link
+         *            #maxLength}, unless end-of-input is reached
+         * @return    The position of the match, or -1
+         */
+        protected abstract int
+        find(char[] buffer, int from, int limit, int end);
+
+        @Override public int
+        read(char[] cbuf, int off, int len) throws IOException {
+
+            if (len == 0) return 0;
+
+            while (this.outPos == this.out.length()) {
+                this.out.setLength(0);
+                this.outPos = 0;
+                if (!this.process()) return -1;
+            }
+
+            int n = Math.min(len, this.out.length() - this.outPos);
+            this.out.getChars(this.outPos, this.outPos + n, cbuf, off);
+            this.outPos += n;
+            return n;
+        }
+
+        @Override public void
+        close() throws IOException { this.in.close(); }
+
+        /**
+         * Processes some input and appends the result to {@link #out}.
+         *
+         * @return {@code false} iff end-of-input was reached and all input was processed
+         */
+        private boolean
+        process() throws IOException {
+
+            // Ensure that a match can be identified at each position that we examine.
+            this.fill();
+            if (this.start == this.end) return !this.eoi;
+
+            char[] buffer = this.buffer;
+            int    limit  = this.eoi ? this.end : this.end - this.maxLength + 1;
+
+            int i = this.find(buffer, this.start, limit, this.end);
+            if (i == -1) {
+                this.out.append(buffer, this.start, limit - this.start);
+                this.start = limit;
+                return true;
+            }
+
+            String s = this.matchedLiteral;
+            assert s != null;
+
+            this.out.append(buffer, this.start, i - this.start);
+
+            CharSequence replacement = MultiPatternReplacer.replace(
+                this.matchReplacers[this.matchedIndex],
+                new LiteralMatchResult(s, i)
+            );
+            this.out.append(replacement == null ? s : replacement);
+
+            this.start = i + s.length();
+            return true;
+        }
+
+        /**
+         * Unless the buffer is at least half full, fills it with more input; thus, unless end-of-input is reached,
+         * there are at least {@link #maxLength} unprocessed chars.
+         */
+        private void
+        fill() throws IOException {
+
+            if (this.eoi || this.end - this.start >= this.buffer.length / 2) return;
+
+            // Move the unprocessed chars to the beginning of the buffer.
+            if (this.start > 0) {
+                System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+                this.end   -= this.start;
+                this.start =  0;
+            }
+
+            while (this.end < this.buffer.length) {
+                int n = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+                if (n == -1) {
+                    this.eoi = true;
+                    return;
+                }
+                this.end += n;
+            }
+        }
+    }
+
+    /**
+     * Finds the matches of a set of literals by walking a trie, starting at each position where one of the literals
+     * could begin.
+     */
+    private static
+    class TrieReader extends LiteralsReader {
+
+        private final String[] literals;
+        private final Node     root;
+
+        /** Which characters are the first character of any literal. */
+        private final boolean[] firstChars = new boolean[Character.MAX_VALUE + 1];
+
+        TrieReader(
+            Reader                                                                                        in,
+            List<Pattern>                                                                                 patterns,
+            List<FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException>> mrs
+        ) {
+            super(
+                in,
+                mrs.toArray(new FunctionWhichThrows<?, ?, ?>[mrs.size()]),
+                TrieReader.maxLength(patterns)
+            );
+
+            this.literals = new String[patterns.size()];
+
+            // Build the trie.
+            Map<Node, TreeMap<Character, Node>> edges = new HashMap<Node, TreeMap<Character, Node>>();
+            this.root = new Node();
+            for (int i = 0; i < this.literals.length; i++) {
+                String literal = (this.literals[i] = patterns.get(i).pattern());
+
+                this.firstChars[literal.charAt(0)] = true;
+
+                Node n = this.root;
+                for (int j = 0; j < literal.length(); j++) {
+                    TreeMap<Character, Node> m = edges.get(n);
+                    if (m == null) edges.put(n, (m = new TreeMap<Character, Node>()));
+                    Node child = m.get(literal.charAt(j));
+                    if (child == null) m.put(literal.charAt(j), (child = new Node()));
+                    n = child;
+                }
+                if (n.literal == -1) n.literal = i;
+            }
+
+            for (Map.Entry<Node, TreeMap<Character, Node>> e : edges.entrySet()) {
+                Node                     n = e.getKey();
+                TreeMap<Character, Node> m = e.getValue();
+
+                n.keys     = new char[m.size()];
+                n.children = new Node[m.size()];
+                int i = 0;
+                for (Map.Entry<Character, Node> e2 : m.entrySet()) {
+                    n.keys[i]     = e2.getKey();
+                    n.children[i] = e2.getValue();
+                    i++;
+                }
+            }
+        }
+
+        private static int
+        maxLength(List<Pattern> patterns) {
+            int result = 0;
+            for (Pattern p : patterns) result = Math.max(result, p.pattern().length());
+            return result;
+        }
+
+        @Override protected int
+        find(char[] buffer, int from, int limit, int end) {
+
+            boolean[] firstChars = this.firstChars;
+
+            for (int i = from; i < limit; i++) {
+                if (!firstChars[buffer[i]]) continue;
+
+                // Walk the trie, and find the first-declared literal that matches at this position.
+                int  literal = -1;
+                Node n       = this.root;
+                for (int j = i; j < end; j++) {
+                    n = n.child(buffer[j]);
+                    if (n == null) break;
+                    if (n.literal != -1 && (literal == -1 || n.literal < literal)) literal = n.literal;
+                }
+                if (literal == -1) continue;
+
+                this.matchedLiteral = this.literals[literal];
+                this.matchedIndex   = literal;
+                return i;
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the matches of one literal with the Boyer-Moore-Horspool algorithm, which, on a mismatch, skips up to the
+     * length of the literal.
+     */
+    private static
+    class HorspoolReader extends LiteralsReader {
+
+        private final char[] literal;
+
+        /**
+         * How far the search may skip, depending on the (low byte of the) char that is aligned with the last char of
+         * the literal.
+         */
+        private final int[] skip = new int[256];
+
+        HorspoolReader(
+            Reader                                                                                  in,
+            String                                                                                  literal,
+            FunctionWhichThrows<? super MatchResult, ? extends CharSequence, ? extends IOException> matchReplacer
+        ) {
+            super(in, new FunctionWhichThrows<?, ?, ?>[] { matchReplacer }, literal.length());
+
+            this.literal        = literal.toCharArray();
+            this.matchedLiteral = literal;
+
+            int m = literal.length();
+            Arrays.fill(this.skip, m);
+            for (int i = 0; i < m - 1; i++) {
+                int idx = literal.charAt(i) & 0xff;
+                this.skip[idx] = Math.min(this.skip[idx], m - 1 - i);
+            }
+        }
+
+        @Override protected int
+        find(char[] buffer, int from, int limit, int end) {
+
+            char[] literal = this.literal;
+            int    m       = literal.length;
+            char   last    = literal[m - 1];
+            int[]  skip    = this.skip;
+
+            for (int i = from; i < limit && i + m <= end;) {
+                char c = buffer[i + m - 1];
+                if (c == last) {
+                    int j = m - 2;
+                    while (j >= 0 && buffer[i + j] == literal[j]) j--;
+                    if (j < 0) return i;
+                }
+                i += skip[c & 0xff];
+            }
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Finds the files in a directory tree that match ANT-style include and exclude patterns, like the {@link
+ * DirectoryScanner}, but lists the directories concurrently, and gets the "last modified" time and the size of each
+ * file with the same file system operation. This pays off particularly on network file systems, where each
+ * operation has a high latency.
+ * <p>
+ *   The files are reported in no particular order, and as soon as they are found.
+ * </p>
+ * <p>
+ *   Selectors are not supported. Files and directories that cannot be read are skipped (and logged at the verbose
+ *   level).
+ * </p>
+ * <p>
+ *   If the caller stops iterating before the end, then it should {@link #cancel()} the scan; at the latest, the scan
+ *   is cancelled when the build finishes.
+ * </p>
+ */
+public
+class ParallelDirectoryScanner implements Iterator<ParallelDirectoryScanner.ScannedFile> {
+
+    /**
+     * A file that was found by the scanner.
+     */
+    public static final
+    class ScannedFile {
+
+        private final String name;
+        private final long   lastModified;
+        private final long   size;
+
+        ScannedFile(String name, long lastModified, long size) {
+            this.name         = name;
+            this.lastModified = lastModified;
+            this.size         = size;
+        }
+
+        /**
+         * @return The path of the file, relative to the base directory, with {@link File#separatorChar} as the
+         *         separator
+         */
+        public String
+        getName() { return this.name; }
+
+        /**
+         * @return Milliseconds since 1970-01-01 00:00:00 UTC
+         */
+        public long
+        getLastModified() { return this.lastModified; }
+
+        /**
+         * @return The size of the file, in bytes
+         */
+        public long
+        getSize() { return this.size; }
+    }
+
+    // Marks the end of the output.
+    private static final ScannedFile END = new ScannedFile("", 0, 0);
+
+    private final Project  project;
+    private final File     baseDir;
+    private final String[] includes;
+    private final String[] excludes;
+    private final boolean  caseSensitive;
+    private final boolean  followSymlinks;
+
+    // Cancels the scan when the build finishes, so that the workers do not wait forever for the caller to take the
+    // next file.
+    private final BuildListener buildListener = new BuildListener() {
+
+        @Override public void
+        buildFinished(@Nullable BuildEvent event) { ParallelDirectoryScanner.this.cancel(); }
+
+        @Override public void buildStarted(@Nullable BuildEvent event)   {}
+        @Override public void targetStarted(@Nullable BuildEvent event)  {}
+        @Override public void targetFinished(@Nullable BuildEvent event) {}
+        @Override public void taskStarted(@Nullable BuildEvent event)    {}
+        @Override public void taskFinished(@Nullable BuildEvent event)   {}
+        @Override public void messageLogged(@Nullable BuildEvent event)  {}
+    };
+
+    // The directories yet to be listed, relative to the base directory ("" is the base directory itself).
+    private final BlockingQueue<String> directories = new LinkedBlockingQueue<String>();
+
+    // The number of directories that are queued or being listed.
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final BlockingQueue<ScannedFile> output = new ArrayBlockingQueue<ScannedFile>(10000);
+
+    private final AtomicReference<IOException> exception = new AtomicReference<IOException>();
+
+    // The "file keys" of the directories listed so far, to avoid infinite recursion through symbolic links.
+    private final Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    private volatile boolean cancelled;
+
+    @Nullable private ScannedFile next;
+
+    /**
+     * Starts scanning the <var>baseDir</var> with <var>threads</var> jobs on the <var>executor</var>.
+     *
+     * @param includes Empty means "include all files"
+     */
+    public
+    ParallelDirectoryScanner(
+        Project        project,
+        File           baseDir,
+        String[]       includes,
+        String[]       excludes,
+        boolean        defaultExcludes,
+        boolean        caseSensitive,
+        boolean        followSymlinks,
+        SharedExecutor executor,
+        int            threads
+    ) {
+        this.project        = project;
+        this.baseDir        = baseDir;
+        this.includes       = ParallelDirectoryScanner.normalize(
+            includes.length == 0 ? new String[] { "**" } : includes
+        );
+        this.caseSensitive  = caseSensitive;
+        this.followSymlinks = followSymlinks;
+
+        List<String> tmp = new ArrayList<String>();
+        Collections.addAll(tmp, excludes);
+        if (defaultExcludes) Collections.addAll(tmp, DirectoryScanner.getDefaultExcludes());
+        this.excludes = ParallelDirectoryScanner.normalize(tmp.toArray(new String[tmp.size()]));
+
+        this.pending.set(1);
+        this.directories.add("");
+
+        project.addBuildListener(this.buildListener);
+
+        for (int i = 0; i < threads; i++) {
+            executor.submit(new Callable<Void>() {
+
+                @Override @Nullable public Void
+                call() throws InterruptedException {
+                    ParallelDirectoryScanner.this.work();
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the scanning; should be invoked when the caller does not iterate to the end.
+     */
+    public void
+    cancel() {
+        this.cancelled = true;
+        this.project.removeBuildListener(this.buildListener);
+    }
+
+    @Override public boolean
+    hasNext() {
+
+        if (this.next != null) return true;
+
+        ScannedFile result;
+        try {
+            result = this.output.take();
+        } catch (InterruptedException ie) {
+            this.cancel();
+            throw new BuildException(ie);
+        }
+
+        if (result == ParallelDirectoryScanner.END) {
+            this.output.add(result);
+            IOException ioe = this.exception.get();
+            if (ioe != null) throw new BuildException("Scanning \"" + this.baseDir + "\": " + ioe, ioe);
+            return false;
+        }
+
+        this.next = result;
+        return true;
+    }
+
+    @Override public ScannedFile
+    next() {
+        if (!this.hasNext()) throw new NoSuchElementException();
+        ScannedFile result = this.next;
+        assert result != null;
+        this.next = null;
+        return result;
+    }
+
+    @Override public void
+    remove() { throw new UnsupportedOperationException("remove"); }
+
+    private void
+    work() throws InterruptedException {
+
+        while (!this.cancelled) {
+
+            String directory = this.directories.poll(10, TimeUnit.MILLISECONDS);
+            if (directory == null) {
+                if (this.pending.get() == 0) return;
+                continue;
+            }
+
+            try {
+                this.list(directory);
+            } catch (IOException ioe) {
+                this.exception.compareAndSet(null, ioe);
+            } catch (RuntimeException re) {
+                this.exception.compareAndSet(null, new IOException(re));
+            } finally {
+                if (this.pending.decrementAndGet() == 0) {
+                    this.project.removeBuildListener(this.buildListener);
+                    this.put(ParallelDirectoryScanner.END);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the matching files in the <var>directory</var>, and queues its subdirectories iff they could hold
+     * matching files.
+     */
+    private void
+    list(final String directory) throws IOException {
+
+        Path path = directory.isEmpty() ? this.baseDir.toPath() : new File(this.baseDir, directory).toPath();
+
+        Set<FileVisitOption> options = (
+            this.followSymlinks
+            ? EnumSet.of(FileVisitOption.FOLLOW_LINKS)
+            : EnumSet.noneOf(FileVisitOption.class)
+        );
+
+        // With "maxDepth=1", the visitor sees each member of the directory exactly once, including its attributes.
+        Files.walkFileTree(path, options, 1, new SimpleFileVisitor<Path>() {
+
+            @Override public FileVisitResult
+            preVisitDirectory(@Nullable Path dir, @Nullable BasicFileAttributes attrs) {
+                assert attrs != null;
+                Object key = attrs.fileKey();
+                return (
+                    key == null || ParallelDirectoryScanner.this.visited.add(key)
+                    ? FileVisitResult.CONTINUE
+                    : FileVisitResult.SKIP_SUBTREE
+                );
+            }
+
+            @Override public FileVisitResult
+            visitFile(@Nullable Path file, @Nullable BasicFileAttributes attrs) throws IOException {
+                assert file != null && attrs != null;
+
+                if (ParallelDirectoryScanner.this.cancelled) return FileVisitResult.TERMINATE;
+
+                if (attrs.isSymbolicLink()) return FileVisitResult.CONTINUE; // Only iff "!followSymlinks".
+
+                String fileName = file.getFileName().toString();
+                String name     = directory.isEmpty() ? fileName : directory + File.separatorChar + fileName;
+
+                if (attrs.isDirectory()) {
+                    if (ParallelDirectoryScanner.this.couldHoldIncluded(name)) {
+                        ParallelDirectoryScanner.this.pending.incrementAndGet();
+                        ParallelDirectoryScanner.this.directories.add(name);
+                    }
+                } else
+                if (ParallelDirectoryScanner.this.isIncluded(name)) {
+                    try {
+                        ParallelDirectoryScanner.this.put(new ScannedFile(
+                            name,
+                            attrs.lastModifiedTime().toMillis(),
+                            attrs.size()
+                        ));
+                    } catch (InterruptedException ie) {
+                        throw new IOException(ie);
+                    }
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult
+            visitFileFailed(@Nullable Path file, @Nullable IOException ioe) throws IOException {
+                assert ioe != null;
+
+                // A file that was deleted while the directory was being scanned is not an error.
+                if (ioe instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+
+                if (ioe instanceof AccessDeniedException) {
+                    ParallelDirectoryScanner.this.project.log(
+                        "Skipping \"" + file + "\": " + ioe,
+                        Project.MSG_VERBOSE
+                    );
+                    return FileVisitResult.CONTINUE;
+                }
+
+                throw ioe;
+            }
+        });
+    }
+
+    private void
+    put(ScannedFile file) throws InterruptedException {
+        while (!this.cancelled) {
+            if (this.output.offer(file, 100, TimeUnit.MILLISECONDS)) return;
+        }
+    }
+
+    private boolean
+    isIncluded(String name) {
+
+        boolean included = false;
+        for (String include : this.includes) {
+            if (SelectorUtils.matchPath(include, name, this.caseSensitive)) {
+                included = true;
+                break;
+            }
+        }
+        if (!included) return false;
+
+        for (String exclude : this.excludes) {
+            if (SelectorUtils.matchPath(exclude, name, this.caseSensitive)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Whether any file in the <var>directory</var> (or its subdirectories) could be included
+     */
+    private boolean
+    couldHoldIncluded(String directory) {
+
+        boolean couldBeIncluded = false;
+        for (String include : this.includes) {
+            if (SelectorUtils.matchPatternStart(include, directory, this.caseSensitive)) {
+                couldBeIncluded = true;
+                break;
+            }
+        }
+        if (!couldBeIncluded) return false;
+
+        // E.g. "**/CVS/**" excludes everything in and under "a/CVS".
+        String suffix = File.separatorChar + "**";
+        for (String exclude : this.excludes) {
+            if (
+                exclude.endsWith(suffix)
+                && SelectorUtils.matchPath(
+                    exclude.substring(0, exclude.length() - suffix.length()),
+                    directory,
+                    this.caseSensitive
+                )
+            ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Normalizes the patterns like the {@link DirectoryScanner} does: Slashes and backslashes become {@link
+     * File#separatorChar}, and a trailing separator implies "**".
+     */
+    private static String[]
+    normalize(String[] patterns) {
+
+        String[] result = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            String pattern = patterns[i].replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (pattern.endsWith(File.separator)) pattern += "**";
+            result[i] = pattern;
+        }
+        return result;
+    }
+}
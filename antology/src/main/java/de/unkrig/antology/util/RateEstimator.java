@@ -0,0 +1,157 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.antology.util;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.util.time.Duration;
+
+/**
+ * Estimates the processing rate from a series of samples, each consisting of the quantity processed and the time
+ * that processing took. Not thread-safe.
+ */
+public abstract
+class RateEstimator {
+
+    /**
+     * The available estimation strategies.
+     */
+    public
+    enum Kind {
+
+        /**
+         * Total quantity divided by total duration; thus, all samples have the same weight. Reacts very slowly to
+         * changes in the rate, in particular late in a long series.
+         */
+        CUMULATIVE,
+
+        /**
+         * Exponentially weighted moving averages of the quantities and of the durations; the weight of each sample
+         * is 2 / (<var>N</var> + 1), where <var>N</var> is the window size.
+         */
+        EWMA,
+
+        /**
+         * Only the last <var>N</var> samples, with equal weights.
+         */
+        WINDOW,
+    }
+
+    /**
+     * @param windowSize The <var>N</var> of {@link Kind#EWMA} and {@link Kind#WINDOW}; irrelevant for {@link
+     *                   Kind#CUMULATIVE}
+     * @return           {@code null} for {@link Kind#CUMULATIVE}, which needs no state beyond the total quantity and
+     *                   the total duration
+     */
+    @Nullable public static RateEstimator
+    newInstance(Kind kind, int windowSize) {
+
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize");
+
+        switch (kind) {
+
+        case CUMULATIVE:
+
+            // The callers compute the cumulative rate themselves, from the quantities and durations that they know
+            // anyway.
+            return null;
+
+        case EWMA:
+            final double alpha = 2.0 / (windowSize + 1);
+            return new RateEstimator() {
+
+                private double  quantity, seconds;
+                private boolean initialized;
+
+                @Override public void
+                sample(double quantity, Duration duration) {
+                    if (this.initialized) {
+                        this.quantity += alpha * (quantity - this.quantity);
+                        this.seconds  += alpha * (duration.toSeconds() - this.seconds);
+                    } else {
+                        this.quantity    = quantity;
+                        this.seconds     = duration.toSeconds();
+                        this.initialized = true;
+                    }
+                }
+
+                @Override @Nullable public Double
+                secondsPerUnit() { return this.quantity > 0 ? (Double) (this.seconds / this.quantity) : null; }
+            };
+
+        case WINDOW:
+            final double[] quantityRing = new double[windowSize], secondsRing = new double[windowSize];
+            return new RateEstimator() {
+
+                private int    next;
+                private double quantity, seconds;
+
+                @Override public void
+                sample(double quantity, Duration duration) {
+
+                    // Replace the oldest sample in the ring buffer, and adjust the sums accordingly.
+                    double seconds = duration.toSeconds();
+                    this.quantity += quantity - quantityRing[this.next];
+                    this.seconds  += seconds - secondsRing[this.next];
+
+                    quantityRing[this.next] = quantity;
+                    secondsRing[this.next]  = seconds;
+
+                    if (++this.next == quantityRing.length) {
+                        this.next = 0;
+
+                        // Re-compute the sums now and then, so that rounding errors do not accumulate.
+                        this.quantity = 0;
+                        this.seconds  = 0;
+                        for (int i = 0; i < quantityRing.length; i++) {
+                            this.quantity += quantityRing[i];
+                            this.seconds  += secondsRing[i];
+                        }
+                    }
+                }
+
+                @Override @Nullable public Double
+                secondsPerUnit() { return this.quantity > 0 ? (Double) (this.seconds / this.quantity) : null; }
+            };
+
+        default:
+            throw new AssertionError(kind);
+        }
+    }
+
+    /**
+     * Records that <var>quantity</var> units were processed in <var>duration</var>.
+     */
+    public abstract void
+    sample(double quantity, Duration duration);
+
+    /**
+     * @return The estimated inverse of the rate, or {@code null} iff no quantity was processed yet
+     */
+    @Nullable public abstract Double
+    secondsPerUnit();
+}
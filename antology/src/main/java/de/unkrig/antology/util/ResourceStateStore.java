@@ -0,0 +1,682 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.tools.ant.BuildException;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Persists the "last modified" times, sizes and content hashes of named resources, grouped by a "state key", as
+ * needed by the {@code <resourceCollectionDelta>} type.
+ */
+public abstract
+class ResourceStateStore {
+
+    /**
+     * The persisted state of one resource.
+     */
+    public static final
+    class Entry {
+
+        private final long             lastModified;
+        private final long             size;
+        @Nullable private final byte[] hash;
+
+        /**
+         * @param size {@code -1} if unknown
+         * @param hash {@code null} if unknown
+         */
+        public
+        Entry(long lastModified, long size, @Nullable byte[] hash) {
+            this.lastModified = lastModified;
+            this.size         = size;
+            this.hash         = hash;
+        }
+
+        /**
+         * @return Milliseconds since 1970-01-01 00:00:00 UTC
+         */
+        public long
+        getLastModified() { return this.lastModified; }
+
+        /**
+         * @return {@code -1} if unknown
+         */
+        public long
+        getSize() { return this.size; }
+
+        /**
+         * @return {@code null} if unknown
+         */
+        @Nullable public byte[]
+        getHash() { return this.hash; }
+    }
+
+    /**
+     * The supported file formats.
+     */
+    public
+    enum Format {
+
+        /**
+         * A properties file with entries "<var>stateKey</var>@<var>name</var>=yyyy-MM-dd HH:mm:ss.SSS", optionally
+         * followed by "<code>,<var>size</var>,<var>hex-hash</var></code>". On each update, the file is re-written
+         * completely.
+         */
+        PROPERTIES,
+
+        /**
+         * A binary journal: Each update appends only the changed entries, and the file is compacted only when the
+         * obsolete entries outweigh the live ones. Torn writes (e.g. after a crash) are detected through checksums
+         * and ignored.
+         */
+        BINARY,
+    }
+
+    /**
+     * @return A store that reads and writes the given <var>file</var>
+     */
+    public static ResourceStateStore
+    open(File file, Format format) {
+        switch (format) {
+        case PROPERTIES: return new PropertiesStore(file);
+        case BINARY:     return new BinaryStore(file);
+        default:         throw new AssertionError(format);
+        }
+    }
+
+    /**
+     * Loads the state if that has not yet happened.
+     *
+     * @return Maps resource names to their state; must not be modified by the caller, and reflects later
+     *         {@link #update(String, Map, Collection)}s
+     */
+    public abstract Map<String, Entry>
+    load(String stateKey) throws IOException;
+
+    /**
+     * Persists the given changes. {@link #load(String)} must have been called before with the same
+     * <var>stateKey</var>.
+     *
+     * @param puts     Entries to add or to replace
+     * @param removals Names of entries to remove
+     */
+    public abstract void
+    update(String stateKey, Map<String, Entry> puts, Collection<String> removals) throws IOException;
+
+    /**
+     * Replaces the <var>file</var> with the <var>newFile</var> such that, at any point in time, at least one of
+     * "<var>file</var>" and "<var>file</var>,old" is complete.
+     */
+    static void
+    replace(File file, File newFile) {
+
+        if (file.exists()) {
+            File oldFile = new File(file.getParentFile(), file.getName() + ",old");
+            oldFile.delete();
+            ResourceStateStore.rename(file, oldFile);
+            ResourceStateStore.rename(newFile, file);
+            ResourceStateStore.delete(oldFile);
+        } else {
+            ResourceStateStore.rename(newFile, file);
+        }
+    }
+
+    /**
+     * @return The lower-case hexadecimal representation of the <var>bytes</var>
+     */
+    public static String
+    toHex(byte[] bytes) {
+        char[] result = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i]     = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            result[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(result);
+    }
+
+    private static byte[]
+    fromHex(String s) {
+        if (s.length() % 2 != 0) throw new NumberFormatException(s);
+        byte[] result = new byte[s.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    private static void
+    delete(File file) {
+        if (!file.delete()) {
+            throw new BuildException("Could not delete '" + file);
+        }
+    }
+
+    private static void
+    rename(File source, File destination) {
+        if (!source.renameTo(destination)) {
+            throw new BuildException("Could not rename '" + source + "' to '" + destination);
+        }
+    }
+
+    /**
+     * The legacy format; see {@link Format#PROPERTIES}.
+     */
+    private static
+    class PropertiesStore extends ResourceStateStore {
+
+        private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+        private final File file;
+
+        // The DateFormat is not thread-safe, but neither is the store.
+        private final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        { this.df.setTimeZone(PropertiesStore.GMT); }
+
+        @Nullable private Properties                   properties;
+        private final Map<String, Map<String, Entry>> states = new HashMap<String, Map<String, Entry>>();
+
+        PropertiesStore(File file) { this.file = file; }
+
+        @Override public Map<String, Entry>
+        load(String stateKey) throws IOException {
+
+            Properties properties = this.properties;
+            if (properties == null) {
+                properties = new Properties();
+                try {
+                    FileInputStream is = new FileInputStream(this.file);
+                    try {
+                        properties.load(is);
+                        is.close();
+                    } finally {
+                        try { is.close(); } catch (Exception e) {}
+                    }
+                } catch (FileNotFoundException fnfe) {
+                    ;
+                }
+                this.properties = properties;
+            }
+
+            Map<String, Entry> result = this.states.get(stateKey);
+            if (result == null) {
+                result = new HashMap<String, Entry>();
+
+                String prefix = stateKey + '@';
+                for (Map.Entry<Object, Object> e : properties.entrySet()) {
+                    String key = (String) e.getKey();
+                    if (!key.startsWith(prefix)) continue;
+
+                    result.put(key.substring(prefix.length()), this.parse((String) e.getValue()));
+                }
+                this.states.put(stateKey, result);
+            }
+
+            return result;
+        }
+
+        @Override public void
+        update(String stateKey, Map<String, Entry> puts, Collection<String> removals) throws IOException {
+
+            Properties         properties = this.properties;
+            Map<String, Entry> state      = this.states.get(stateKey);
+            assert properties != null && state != null;
+
+            for (Map.Entry<String, Entry> e : puts.entrySet()) {
+                properties.setProperty(stateKey + '@' + e.getKey(), this.format(e.getValue()));
+                state.put(e.getKey(), e.getValue());
+            }
+            for (String name : removals) {
+                properties.remove(stateKey + '@' + name);
+                state.remove(name);
+            }
+
+            File newFile = new File(this.file.getParentFile(), this.file.getName() + ",new");
+
+            FileOutputStream os = new FileOutputStream(newFile);
+            try {
+                properties.store(os, null);
+                os.close();
+            } finally {
+                try { os.close(); } catch (Exception e) {}
+            }
+
+            ResourceStateStore.replace(this.file, newFile);
+        }
+
+        private Entry
+        parse(String value) {
+
+            String[] tokens = value.split(",", 3);
+
+            long lastModified;
+            try {
+                lastModified = this.df.parse(tokens[0]).getTime();
+            } catch (ParseException pe) {
+
+                // Causes the resource to be reported as "modified".
+                lastModified = Long.MIN_VALUE;
+            }
+
+            long             size = -1;
+            @Nullable byte[] hash = null;
+            try {
+                if (tokens.length >= 2 && !tokens[1].isEmpty()) size = Long.parseLong(tokens[1]);
+                if (tokens.length >= 3 && !tokens[2].isEmpty()) hash = ResourceStateStore.fromHex(tokens[2]);
+            } catch (NumberFormatException nfe) {
+                ;
+            }
+
+            return new Entry(lastModified, size, hash);
+        }
+
+        private String
+        format(Entry entry) {
+
+            String result = this.df.format(entry.getLastModified());
+
+            // Keep the legacy format iff there is no size and no hash.
+            byte[] hash = entry.getHash();
+            if (entry.getSize() == -1 && hash == null) return result;
+
+            return (
+                result
+                + ','
+                + (entry.getSize() == -1 ? "" : Long.toString(entry.getSize()))
+                + ','
+                + (hash == null ? "" : ResourceStateStore.toHex(hash))
+            );
+        }
+    }
+
+    /**
+     * See {@link Format#BINARY}.
+     * <p>
+     *   File layout:
+     * </p>
+     * <pre>
+     *   file   := MAGIC batch*
+     *   batch  := int(bodyLength) body long(crc32(body))
+     *   body   := byte(SNAPSHOT|DELTA) utf(stateKey) int(recordCount) record*
+     *   record := byte(PUT) utf(name) long(lastModified)
+     *           | byte(PUT2) utf(name) long(lastModified) long(size) short(hashLength) byte[hashLength]
+     *           | byte(REMOVE) utf(name)
+     * </pre>
+     * <p>
+     *   A SNAPSHOT batch replaces all previous entries of the state key. The body length is written last, so an
+     *   incompletely written batch has an invalid length or checksum, and is discarded (together with anything that
+     *   follows it).
+     * </p>
+     */
+    private static
+    class BinaryStore extends ResourceStateStore {
+
+        private static final int  MAGIC            = 0x52434401; // "RCD\1"
+        private static final byte SNAPSHOT         = 1;
+        private static final byte DELTA            = 2;
+        private static final byte PUT              = 1;
+        private static final byte REMOVE           = 2;
+        private static final byte PUT2             = 3;
+        private static final int  COMPACTION_SLACK = 1000;
+
+        private final File file;
+
+        @Nullable private String            stateKey;
+        @Nullable private Map<String, Entry> state;
+
+        // The end of the last valid batch; anything beyond is discarded on the next update.
+        private long validLength;
+
+        // The number of records (live or obsolete) in the file that pertain to "stateKey".
+        private long records;
+
+        // Offsets and lengths of the batches of other state keys, which are copied verbatim on compaction.
+        private final List<long[]> foreignBatches = new ArrayList<long[]>();
+
+        BinaryStore(File file) { this.file = file; }
+
+        @Override public Map<String, Entry>
+        load(String stateKey) throws IOException {
+
+            if (stateKey.equals(this.stateKey)) {
+                Map<String, Entry> result = this.state;
+                assert result != null;
+                return result;
+            }
+
+            Map<String, Entry> state = new HashMap<String, Entry>();
+
+            this.validLength = 0;
+            this.records     = 0;
+            this.foreignBatches.clear();
+
+            DataInputStream dis;
+            try {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            } catch (FileNotFoundException fnfe) {
+                dis = null;
+            }
+
+            if (dis != null) {
+                try {
+                    long fileLength = this.file.length();
+
+                    if (fileLength >= 4) {
+                        if (dis.readInt() != BinaryStore.MAGIC) {
+                            throw new IOException("\"" + this.file + "\" is not a binary state file");
+                        }
+                        this.validLength = 4;
+
+                        // Read batch by batch, until EOF or the first invalid batch.
+                        for (;;) {
+                            long offset = this.validLength;
+                            if (offset + 4 + 8 > fileLength) break;
+
+                            int bodyLength = dis.readInt();
+                            if (bodyLength < 0 || offset + 4 + bodyLength + 8 > fileLength) break;
+
+                            CRC32           crc  = new CRC32();
+                            DataInputStream body = new DataInputStream(new CheckedInputStream(dis, crc));
+
+                            byte   kind = body.readByte();
+                            String key  = body.readUTF();
+                            int    n    = body.readInt();
+
+                            Map<String, Entry> puts     = new HashMap<String, Entry>();
+                            List<String>       removals = new ArrayList<String>();
+                            if (key.equals(stateKey)) {
+                                for (int i = 0; i < n; i++) {
+                                    byte op = body.readByte();
+                                    if (op == BinaryStore.PUT) {
+                                        String name = body.readUTF();
+                                        puts.put(name, new Entry(body.readLong(), -1, null));
+                                    } else
+                                    if (op == BinaryStore.PUT2) {
+                                        String name         = body.readUTF();
+                                        long   lastModified = body.readLong();
+                                        long   size         = body.readLong();
+                                        int    hashLength   = body.readShort();
+
+                                        byte[] hash = null;
+                                        if (hashLength >= 0) body.readFully((hash = new byte[hashLength]));
+
+                                        puts.put(name, new Entry(lastModified, size, hash));
+                                    } else
+                                    if (op == BinaryStore.REMOVE) {
+                                        removals.add(body.readUTF());
+                                    } else
+                                    {
+                                        throw new IOException(
+                                            "Invalid record type " + op + " in \"" + this.file + "\""
+                                        );
+                                    }
+                                }
+                            } else {
+                                BinaryStore.skipFully(body, bodyLength - 1 - BinaryStore.utfLength(key) - 4);
+                            }
+
+                            if (dis.readLong() != crc.getValue()) break;
+
+                            if (key.equals(stateKey)) {
+                                if (kind == BinaryStore.SNAPSHOT) state.clear();
+                                state.putAll(puts);
+                                for (String name : removals) state.remove(name);
+                                this.records += n;
+                            } else {
+                                this.foreignBatches.add(new long[] { offset, 4 + bodyLength + 8 });
+                            }
+
+                            this.validLength = offset + 4 + bodyLength + 8;
+                        }
+                    }
+                } catch (EOFException eofe) {
+                    ;
+                } finally {
+                    try { dis.close(); } catch (Exception e) {}
+                }
+            }
+
+            this.stateKey = stateKey;
+            this.state    = state;
+
+            return state;
+        }
+
+        @Override public void
+        update(String stateKey, Map<String, Entry> puts, Collection<String> removals) throws IOException {
+
+            Map<String, Entry> state = this.state;
+            assert stateKey.equals(this.stateKey) && state != null;
+
+            for (Map.Entry<String, Entry> e : puts.entrySet()) state.put(e.getKey(), e.getValue());
+            for (String name : removals) state.remove(name);
+
+            int changes = puts.size() + removals.size();
+            if (changes == 0) return;
+
+            if (this.records + changes > 2L * state.size() + BinaryStore.COMPACTION_SLACK) {
+                this.compact(stateKey, state);
+                return;
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(this.validLength);
+                raf.seek(this.validLength);
+
+                if (this.validLength == 0) {
+                    raf.writeInt(BinaryStore.MAGIC);
+                    this.validLength = 4;
+                }
+
+                this.validLength = BinaryStore.writeBatch(raf, BinaryStore.DELTA, stateKey, puts, removals);
+                this.records     += changes;
+
+                raf.close();
+            } finally {
+                try { raf.close(); } catch (Exception e) {}
+            }
+        }
+
+        /**
+         * Re-writes the file with the batches of all other state keys, plus one SNAPSHOT batch for the
+         * <var>stateKey</var>.
+         */
+        private void
+        compact(String stateKey, Map<String, Entry> state) throws IOException {
+
+            File newFile = new File(this.file.getParentFile(), this.file.getName() + ",new");
+
+            List<long[]> newForeignBatches = new ArrayList<long[]>();
+            long         length;
+
+            RandomAccessFile raf = new RandomAccessFile(newFile, "rw");
+            try {
+                raf.setLength(0);
+                raf.writeInt(BinaryStore.MAGIC);
+
+                if (!this.foreignBatches.isEmpty()) {
+                    FileInputStream is = new FileInputStream(this.file);
+                    try {
+                        FileChannel in  = is.getChannel();
+                        FileChannel out = raf.getChannel();
+                        for (long[] batch : this.foreignBatches) {
+                            long position = out.position();
+                            for (long n = 0; n < batch[1];) {
+                                n += in.transferTo(batch[0] + n, batch[1] - n, out);
+                            }
+                            out.position(position + batch[1]);
+                            newForeignBatches.add(new long[] { position, batch[1] });
+                        }
+                        is.close();
+                    } finally {
+                        try { is.close(); } catch (Exception e) {}
+                    }
+                }
+
+                length = BinaryStore.writeBatch(
+                    raf,
+                    BinaryStore.SNAPSHOT,
+                    stateKey,
+                    state,
+                    new ArrayList<String>()
+                );
+
+                raf.close();
+            } finally {
+                try { raf.close(); } catch (Exception e) {}
+            }
+
+            ResourceStateStore.replace(this.file, newFile);
+
+            this.validLength = length;
+            this.records     = state.size();
+            this.foreignBatches.clear();
+            this.foreignBatches.addAll(newForeignBatches);
+        }
+
+        /**
+         * Writes one batch at the current position of the <var>raf</var>, and forces it to the storage device.
+         *
+         * @return The file position after the batch
+         */
+        private static long
+        writeBatch(
+            RandomAccessFile   raf,
+            byte               kind,
+            String             stateKey,
+            Map<String, Entry> puts,
+            Collection<String> removals
+        ) throws IOException {
+
+            long start = raf.getFilePointer();
+
+            // Placeholder for the body length; an invalid value until the batch is complete.
+            raf.writeInt(-1);
+
+            FileChannel      channel = raf.getChannel();
+            CRC32            crc     = new CRC32();
+            DataOutputStream body    = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 65536),
+                crc
+            ));
+
+            body.writeByte(kind);
+            body.writeUTF(stateKey);
+            body.writeInt(puts.size() + removals.size());
+            for (Map.Entry<String, Entry> e : puts.entrySet()) {
+                Entry  entry = e.getValue();
+                byte[] hash  = entry.getHash();
+                if (entry.getSize() == -1 && hash == null) {
+                    body.writeByte(BinaryStore.PUT);
+                    body.writeUTF(e.getKey());
+                    body.writeLong(entry.getLastModified());
+                } else {
+                    body.writeByte(BinaryStore.PUT2);
+                    body.writeUTF(e.getKey());
+                    body.writeLong(entry.getLastModified());
+                    body.writeLong(entry.getSize());
+                    if (hash == null) {
+                        body.writeShort(-1);
+                    } else {
+                        body.writeShort(hash.length);
+                        body.write(hash);
+                    }
+                }
+            }
+            for (String name : removals) {
+                body.writeByte(BinaryStore.REMOVE);
+                body.writeUTF(name);
+            }
+            body.flush();
+
+            int bodyLength = body.size();
+
+            raf.seek(start + 4 + bodyLength);
+            raf.writeLong(crc.getValue());
+            channel.force(false);
+
+            // Only now that the body is on the storage device, make the batch valid.
+            raf.seek(start);
+            raf.writeInt(bodyLength);
+            channel.force(false);
+
+            return start + 4 + bodyLength + 8;
+        }
+
+        private static void
+        skipFully(DataInputStream is, long n) throws IOException {
+            byte[] buffer = new byte[8192];
+            while (n > 0) {
+                int r = is.read(buffer, 0, (int) Math.min(n, buffer.length));
+                if (r == -1) throw new EOFException();
+                n -= r;
+            }
+        }
+
+        /**
+         * @return The number of bytes that {@link DataOutputStream#writeUTF(String)} writes for the <var>s</var>
+         */
+        private static int
+        utfLength(String s) {
+            int result = 2;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                result += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * A named executor for background jobs, which is shared by all users within the same ANT {@link Project}, so that
+ * threads are re-used instead of being created and torn down for each job.
+ * <p>
+ *   If the JVM {@link Threads#virtualThreadsSupported() supports} virtual threads, then each job runs in a (cheap)
+ *   virtual thread. Otherwise, each job runs in an idle pooled platform thread, or, iff there is none, in a new one,
+ *   which is pooled afterwards. Idle pooled threads terminate after one minute.
+ * </p>
+ * <p>
+ *   Notice that jobs are never queued until a thread becomes available, because that would deadlock when jobs
+ *   depend on each other, e.g. the sinks of a tee filter, which all consume the same bounded buffer.
+ * </p>
+ * <p>
+ *   Counts the queued, active and completed jobs; see {@link #toString()}.
+ * </p>
+ */
+public final
+class SharedExecutor {
+
+    private static final String REFERENCE_PREFIX = SharedExecutor.class.getName() + ".";
+
+    private final String          name;
+    private final ExecutorService executorService;
+
+    private final AtomicInteger queued    = new AtomicInteger();
+    private final AtomicInteger active    = new AtomicInteger();
+    private final AtomicLong    completed = new AtomicLong();
+
+    private
+    SharedExecutor(String name) {
+
+        boolean virtual = Threads.virtualThreadsSupported();
+
+        this.name            = name;
+        this.executorService = new ThreadPoolExecutor(
+            0,                                             // corePoolSize
+            Integer.MAX_VALUE,                             // maximumPoolSize
+            virtual ? 0 : 60, TimeUnit.SECONDS,            // keepAliveTime
+            new SynchronousQueue<Runnable>(),              // workQueue
+            Threads.newThreadFactory(name + "-", virtual)  // threadFactory
+        );
+    }
+
+    /**
+     * Returns the executor with the given <var>name</var>, which is shared by all users within the
+     * <var>project</var>; creates it iff it does not yet exist.
+     */
+    public static SharedExecutor
+    get(Project project, String name) {
+
+        String referenceName = SharedExecutor.REFERENCE_PREFIX + name;
+
+        synchronized (project) {
+            Object result = project.getReference(referenceName);
+            if (result == null) {
+                project.addReference(referenceName, (result = new SharedExecutor(name)));
+            }
+            return (SharedExecutor) result;
+        }
+    }
+
+    /**
+     * Submits the <var>job</var> for execution.
+     */
+    public <T> Future<T>
+    submit(final Callable<T> job) {
+
+        this.queued.incrementAndGet();
+        try {
+            return this.executorService.submit(new Callable<T>() {
+
+                @Override public T
+                call() throws Exception {
+                    SharedExecutor.this.queued.decrementAndGet();
+                    SharedExecutor.this.active.incrementAndGet();
+                    try {
+                        return job.call();
+                    } finally {
+                        SharedExecutor.this.active.decrementAndGet();
+                        SharedExecutor.this.completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            this.queued.decrementAndGet();
+            throw re;
+        }
+    }
+
+    /**
+     * @return The number of jobs that were submitted, but have not yet started (typically only for a very short
+     *         time)
+     */
+    public int
+    getQueued() { return this.queued.get(); }
+
+    /**
+     * @return The number of jobs that are currently executing
+     */
+    public int
+    getActive() { return this.active.get(); }
+
+    /**
+     * @return The number of jobs that have completed (normally or abruptly)
+     */
+    public long
+    getCompleted() { return this.completed.get(); }
+
+    @Override public String
+    toString() {
+        return (
+            "Executor \"" + this.name + "\": "
+            + this.queued.get() + " queued, "
+            + this.active.get() + " active, "
+            + this.completed.get() + " completed"
+        );
+    }
+}
@@ -0,0 +1,111 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.antology.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Utility methods related to threads.
+ */
+public final
+class Threads {
+
+    private Threads() {}
+
+    /**
+     * Non-{@code null} iff the JVM supports virtual threads (JRE 21+); the {@code Thread.ofVirtual()} method.
+     */
+    @Nullable private static final Method OF_VIRTUAL;
+
+    /**
+     * The {@code Thread.Builder.name(String, long)} and {@code Thread.Builder.factory()} methods.
+     */
+    @Nullable private static final Method BUILDER_NAME, BUILDER_FACTORY;
+    static {
+        Method ofVirtual = null, builderName = null, builderFactory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            ofVirtual      = Thread.class.getMethod("ofVirtual");
+            builderName    = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL      = ofVirtual;
+        BUILDER_NAME    = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    /**
+     * @return Whether the running JVM supports virtual threads
+     */
+    public static boolean
+    virtualThreadsSupported() { return Threads.OF_VIRTUAL != null; }
+
+    /**
+     * Creates a factory for daemon threads named "<var>namePrefix</var>1", "<var>namePrefix</var>2", ...
+     * <p>
+     *   Iff <var>virtual</var> is {@code true} and the JVM {@link #virtualThreadsSupported() supports} virtual
+     *   threads, then the created threads are virtual threads. A virtual thread that blocks, e.g. in {@link
+     *   Thread#sleep(long)}, does not occupy an operating system thread, so many thousands of such threads are
+     *   cheap. Otherwise, the created threads are platform threads.
+     * </p>
+     */
+    public static ThreadFactory
+    newThreadFactory(final String namePrefix, boolean virtual) {
+
+        Method ofVirtual      = Threads.OF_VIRTUAL;
+        Method builderName    = Threads.BUILDER_NAME;
+        Method builderFactory = Threads.BUILDER_FACTORY;
+        if (virtual && ofVirtual != null && builderName != null && builderFactory != null) {
+            try {
+                Object builder = ofVirtual.invoke(null);
+                builder = builderName.invoke(builder, namePrefix, 1L);
+                return (ThreadFactory) builderFactory.invoke(builder);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        return new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override public Thread
+            newThread(@Nullable Runnable r) {
+                Thread t = new Thread(r, namePrefix + this.threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.ProjectHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Compares the per-iteration {@link org.apache.tools.ant.taskdefs.MacroInstance} path of the {@link
+ * de.unkrig.antology.task.ForEach2Task} with the {@link de.unkrig.antology.task.ForEach2Task#setPrecompile(boolean)
+ * precompiled} path.
+ * <p>
+ *   Run with
+ * </p>
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main ForEach2Benchmark
+ * </pre>
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2) @Measurement(iterations = 5, time = 2) @Fork(1)
+public
+class ForEach2Benchmark {
+
+    @Param({ "false", "true" }) public boolean
+    precompile;
+
+    @Param({ "10000" }) public int
+    count;
+
+    private Project project = new Project();
+
+    @Setup public void
+    setUp() throws URISyntaxException {
+
+        File buildFile = new File(ForEach2Benchmark.class.getResource("/benchmark_forEach2.ant").toURI());
+
+        Project project = new Project();
+        project.init();
+        project.setUserProperty("count",      Integer.toString(this.count));
+        project.setUserProperty("precompile", Boolean.toString(this.precompile));
+        ProjectHelper.configureProject(project, buildFile);
+
+        this.project = project;
+    }
+
+    @Benchmark public void
+    forEach2() { this.project.executeTarget("forEach2"); }
+}
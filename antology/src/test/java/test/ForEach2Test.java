@@ -26,12 +26,22 @@
 
 package test;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.BuildFileRule;
+import org.apache.tools.ant.BuildListener;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.ComparisonFailure;
 import org.junit.Rule;
 import org.junit.Test;
 
+import de.unkrig.antology.util.Threads;
 import de.unkrig.commons.junit4.AssertRegex;
 import de.unkrig.commons.junit4.AssertString;
 import junit.framework.TestCase;
@@ -198,6 +208,182 @@ class ForEach2Test {
         TestCase.assertEquals("", this.rule.getOutput());
     }
 
+    @Test public void
+    test10() {
+        this.rule.executeTarget("test10");
+    }
+
+    @Test public void
+    test11() {
+        try {
+            this.rule.executeTarget("test11");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("5 iterations failed.", be.getMessage());
+        }
+    }
+
+    @Test public void
+    test12() {
+        long start = System.currentTimeMillis();
+        this.rule.executeTarget("test12");
+        long took = System.currentTimeMillis() - start;
+        TestCase.assertEquals("done", this.rule.getLog());
+        TestCase.assertTrue(took + "ms", took < 500);
+    }
+
+    @Test public void
+    test13() {
+        this.rule.executeTarget("test13");
+        TestCase.assertEquals((
+            ""
+            + "Processing 'A' (10 bytes)"
+            + "... done! Took 500ms (10 bytes @ 20 bytes/s)"
+            + ""
+            + "Processing 'B' (20 bytes = approx. 1s)"
+            + "... done! Took 500ms (20 bytes @ 40 bytes/s; 30 bytes complete @ 30 bytes/s)"
+            + ""
+            + "Processing 'C' (30 bytes = approx. 1s)"
+            + "... done! Took 500ms (30 bytes @ 60 bytes/s; 60 bytes complete @ 40 bytes/s)"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test14() {
+        this.rule.executeTarget("test14");
+
+        // The first iteration may or may not know the total, but the last one certainly does.
+        this.assertContains((
+            ""
+            + "Processing 'c' (1 of 3 elements = 33.3% = approx. 500ms)"
+            + "... done! Took 500ms (1 element @ 2 elements/s"
+            + "; 3 of 3 elements complete = 100.0% @ 2 elements/s"
+            + ")"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test15() {
+        this.rule.executeTarget("test15");
+        TestCase.assertEquals("11@{p}@{q}@33@{p}@{q}@", this.rule.getLog());
+    }
+
+    @Test public void
+    test16() {
+        this.rule.executeTarget("test16");
+        TestCase.assertEquals("[1 2 3][4 5 6][7]", this.rule.getLog());
+    }
+
+    @Test public void
+    test17() {
+        this.rule.executeTarget("test17");
+        TestCase.assertEquals((
+            ""
+            + "Processing 'a,b' (2 of 5 elements = 40.0%)"
+            + "| [a,b]"
+            + "... done! Took 500ms (2 elements @ 4 elements/s"
+            + "; 2 of 5 elements complete = 40.0% @ 4 elements/s"
+            + "; 3 elements remaining = approx. 750ms"
+            + ")"
+            + ""
+            + "Processing 'c,d' (2 of 5 elements = 40.0% = approx. 500ms)"
+            + "| [c,d]"
+            + "... done! Took 500ms (2 elements @ 4 elements/s"
+            + "; 4 of 5 elements complete = 80.0% @ 4 elements/s"
+            + "; 1 element remaining = approx. 250ms"
+            + ")"
+            + ""
+            + "Processing 'e' (1 of 5 elements = 20.0% = approx. 250ms)"
+            + "| [e]"
+            + "... done! Took 500ms (1 element @ 2 elements/s"
+            + "; 5 of 5 elements complete = 100.0% @ 3 elements/s"
+            + ")"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test18() {
+        this.rule.executeTarget("test18");
+        TestCase.assertEquals((
+            ""
+            + "a (1 of 4 tokens = 25.0%)"
+            + "| [a]"
+            + "... done! Took 1s (1 token @ 1 token/s; 1 of 4 tokens complete = 25.0% @ 1 token/s"
+            + "; 3 tokens remaining = approx. 3s)"
+            + "b (1 of 4 tokens = 25.0% = approx. 1s)"
+            + "| [b]"
+            + "... done! Took 1s (1 token @ 1 token/s; 2 of 4 tokens complete = 50.0% @ 1 token/s"
+            + "; 2 tokens remaining = approx. 2s)"
+            + "c (1 of 4 tokens = 25.0% = approx. 1s)"
+            + "| [c]"
+            + "... done! Took 1s (1 token @ 1 token/s; 3 of 4 tokens complete = 75.0% @ 1 token/s"
+            + "; 1 token remaining = approx. 1s)"
+            + "d (1 of 4 tokens = 25.0% = approx. 1s)"
+            + "| [d]"
+            + "... done! Took 1s (1 token @ 1 token/s; 4 of 4 tokens complete = 100.0% @ 1 token/s)"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test19() throws Exception {
+        Assume.assumeTrue("Virtual threads require Java 21+", Threads.virtualThreadsSupported());
+
+        // Record the threads that execute the "<sleep>" tasks.
+        final List<Thread> sleepers = Collections.synchronizedList(new ArrayList<Thread>());
+        this.rule.getProject().addBuildListener(new BuildListener() {
+
+            @Override public void
+            taskStarted(BuildEvent event) {
+                if ("sleep".equals(event.getTask().getTaskName())) sleepers.add(Thread.currentThread());
+            }
+
+            @Override public void buildStarted(BuildEvent event)   {}
+            @Override public void buildFinished(BuildEvent event)  {}
+            @Override public void targetStarted(BuildEvent event)  {}
+            @Override public void targetFinished(BuildEvent event) {}
+            @Override public void taskFinished(BuildEvent event)   {}
+            @Override public void messageLogged(BuildEvent event)  {}
+        });
+
+        this.rule.executeTarget("test19");
+        AssertRegex.assertMatches("(?s).*done", this.rule.getLog());
+
+        // Each iteration retried once, and all attempts ran in virtual threads.
+        TestCase.assertEquals(400, sleepers.size());
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        for (Thread t : sleepers) TestCase.assertTrue(t.getName(), (Boolean) isVirtual.invoke(t));
+    }
+
+    @Test public void
+    test20() {
+        this.rule.executeTarget("test20");
+        AssertRegex.assertMatches((
+            "(?s).*"
+            + "outer/inner\\s*"
+            + "time,label,event,element,unit,previousQuantity,previousDuration,currentQuantity,currentDuration,"
+            + "currentRate,completedQuantity,totalQuantity,percentComplete,cumulativeRate,remainingQuantity,"
+            + "remainingDuration,eta\\s*"
+            + "\\d+,\"outer\",\"iteration\",\"a\",\"elements\",0.0,0.0,1.0,2.0,0.5,1.0,2.0,50.0,0.5,1.0,2.0,\\d+\\s*"
+            + "\\d+,\"outer\",\"iteration\",\"b\",\"elements\",1.0,2.0,1.0,2.0,0.5,2.0,2.0,100.0,0.5,0.0,0.0,\\d+\\s*"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test21() {
+        this.rule.executeTarget("test21");
+        TestCase.assertEquals((
+            ""
+            + "a (1 of 20 bytes = 5.0%)"
+            + "... done! Took 1s (1 byte @ 1 byte/s; 1 of 20 bytes complete = 5.0% @ 1 byte/s"
+            + "; 19 bytes remaining = approx. 19s)"
+            + "bbbbbbbbb (9 of 20 bytes = 45.0% = approx. 9s)"
+            + "... done! Took 1s (9 bytes @ 9 bytes/s; 10 of 20 bytes complete = 50.0% @ 5 bytes/s"
+            + "; 10 bytes remaining = approx. 1.111s)"
+            + "cccccccccc (10 of 20 bytes = 50.0% = approx. 1.111s)"
+            + "... done! Took 1s (10 bytes @ 10 bytes/s; 20 of 20 bytes complete = 100.0% @ 7 bytes/s)"
+        ), this.rule.getLog());
+    }
+
     public void
     assertContains(String expectedSubstring, String actual) {
         if (!actual.contains(expectedSubstring)) {
@@ -0,0 +1,145 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2019, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.antology.filter.ProgressFilter;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Measures the overhead of the {@link ProgressFilter} relative to a bare {@link FilterReader}, for single-character
+ * and for bulk reads.
+ * <p>
+ *   Run with
+ * </p>
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main ProgressFilterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2) @Measurement(iterations = 5, time = 2) @Fork(1)
+public
+class ProgressFilterBenchmark {
+
+    @Param({ "false", "true" }) public boolean
+    progress;
+
+    @Param({ "16777216" }) public int
+    size;
+
+    private PrintStream originalErr = System.err;
+
+    @Setup public void
+    setUp() {
+
+        // Discard the dots.
+        this.originalErr = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override public void write(int b) {}
+            @Override public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    @TearDown public void
+    tearDown() { System.setErr(this.originalErr); }
+
+    @Benchmark public int
+    readSingleChars() throws IOException {
+
+        Reader r = this.reader();
+
+        int result = 0;
+        for (int c = r.read(); c != -1; c = r.read()) result += c;
+        r.close();
+
+        return result;
+    }
+
+    @Benchmark public int
+    readBulk() throws IOException {
+
+        Reader r = this.reader();
+
+        char[] buffer = new char[8192];
+        int    result = 0;
+        for (int n = r.read(buffer); n != -1; n = r.read(buffer)) result += n;
+        r.close();
+
+        return result;
+    }
+
+    private Reader
+    reader() {
+
+        Reader source = new Reader() {
+
+            private int remaining = ProgressFilterBenchmark.this.size;
+
+            @Override public int
+            read() {
+                if (this.remaining == 0) return -1;
+                this.remaining--;
+                return 'x';
+            }
+
+            @Override public int
+            read(char[] cbuf, int off, int len) {
+                if (this.remaining == 0) return -1;
+                int n = Math.min(len, this.remaining);
+                this.remaining -= n;
+                return n;
+            }
+
+            @Override public void
+            close() {}
+        };
+
+        return this.progress ? new ProgressFilter().chain(source) : new FilterReader(source) {};
+    }
+}
@@ -0,0 +1,128 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.antology.filter.ReplaceAllFilter;
+import de.unkrig.commons.text.pattern.PatternUtil;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Compares the {@link ReplaceAllFilter} with literal patterns (one pass per pattern, and single pass) with the
+ * previous implementation, which stacked one regex-based filter reader per pattern.
+ * <p>
+ *   Run with
+ * </p>
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main ReplaceAllBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2) @Measurement(iterations = 5, time = 2) @Fork(1)
+public
+class ReplaceAllBenchmark {
+
+    @Param({ "regex", "literal", "singlePass" }) public String
+    engine;
+
+    @Param({ "1", "20" }) public int
+    patterns;
+
+    @Param({ "4194304" }) public int
+    size;
+
+    private String input = "";
+
+    @Setup public void
+    setUp() {
+
+        // Words, with a placeholder "@VARn@" every ~100 chars.
+        Random        r  = new Random(0);
+        StringBuilder sb = new StringBuilder(this.size + 100);
+        while (sb.length() < this.size) {
+            if (r.nextInt(16) == 0) {
+                sb.append("@VAR").append(r.nextInt(this.patterns)).append("@ ");
+            } else {
+                for (int i = 2 + r.nextInt(6); i > 0; i--) sb.append((char) ('a' + r.nextInt(26)));
+                sb.append(' ');
+            }
+        }
+        this.input = sb.toString();
+    }
+
+    @Benchmark public int
+    replaceAll() throws IOException {
+
+        Reader r = new StringReader(this.input);
+
+        if ("regex".equals(this.engine)) {
+            for (int i = 0; i < this.patterns; i++) {
+                r = PatternUtil.replaceAllFilterReader(
+                    r,
+                    Pattern.compile("@VAR" + i + "@"),
+                    PatternUtil.<IOException>replacementStringMatchReplacer("value" + i)
+                );
+            }
+        } else {
+            ReplaceAllFilter raf = new ReplaceAllFilter();
+            raf.setSinglePass("singlePass".equals(this.engine));
+            for (int i = 0; i < this.patterns; i++) {
+                ReplaceAllFilter.PatternElement pe = new ReplaceAllFilter.PatternElement();
+                pe.setPattern("@VAR" + i + "@");
+                pe.setReplacementString("value" + i);
+                raf.addConfiguredPattern(pe);
+            }
+            r = raf.chain(r);
+        }
+
+        char[] buffer = new char[8192];
+        int    result = 0;
+        for (int n = r.read(buffer); n != -1; n = r.read(buffer)) result += n;
+        r.close();
+
+        return result;
+    }
+}
@@ -0,0 +1,111 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.util.Arrays;
+
+import org.apache.tools.ant.BuildFileRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Tests for the {@link de.unkrig.antology.filter.ReplaceAllFilter}.
+ */
+public
+class ReplaceAllFilterTest {
+
+    @Rule public BuildFileRule
+    rule = new BuildFileRule();
+
+    @Before public void
+    setUp() {
+        this.rule.configureProject("target/test-classes/test_replaceAll.ant");
+    }
+
+    @Test public void
+    test1() {
+        this.rule.executeTarget("test1");
+        TestCase.assertEquals("Hell0  w0rrld", this.rule.getLog());
+    }
+
+    @Test public void
+    test2() {
+        this.rule.executeTarget("test2");
+        TestCase.assertEquals("ccc", this.rule.getLog());
+    }
+
+    @Test public void
+    test3() {
+        this.rule.executeTarget("test3");
+        TestCase.assertEquals("bY bX X", this.rule.getLog());
+    }
+
+    @Test public void
+    test4() {
+        this.rule.executeTarget("test4");
+        TestCase.assertEquals("A1 B<22> 333c", this.rule.getLog());
+    }
+
+    @Test public void
+    test5() {
+        this.rule.executeTarget("test5");
+        TestCase.assertEquals("[a.b] ayb [a.b][a.b]", this.rule.getLog());
+    }
+
+    @Test public void
+    test6() {
+        this.rule.executeTarget("test6");
+        TestCase.assertEquals("AB[@0] CD@3 EF[@6]", this.rule.getLog());
+    }
+
+    @Test public void
+    test7() { this.assertLiteralStraddlesBufferBoundary("test7"); }
+
+    @Test public void
+    test8() { this.assertLiteralStraddlesBufferBoundary("test8"); }
+
+    /**
+     * Places "HELLO" at each position where it straddles the first refill of the 8192-char buffer of the literals
+     * reader, and verifies that it is still replaced.
+     */
+    private void
+    assertLiteralStraddlesBufferBoundary(String target) {
+        for (int offset = 8192 - 4; offset < 8192; offset++) {
+            char[] filler = new char[offset];
+            Arrays.fill(filler, 'x');
+
+            this.setUp();
+            this.rule.getProject().setProperty("input", new String(filler) + "HELLO world");
+            this.rule.executeTarget(target);
+            TestCase.assertEquals("Offset " + offset, new String(filler) + "[1] world", this.rule.getLog());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.antology.util.CompiledExpressionMatchReplacer;
+import de.unkrig.commons.lang.protocol.Function;
+import de.unkrig.commons.text.parser.ParseException;
+import de.unkrig.commons.text.pattern.ExpressionMatchReplacer;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Compares the {@link CompiledExpressionMatchReplacer} with the {@link ExpressionMatchReplacer}, which interprets
+ * the replacement expression for each match.
+ * <p>
+ *   Run with
+ * </p>
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main ReplacementExpressionBenchmark
+ * </pre>
+ * <p>
+ *   (The matches are passed as {@link Matcher}s, because the interpreter cannot access the methods of non-public
+ *   {@link MatchResult} implementations on newer JREs.)
+ * </p>
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2) @Measurement(iterations = 5, time = 2) @Fork(1)
+public
+class ReplacementExpressionBenchmark {
+
+    @Param({ "interpreted", "compiled" }) public String
+    engine;
+
+    @Param({
+        "m.group.toUpperCase()",
+        "\"<\" + m.group(1) + \">\"",
+        "m.start % 2 == 0 ? m.group : (\"x\".toUpperCase() + (1 + 2) * 3)",
+    }) public String
+    expression;
+
+    @Param({ "100000" }) public int
+    matches;
+
+    private final Pattern                 pattern = Pattern.compile("(\\w+)=");
+    private String                        input   = "";
+    private Function<MatchResult, String> replacer;
+
+    @Setup public void
+    setUp() throws ParseException {
+
+        Random        r  = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.matches; i++) {
+            for (int j = 1 + r.nextInt(8); j > 0; j--) sb.append((char) ('a' + r.nextInt(26)));
+            sb.append("= ");
+        }
+        this.input = sb.toString();
+
+        this.replacer = (
+            "compiled".equals(this.engine)
+            ? CompiledExpressionMatchReplacer.parse(this.expression)
+            : ExpressionMatchReplacer.parse(this.expression)
+        );
+    }
+
+    @Benchmark public int
+    replace() {
+
+        Function<MatchResult, String> replacer = this.replacer;
+
+        int result = 0;
+        for (Matcher m = this.pattern.matcher(this.input); m.find();) {
+            String replacement = replacer.call(m);
+            if (replacement != null) result += replacement.length();
+        }
+
+        return result;
+    }
+}
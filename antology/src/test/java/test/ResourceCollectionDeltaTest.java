@@ -0,0 +1,133 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+package test;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildFileRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Tests for the {@link de.unkrig.antology.type.ResourceCollectionDelta}.
+ */
+public
+class ResourceCollectionDeltaTest {
+
+    @Rule public BuildFileRule
+    rule = new BuildFileRule();
+
+    @Before public void
+    setUp() {
+        this.rule.configureProject("target/test-classes/test_resourceCollectionDelta.ant");
+    }
+
+    @Test public void
+    testProperties() {
+        this.rule.executeTarget("test1");
+        TestCase.assertEquals("a.txt,b.txt/a.txt,b.txt,c.txt/", this.rule.getLog());
+    }
+
+    @Test public void
+    testBinary() {
+        this.rule.executeTarget("test2");
+        TestCase.assertEquals("a.txt,b.txt/a.txt,b.txt,c.txt/", this.rule.getLog());
+    }
+
+    @Test public void
+    testSize() {
+        this.rule.executeTarget("test3");
+        TestCase.assertEquals("a.txt,b.txt/a.txt/", this.rule.getLog());
+    }
+
+    @Test public void
+    testHash() {
+        this.rule.executeTarget("test4");
+        TestCase.assertEquals("a.txt,b.txt/a.txt/", this.rule.getLog());
+    }
+
+    @Test public void
+    testSerialScan() {
+        this.rule.executeTarget("test5");
+        TestCase.assertEquals("a/x.txt,b/c/z.txt/a/x.txt,b/c/w.txt", this.rule.getLog());
+    }
+
+    @Test public void
+    testParallelScan() {
+        this.rule.executeTarget("test6");
+        TestCase.assertEquals("a/x.txt,b/c/z.txt/a/x.txt,b/c/w.txt", this.rule.getLog());
+    }
+
+    @Test public void
+    testCheckpoint() {
+        this.rule.executeTarget("test7");
+        TestCase.assertEquals("a.txtb.txt/c.txt", this.rule.getLog());
+    }
+
+    @Test public void
+    testSizeBackfill() {
+        this.rule.executeTarget("test8");
+        TestCase.assertEquals("a.txt//a.txt", this.rule.getLog());
+    }
+
+    @Test public void
+    testArchiveFileSet() {
+        this.rule.executeTarget("test9");
+        TestCase.assertEquals("a.txt,b.txt", this.rule.getLog());
+    }
+
+    @Test public void
+    testForEach2EagerTotal() {
+        this.rule.executeTarget("test10");
+        TestCase.assertEquals("a.txtb.txtc.txt/", this.rule.getLog());
+    }
+
+    @Test public void
+    testForEach2BackgroundTotal() {
+        for (int i = 0; i < 10; i++) {
+            this.setUp();
+            this.rule.executeTarget("test11");
+            TestCase.assertEquals("a.txtb.txtc.txt/", this.rule.getLog());
+        }
+    }
+
+    @Test public void
+    testConcurrentCheckpoint() {
+        try {
+            this.rule.executeTarget("test12");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals(
+                "'threads=\"...\"' greater than 1 is incompatible with a <resourceCollectionDelta> with a "
+                + "'checkpointInterval=\"...\"'",
+                be.getMessage()
+            );
+        }
+    }
+}
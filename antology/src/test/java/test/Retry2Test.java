@@ -26,11 +26,14 @@
 
 package test;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.BuildFileRule;
 import org.apache.tools.ant.ExitStatusException;
+import org.apache.tools.ant.Project;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -84,6 +87,140 @@ class Retry2Test {
         TestCase.assertTrue(took + "ms", took >= 2900 && took <= 3300);
     }
 
+    @Test public void
+    test2() {
+        long start = System.currentTimeMillis();
+        this.rule.executeTarget("test2");
+        long took = System.currentTimeMillis() - start;
+        TestCase.assertEquals(
+            "No attempt completed within 300ms; starting attempt #2...Attempt succeeded",
+            this.rule.getLog()
+        );
+        TestCase.assertTrue(took + "ms", took < 2000);
+    }
+
+    @Test public void
+    test2b() {
+        long start = System.currentTimeMillis();
+        this.rule.executeTarget("test2b");
+        long took = System.currentTimeMillis() - start;
+        TestCase.assertTrue(took + "ms", took < 2000);
+
+        // The cancelled attempt had no more side effects after <retry2> returned.
+        Project project = this.rule.getProject();
+        TestCase.assertEquals("done", project.getProperty("loserWhenReturned"));
+        TestCase.assertEquals("done", project.getProperty("loser"));
+    }
+
+    @Test public void
+    test3() {
+        try {
+            this.rule.executeTarget("test3");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("Giving up after 2 retries: Nested task failed", be.getMessage());
+        }
+    }
+
+    @Test public void
+    test4() {
+        long start = System.currentTimeMillis();
+        try {
+            this.rule.executeTarget("test4");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("Giving up after 3 retries: Nested task failed", be.getMessage());
+        }
+        long took = System.currentTimeMillis() - start;
+        TestCase.assertTrue(took + "ms", took < 1000);
+
+        Project project = this.rule.getProject();
+        TestCase.assertEquals("4", project.getProperty("r.attempts"));
+        TestCase.assertEquals("0", project.getProperty("r.attempt1.wait"));
+        long totalWait = 0;
+        for (int i = 2; i <= 4; i++) {
+            long wait = Long.parseLong(project.getProperty("r.attempt" + i + ".wait"));
+            TestCase.assertTrue(wait + "ms", wait >= 0 && wait <= 100);
+            totalWait += wait;
+            TestCase.assertNotNull(project.getProperty("r.attempt" + i + ".latency"));
+        }
+        TestCase.assertEquals(Long.toString(totalWait), project.getProperty("r.totalWait"));
+    }
+
+    @Test public void
+    test5() {
+        long start = System.currentTimeMillis();
+        try {
+            this.rule.executeTarget("test5");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("Giving up after 0 retries: Nested task failed", be.getMessage());
+        }
+        long took = System.currentTimeMillis() - start;
+        TestCase.assertTrue(took + "ms", took < 500);
+        Retry2Test.assertMatches(".*Time budget of 500ms exhausted", this.rule.getLog());
+    }
+
+    @Test public void
+    test6() {
+        try {
+            this.rule.executeTarget("test6");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("Giving up after 3 retries: Nested task failed", be.getMessage());
+        }
+
+        Project project = this.rule.getProject();
+        for (int i = 2; i <= 4; i++) {
+            long wait = Long.parseLong(project.getProperty("r.attempt" + i + ".wait"));
+            TestCase.assertTrue(wait + "ms", wait >= 50 && wait <= 200);
+        }
+    }
+
+    @Test public void
+    test6b() {
+        Set<Long> waits = new HashSet<Long>();
+        for (int i = 0; i < 10; i++) {
+            this.setUp();
+            try {
+                this.rule.executeTarget("test6b");
+                TestCase.fail();
+            } catch (BuildException be) {
+                TestCase.assertEquals("Giving up after 1 retries: Nested task failed", be.getMessage());
+            }
+
+            long wait = Long.parseLong(this.rule.getProject().getProperty("r.attempt2.wait"));
+            TestCase.assertTrue(wait + "ms", wait >= 100 && wait <= 300);
+            waits.add(wait);
+        }
+        TestCase.assertTrue(waits.toString(), waits.size() > 1);
+    }
+
+    @Test public void
+    test7() {
+        try {
+            this.rule.executeTarget("test7");
+            TestCase.fail();
+        } catch (BuildException be) {
+            TestCase.assertEquals("5 iterations failed.", be.getMessage());
+        }
+
+        // Only the first <retry2> executed its subtasks (twice); then the circuit was open.
+        Retry2Test.assertMatches((
+            ""
+            + "Attempt 1"
+            + "\\S+test_retry2\\.ant:\\d+: Nested task failed"
+            + "Will retry in 10ms \\(on [^)]*\\)..."
+            + "Retry #1 of 3..."
+            + "Attempt 1"
+            + "\\S+test_retry2\\.ant:\\d+: Nested task failed"
+            + "1: The following error occurred while executing this line:\\s*"
+            + "\\S+test_retry2\\.ant:\\d+: Giving up after 1 retries: Circuit \"test7\" is open until [^\\n]*"
+            + "(?:\\d: The following error occurred while executing this line:\\s*"
+            + "\\S+test_retry2\\.ant:\\d+: Giving up after 0 retries: Circuit \"test7\" is open until [^\\n]*){4}"
+        ), this.rule.getLog());
+    }
+
     private static void
     assertMatches(String regex, @Nullable String actual) {
         Retry2Test.assertMatches(null, regex, actual);
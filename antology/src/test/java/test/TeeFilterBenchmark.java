@@ -0,0 +1,176 @@
+
+/*
+ * antology - Some contributions to APACHE ANT
+ *
+ * Copyright (c) 2013, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package test;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.unkrig.antology.filter.TeeFilter;
+import de.unkrig.commons.io.IoUtil;
+import de.unkrig.commons.io.WyeReader;
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+/**
+ * Compares the {@link TeeFilter} with the {@link PipedWriter}/{@link PipedReader} implementation that it used
+ * previously, for single-character and for bulk reads.
+ * <p>
+ *   Run with
+ * </p>
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main TeeFilterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2) @Measurement(iterations = 5, time = 2) @Fork(1)
+public
+class TeeFilterBenchmark {
+
+    @Param({ "piped", "tee" }) public String
+    implementation;
+
+    @Param({ "16777216" }) public int
+    size;
+
+    private final Project project = new Project();
+
+    @Benchmark public int
+    readSingleChars() throws IOException {
+
+        Reader r = this.reader();
+
+        int result = 0;
+        for (int c = r.read(); c != -1; c = r.read()) result += c;
+        r.close();
+
+        return result;
+    }
+
+    @Benchmark public int
+    readBulk() throws IOException {
+
+        Reader r = this.reader();
+
+        char[] buffer = new char[8192];
+        int    result = 0;
+        for (int n = r.read(buffer); n != -1; n = r.read(buffer)) result += n;
+        r.close();
+
+        return result;
+    }
+
+    private Reader
+    reader() throws IOException {
+
+        Reader source = new Reader() {
+
+            private int remaining = TeeFilterBenchmark.this.size;
+
+            @Override public int
+            read() {
+                if (this.remaining == 0) return -1;
+                this.remaining--;
+                return 'x';
+            }
+
+            @Override public int
+            read(char[] cbuf, int off, int len) {
+                if (this.remaining == 0) return -1;
+                int n = Math.min(len, this.remaining);
+                this.remaining -= n;
+                return n;
+            }
+
+            @Override public void
+            close() {}
+        };
+
+        if ("tee".equals(this.implementation)) {
+            TeeFilter tf = new TeeFilter();
+            tf.setProject(this.project);
+            tf.setTofile(new Resource() {
+                @Override public OutputStream getOutputStream() { return TeeFilterBenchmark.NULL_OUTPUT_STREAM; }
+            });
+            return tf.chain(source);
+        }
+
+        // The previous implementation of the TeeFilter.
+        final PipedWriter pw = new PipedWriter();
+        final PipedReader pr = new PipedReader(pw);
+
+        final Thread thread = new Thread() {
+
+            @Override public void
+            run() {
+                try {
+                    IoUtil.copy(pr, TeeFilterBenchmark.NULL_OUTPUT_STREAM, Charset.defaultCharset());
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        };
+        thread.start();
+
+        return new FilterReader(new WyeReader(source, pw)) {
+
+            @Override public void
+            close() throws IOException {
+                super.close();
+                pw.close();
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+            }
+        };
+    }
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+    };
+}
@@ -81,4 +81,64 @@ class ThroughputTest {
             + ")"
         ), this.rule.getLog());
     }
+
+    @Test public void
+    test3() {
+
+        this.rule.executeTarget("test3");
+
+        TestCase.assertEquals((
+            ""
+            + "Starting... (500 KB)"
+            + "... done! Took 1s (300 KB @ 300 KB/s; 200 KB remaining = approx. 666ms)"
+        ), this.rule.getLog());
+    }
+
+    @Test public void
+    test4() {
+
+        this.rule.executeTarget("test4");
+
+        String log = this.rule.getLog();
+        TestCase.assertTrue(log, log.startsWith("Starting... (4 KB)... running for "));
+        TestCase.assertTrue(log, log.contains(" (0 KB @ 0 KB/s; 0 of 4 KB complete = 0.0%; 4 KB remaining)"));
+        TestCase.assertTrue(log, log.contains(" (2 KB @ "));
+        TestCase.assertTrue(log, log.contains("; 2 of 4 KB complete = 50.0%; 2 KB remaining = approx. "));
+        TestCase.assertTrue(log, log.contains("... done! Took "));
+    }
+
+    @Test public void
+    test5() {
+
+        this.rule.executeTarget("test5");
+
+        String log = this.rule.getLog();
+        TestCase.assertTrue(log, log.endsWith("copy done 100.0 25.0 3.0copy/inner 2.0 ${n.currentRate}"));
+    }
+
+    @Test public void
+    test6() {
+
+        this.rule.executeTarget("test6");
+
+        // With the CUMULATIVE estimator, the remaining duration would be 15 seconds.
+        String log = this.rule.getLog();
+        TestCase.assertTrue(log, log.contains("; 1,000 KB remaining = approx. 20"));
+        TestCase.assertTrue(log, log.endsWith(")20.0"));
+    }
+
+    @Test public void
+    test7() {
+
+        this.rule.executeTarget("test7");
+
+        TestCase.assertEquals((
+            ""
+            + "Starting... (500 KB)"
+            + "| Starting... (50 KB)"
+            + "| ... done! Took 1s (50 KB @ 50 KB/s)"
+            + "... done! Took 1s (300 KB @ 300 KB/s; 200 KB remaining = approx. 666ms)"
+        ), this.rule.getLog());
+        TestCase.assertNull(this.rule.getProject().getReference("p"));
+    }
 }